@@ -0,0 +1,69 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * An alert of the {@link AlertEngine}: a rule started or stopped to match the
+ * readings of a sensor.
+ *
+ * @author hhagmans
+ *
+ */
+public class Alert {
+
+	private final AlertRule rule;
+
+	private final String sensor;
+
+	private final long timestamp;
+
+	private final double value;
+
+	private final boolean resolved;
+
+	/**
+	 * @param rule
+	 *            The rule
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param timestamp
+	 *            Timestamp of the reading that fired or resolved the alert
+	 * @param value
+	 *            The temperature, or for rate rules the smoothed change in
+	 *            degrees per minute
+	 * @param resolved
+	 *            Whether the rule stopped to match
+	 */
+	public Alert(AlertRule rule, String sensor, long timestamp, double value,
+			boolean resolved) {
+		this.rule = rule;
+		this.sensor = sensor;
+		this.timestamp = timestamp;
+		this.value = value;
+		this.resolved = resolved;
+	}
+
+	public AlertRule getRule() {
+		return rule;
+	}
+
+	public String getSensor() {
+		return sensor;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public boolean isResolved() {
+		return resolved;
+	}
+
+	@Override
+	public String toString() {
+		return (resolved ? "Resolved " : "Fired ") + rule.getName() + " ("
+				+ rule + ") for " + sensor + " at " + timestamp + ": " + value;
+	}
+}
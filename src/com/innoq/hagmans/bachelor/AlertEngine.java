@@ -0,0 +1,303 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Evaluates {@link AlertRule}s on the readings as the consumer receives them,
+ * instead of polling the stored readings.
+ *
+ * <p>
+ * The rules are indexed by sensor name and prefix. The rules of a sensor are
+ * looked up once, when its first reading arrives, and kept with the state of
+ * the sensor: for threshold rules the time the threshold was first exceeded,
+ * for rate rules the exponentially smoothed change per minute, and whether the
+ * rule fires. Every reading therefore costs constant time per rule of its
+ * sensor, no matter how many rules and sensors there are. The state of a
+ * sensor must only be updated by one thread at a time, which the persist
+ * stripes of the {@link ConsumerPipeline} guarantee. Readings older than the
+ * latest reading of their sensor are ignored.
+ *
+ * <p>
+ * Alerts are put into a bounded queue and handed to the {@link AlertSink} by
+ * a separate thread, so a slow sink never holds back the consumer. Alerts
+ * that do not fit into the queue are counted and dropped.
+ *
+ * @author hhagmans
+ *
+ */
+public class AlertEngine implements Closeable {
+	private static final Log LOG = LogFactory.getLog(AlertEngine.class);
+
+	/**
+	 * The rules of a sensor and their state.
+	 */
+	private static class SensorState {
+		final AlertRule[] rules;
+
+		/**
+		 * Timestamp from which on the threshold of a rule is exceeded, or
+		 * Long.MIN_VALUE
+		 */
+		final long[] since;
+
+		/**
+		 * The smoothed change in degrees per minute of a rate rule
+		 */
+		final double[] rates;
+
+		final boolean[] firing;
+
+		long lastTimestamp = Long.MIN_VALUE;
+
+		double lastMean;
+
+		SensorState(List<AlertRule> rules) {
+			this.rules = rules.toArray(new AlertRule[rules.size()]);
+			this.since = new long[rules.size()];
+			this.rates = new double[rules.size()];
+			this.firing = new boolean[rules.size()];
+			for (int i = 0; i < since.length; i++) {
+				since[i] = Long.MIN_VALUE;
+			}
+		}
+	}
+
+	private final Map<String, List<AlertRule>> sensorRules = new HashMap<>();
+
+	private final Map<String, List<AlertRule>> prefixRules = new HashMap<>();
+
+	private final int ruleCount;
+
+	private final ConcurrentMap<String, SensorState> sensors = new ConcurrentHashMap<>();
+
+	private final ArrayBlockingQueue<Alert> queue;
+
+	private final AlertSink sink;
+
+	private final Thread dispatcher;
+
+	private final AtomicLong fired = new AtomicLong(0);
+
+	private final AtomicLong resolved = new AtomicLong(0);
+
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private final AtomicLong outOfOrder = new AtomicLong(0);
+
+	/**
+	 * @param rules
+	 *            The rules to evaluate
+	 * @param queueCapacity
+	 *            Maximum number of alerts waiting for the sink
+	 * @param sink
+	 *            Receives the alerts
+	 */
+	public AlertEngine(List<AlertRule> rules, int queueCapacity, AlertSink sink) {
+		for (AlertRule rule : rules) {
+			Map<String, List<AlertRule>> index = rule.isPrefix() ? prefixRules
+					: sensorRules;
+			List<AlertRule> indexed = index.get(rule.getSensors());
+			if (indexed == null) {
+				indexed = new ArrayList<>();
+				index.put(rule.getSensors(), indexed);
+			}
+			indexed.add(rule);
+		}
+		this.ruleCount = rules.size();
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.sink = sink;
+		this.dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "alert-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Evaluates the rules of a sensor on a reading, or the summary of a window
+	 * of readings. Threshold rules only count a summary as exceeding if all of
+	 * its readings do, rate rules use its mean.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param timestamp
+	 *            Timestamp of the reading, or start of the summarized window
+	 * @param min
+	 *            The lowest temperature
+	 * @param max
+	 *            The highest temperature
+	 * @param mean
+	 *            The mean temperature
+	 */
+	public void evaluate(String sensor, long timestamp, double min,
+			double max, double mean) {
+		if (ruleCount == 0) {
+			return;
+		}
+		SensorState state = sensors.get(sensor);
+		if (state == null) {
+			state = new SensorState(match(sensor));
+			SensorState previous = sensors.putIfAbsent(sensor, state);
+			if (previous != null) {
+				state = previous;
+			}
+		}
+		if (state.rules.length == 0) {
+			return;
+		}
+		if (timestamp <= state.lastTimestamp) {
+			outOfOrder.getAndIncrement();
+			return;
+		}
+		for (int i = 0; i < state.rules.length; i++) {
+			AlertRule rule = state.rules[i];
+			boolean exceeded;
+			double value;
+			switch (rule.getKind()) {
+			case ABOVE:
+				exceeded = min > rule.getValue();
+				value = min;
+				break;
+			case BELOW:
+				exceeded = max < rule.getValue();
+				value = max;
+				break;
+			default:
+				if (state.lastTimestamp != Long.MIN_VALUE) {
+					long elapsed = timestamp - state.lastTimestamp;
+					double change = (mean - state.lastMean) * 60000d / elapsed;
+					double weight = 1 - Math.exp(-(double) elapsed
+							/ rule.getMillis());
+					state.rates[i] += weight * (change - state.rates[i]);
+				}
+				exceeded = Math.abs(state.rates[i]) > rule.getValue();
+				value = state.rates[i];
+				break;
+			}
+			if (!exceeded) {
+				state.since[i] = Long.MIN_VALUE;
+				if (state.firing[i]) {
+					state.firing[i] = false;
+					resolved.getAndIncrement();
+					emit(new Alert(rule, sensor, timestamp, value, true));
+				}
+			} else if (!state.firing[i]) {
+				if (state.since[i] == Long.MIN_VALUE) {
+					state.since[i] = timestamp;
+				}
+				// The window of a rate rule already smooths the rate
+				if (rule.getKind() == AlertRule.Kind.RATE
+						|| timestamp - state.since[i] >= rule.getMillis()) {
+					state.firing[i] = true;
+					fired.getAndIncrement();
+					emit(new Alert(rule, sensor, timestamp, value, false));
+				}
+			}
+		}
+		state.lastTimestamp = timestamp;
+		state.lastMean = mean;
+	}
+
+	/**
+	 * @return The rules of the sensor itself, followed by the rules of all
+	 *         prefixes of its name
+	 */
+	private List<AlertRule> match(String sensor) {
+		List<AlertRule> matched = new ArrayList<>();
+		List<AlertRule> rules = sensorRules.get(sensor);
+		if (rules != null) {
+			matched.addAll(rules);
+		}
+		if (!prefixRules.isEmpty()) {
+			for (int length = 0; length <= sensor.length(); length++) {
+				rules = prefixRules.get(sensor.substring(0, length));
+				if (rules != null) {
+					matched.addAll(rules);
+				}
+			}
+		}
+		return matched;
+	}
+
+	private void emit(Alert alert) {
+		if (!queue.offer(alert)) {
+			dropped.getAndIncrement();
+		}
+	}
+
+	/**
+	 * Hands the queued alerts to the sink until the engine is closed.
+	 */
+	private void dispatch() {
+		try {
+			while (true) {
+				Alert alert = queue.take();
+				try {
+					sink.alert(alert);
+				} catch (RuntimeException e) {
+					LOG.warn("Unable to deliver " + alert, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * @return Number of rules
+	 */
+	public int getRules() {
+		return ruleCount;
+	}
+
+	/**
+	 * @return Number of alerts fired so far
+	 */
+	public long getAlertsFired() {
+		return fired.get();
+	}
+
+	/**
+	 * @return Number of alerts resolved so far
+	 */
+	public long getAlertsResolved() {
+		return resolved.get();
+	}
+
+	/**
+	 * @return Number of alerts dropped because the queue was full
+	 */
+	public long getAlertsDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of readings that were ignored because a later reading
+	 *         of their sensor had already been evaluated
+	 */
+	public long getOutOfOrderReadings() {
+		return outOfOrder.get();
+	}
+
+	/**
+	 * Stops the alert thread. Alerts still in the queue are not delivered.
+	 */
+	@Override
+	public void close() {
+		dispatcher.interrupt();
+	}
+}
@@ -0,0 +1,149 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rule that the {@link AlertEngine} evaluates on the readings of the
+ * consumer. A rule applies to one sensor, to all sensors whose names start
+ * with a prefix, or to all sensors, and is one of:
+ *
+ * <ul>
+ * <li>above: the temperature stayed above a threshold for a duration</li>
+ * <li>below: the temperature stayed below a threshold for a duration</li>
+ * <li>rate: the temperature changes faster than a number of degrees per
+ * minute, smoothed over a window</li>
+ * </ul>
+ *
+ * <p>
+ * Rules are written as NAME:KIND:VALUE:SECONDS:SENSORS, e.g.
+ * "hot:above:30:60:*" or "spike:rate:5:120:sensor-1*", and separated by
+ * semicolons. SENSORS is a sensor name, a prefix followed by "*", or "*" for
+ * all sensors.
+ *
+ * @author hhagmans
+ *
+ */
+public class AlertRule {
+
+	/**
+	 * The kinds of rules.
+	 */
+	public enum Kind {
+		ABOVE, BELOW, RATE
+	}
+
+	private final String name;
+
+	private final Kind kind;
+
+	private final double value;
+
+	private final long millis;
+
+	private final String sensors;
+
+	private final boolean prefix;
+
+	/**
+	 * @param name
+	 *            Name of the rule, which is part of its alerts
+	 * @param kind
+	 *            The kind of the rule
+	 * @param value
+	 *            The threshold in degrees, or for rate rules the change in
+	 *            degrees per minute
+	 * @param millis
+	 *            How long the threshold has to be exceeded, or for rate rules
+	 *            the window the rate is smoothed over, in milliseconds
+	 * @param sensors
+	 *            Name of the sensor, a prefix followed by "*" or "*" for all
+	 *            sensors
+	 */
+	public AlertRule(String name, Kind kind, double value, long millis,
+			String sensors) {
+		if (kind == Kind.RATE && millis <= 0) {
+			throw new IllegalArgumentException(
+					"The window of a rate rule must be positive: " + name);
+		}
+		this.name = name;
+		this.kind = kind;
+		this.value = value;
+		this.millis = millis;
+		this.prefix = sensors.endsWith("*");
+		this.sensors = prefix ? sensors.substring(0, sensors.length() - 1)
+				: sensors;
+	}
+
+	/**
+	 * Parses rules separated by semicolons.
+	 *
+	 * @param rules
+	 *            The rules in the form NAME:KIND:VALUE:SECONDS:SENSORS
+	 * @return The rules, empty if the string is empty
+	 * @throws IllegalArgumentException
+	 *             If a rule is malformed
+	 */
+	public static List<AlertRule> parse(String rules) {
+		List<AlertRule> parsed = new ArrayList<>();
+		for (String rule : rules.split(";")) {
+			if (rule.trim().isEmpty()) {
+				continue;
+			}
+			String[] fields = rule.trim().split(":");
+			if (fields.length != 5) {
+				throw new IllegalArgumentException(
+						"Expected NAME:KIND:VALUE:SECONDS:SENSORS, got " + rule);
+			}
+			try {
+				parsed.add(new AlertRule(fields[0], Kind.valueOf(fields[1]
+						.toUpperCase()), Double.parseDouble(fields[2]),
+						TimeUnit.SECONDS.toMillis(Long.parseLong(fields[3])),
+						fields[4]));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Malformed rule " + rule, e);
+			}
+		}
+		return parsed;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	/**
+	 * @return The sensor name, or the prefix of the sensor names if
+	 *         {@link #isPrefix()}
+	 */
+	public String getSensors() {
+		return sensors;
+	}
+
+	/**
+	 * @return Whether the rule applies to all sensors whose names start with
+	 *         {@link #getSensors()}
+	 */
+	public boolean isPrefix() {
+		return prefix;
+	}
+
+	@Override
+	public String toString() {
+		return name + ":" + kind.name().toLowerCase() + ":" + value + ":"
+				+ TimeUnit.MILLISECONDS.toSeconds(millis) + ":" + sensors
+				+ (prefix ? "*" : "");
+	}
+}
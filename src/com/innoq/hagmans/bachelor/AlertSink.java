@@ -0,0 +1,20 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * Receives the alerts of the {@link AlertEngine}, on the alert thread of the
+ * engine.
+ *
+ * @author hhagmans
+ *
+ */
+public interface AlertSink {
+
+	/**
+	 * Delivers an alert. May block, later alerts wait in the queue of the
+	 * engine meanwhile.
+	 *
+	 * @param alert
+	 *            The alert
+	 */
+	void alert(Alert alert);
+}
@@ -0,0 +1,76 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * Decides when the record processor of a shard checkpoints: as soon as a
+ * number of records has been persisted since the last checkpoint, or a time
+ * has passed and at least one record was persisted. The record processor
+ * additionally checkpoints whenever it shuts down.
+ *
+ * <p>
+ * Every checkpoint is a write to the lease table, so checkpointing less often
+ * saves its write capacity and keeps the latency of busy shards low. The price
+ * is that up to a checkpoint interval of records is processed again after a
+ * crash. This is harmless, because readings are stored under their sensor and
+ * timestamp and summaries under their sensor and window start, so writing them
+ * again does not change the stored item.
+ *
+ * <p>
+ * A policy belongs to a single record processor and is not thread-safe.
+ *
+ * @author hhagmans
+ *
+ */
+public class CheckpointPolicy {
+
+	private final long maxRecords;
+
+	private final long maxMillis;
+
+	private long records;
+
+	private long lastCheckpointMillis;
+
+	/**
+	 * @param maxRecords
+	 *            Number of persisted records that triggers a checkpoint
+	 * @param maxMillis
+	 *            Time in milliseconds after which persisted records are
+	 *            checkpointed
+	 */
+	public CheckpointPolicy(long maxRecords, long maxMillis) {
+		this.maxRecords = Math.max(1, maxRecords);
+		this.maxMillis = maxMillis;
+		this.lastCheckpointMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts records whose readings have been persisted.
+	 *
+	 * @param count
+	 *            Number of records
+	 */
+	public void persisted(int count) {
+		records += count;
+	}
+
+	/**
+	 * @param now
+	 *            The current time in milliseconds
+	 * @return Whether the persisted records should be checkpointed now
+	 */
+	public boolean isDue(long now) {
+		return records >= maxRecords
+				|| (records > 0 && now - lastCheckpointMillis >= maxMillis);
+	}
+
+	/**
+	 * Starts the next interval after a successful checkpoint.
+	 *
+	 * @param now
+	 *            The current time in milliseconds
+	 */
+	public void checkpointed(long now) {
+		records = 0;
+		lastCheckpointMillis = now;
+	}
+}
@@ -0,0 +1,382 @@
+package com.innoq.hagmans.bachelor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The metrics of a consumer: one {@link ShardMetrics} for every shard the
+ * consumer currently holds, together with the totals of the
+ * {@link ConsumerPipeline}, the {@link WriteBehindBuffer}, the
+ * {@link RollupAggregator} and the {@link AlertEngine}.
+ *
+ * <p>
+ * The totals are registered with JMX as
+ * com.innoq.hagmans.bachelor:type=ConsumerMetrics and every shard as
+ * com.innoq.hagmans.bachelor:type=ShardMetrics,shard="SHARD_ID". The
+ * {@link MetricsServlet} serves the same values as text.
+ *
+ * @author hhagmans
+ *
+ */
+public class ConsumerMetrics implements ConsumerMetricsMBean {
+	private static final Log LOG = LogFactory.getLog(ConsumerMetrics.class);
+
+	private static final String DOMAIN = "com.innoq.hagmans.bachelor";
+
+	private final ConcurrentMap<String, ShardMetrics> shards = new ConcurrentHashMap<>();
+
+	private final WriteBehindBuffer buffer;
+
+	private final ConsumerPipeline pipeline;
+
+	private final RollupAggregator rollups;
+
+	private final AlertEngine alerts;
+
+	private final IngestLatency ingestLatency;
+
+	/**
+	 * @param buffer
+	 *            The buffer of the consumer
+	 * @param pipeline
+	 *            The pipeline of the consumer
+	 * @param rollups
+	 *            The rollups of the consumer
+	 * @param alerts
+	 *            The alert engine of the consumer
+	 * @param ingestLatency
+	 *            The end-to-end latencies of the readings, which are also
+	 *            recorded by the shards
+	 */
+	public ConsumerMetrics(WriteBehindBuffer buffer,
+			ConsumerPipeline pipeline, RollupAggregator rollups,
+			AlertEngine alerts, IngestLatency ingestLatency) {
+		this.buffer = buffer;
+		this.pipeline = pipeline;
+		this.rollups = rollups;
+		this.alerts = alerts;
+		this.ingestLatency = ingestLatency;
+	}
+
+	/**
+	 * Registers the totals with the platform MBean server. Failures are
+	 * logged, the metrics still work without JMX.
+	 */
+	public void register() {
+		register(this, DOMAIN + ":type=ConsumerMetrics");
+	}
+
+	/**
+	 * Starts the metrics of a shard the consumer has taken.
+	 *
+	 * @param shardId
+	 *            The id of the shard
+	 * @return The metrics of the shard
+	 */
+	public ShardMetrics shard(String shardId) {
+		ShardMetrics metrics = new ShardMetrics(shardId, ingestLatency);
+		ShardMetrics previous = shards.put(shardId, metrics);
+		if (previous != null) {
+			unregister(shardObjectName(shardId));
+		}
+		register(metrics, shardObjectName(shardId));
+		return metrics;
+	}
+
+	/**
+	 * Drops the metrics of a shard the consumer no longer holds.
+	 *
+	 * @param metrics
+	 *            The metrics of the shard
+	 */
+	public void remove(ShardMetrics metrics) {
+		if (shards.remove(metrics.getShardId(), metrics)) {
+			unregister(shardObjectName(metrics.getShardId()));
+		}
+	}
+
+	/**
+	 * @return The metrics of all shards as text, one value per line in the
+	 *         form "name value" or "name{shard="SHARD_ID"} value". The latest
+	 *         gaps in the sequence numbers are listed with the number of
+	 *         records missing, and the latencies of the sensors with their
+	 *         own histograms in the form "name{sensor="SENSOR"} value".
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		line(sb, "consumer_shards", null, getShards());
+		line(sb, "consumer_records_per_second", null, getRecordsPerSecond());
+		line(sb, "consumer_max_millis_behind_latest", null,
+				getMaxMillisBehindLatest());
+		line(sb, "consumer_parse_failures", null, getParseFailures());
+		line(sb, "consumer_skipped_batches", null, getSkippedBatches());
+		line(sb, "consumer_duplicates", null, getDuplicates());
+		line(sb, "consumer_lost_records", null, getLostRecords());
+		line(sb, "consumer_loss_rate", null, getLossRate());
+		line(sb, "consumer_reordered_records", null, getReorderedRecords());
+		line(sb, "consumer_reorder_depth_p99", null, getReorderDepthP99());
+		line(sb, "consumer_reorder_depth_max", null, getReorderDepthMax());
+		for (SequenceTracker.Gap gap : pipeline.getSequenceTracker()
+				.getRecentGaps()) {
+			sb.append("consumer_gap{sensor=\"").append(gap.getSensor())
+					.append("\",run=\"").append(gap.getRun())
+					.append("\",from=\"").append(gap.getFrom())
+					.append("\",to=\"").append(gap.getTo()).append("\"} ")
+					.append(gap.getTo() - gap.getFrom() + 1).append('\n');
+		}
+		line(sb, "consumer_pending_readings", null, getPendingReadings());
+		line(sb, "consumer_readings_flushed", null, getReadingsFlushed());
+		line(sb, "consumer_failed_flushes", null, getFailedFlushes());
+		line(sb, "consumer_flush_p50_millis", null, getFlushP50Millis());
+		line(sb, "consumer_flush_p99_millis", null, getFlushP99Millis());
+		line(sb, "consumer_receive_latency_p50_millis", null,
+				getReceiveLatencyP50Millis());
+		line(sb, "consumer_receive_latency_p99_millis", null,
+				getReceiveLatencyP99Millis());
+		line(sb, "consumer_commit_latency_p50_millis", null,
+				getCommitLatencyP50Millis());
+		line(sb, "consumer_commit_latency_p99_millis", null,
+				getCommitLatencyP99Millis());
+		line(sb, "consumer_rollups_written", null, getRollupsWritten());
+		line(sb, "consumer_rollup_late_updates", null,
+				getRollupLateUpdates());
+		line(sb, "consumer_rollup_replayed_updates", null,
+				getRollupReplayedUpdates());
+		line(sb, "consumer_alert_rules", null, getAlertRules());
+		line(sb, "consumer_alerts_fired", null, getAlertsFired());
+		line(sb, "consumer_alerts_resolved", null, getAlertsResolved());
+		line(sb, "consumer_alerts_dropped", null, getAlertsDropped());
+		line(sb, "consumer_alert_out_of_order_readings", null,
+				getAlertOutOfOrderReadings());
+		for (ShardMetrics shard : new TreeMap<>(shards).values()) {
+			String id = shard.getShardId();
+			line(sb, "shard_records_processed", id, shard.getRecordsProcessed());
+			line(sb, "shard_records_per_second", id,
+					shard.getRecordsPerSecond());
+			line(sb, "shard_parse_failures", id, shard.getParseFailures());
+			line(sb, "shard_millis_behind_latest", id,
+					shard.getMillisBehindLatest());
+			line(sb, "shard_batch_size_mean", id, shard.getBatchSizeMean());
+			line(sb, "shard_batch_size_p99", id, shard.getBatchSizeP99());
+			line(sb, "shard_batch_size_max", id, shard.getBatchSizeMax());
+			line(sb, "shard_parse_p50_millis", id, shard.getParseP50Millis());
+			line(sb, "shard_parse_p99_millis", id, shard.getParseP99Millis());
+			line(sb, "shard_write_p50_millis", id, shard.getWriteP50Millis());
+			line(sb, "shard_write_p99_millis", id, shard.getWriteP99Millis());
+			line(sb, "shard_checkpoints", id, shard.getCheckpoints());
+			line(sb, "shard_checkpoint_p50_millis", id,
+					shard.getCheckpointP50Millis());
+			line(sb, "shard_checkpoint_p99_millis", id,
+					shard.getCheckpointP99Millis());
+			line(sb, "shard_receive_latency_p50_millis", id,
+					shard.getReceiveLatencyP50Millis());
+			line(sb, "shard_receive_latency_p99_millis", id,
+					shard.getReceiveLatencyP99Millis());
+			line(sb, "shard_commit_latency_p50_millis", id,
+					shard.getCommitLatencyP50Millis());
+			line(sb, "shard_commit_latency_p99_millis", id,
+					shard.getCommitLatencyP99Millis());
+		}
+		sensorLines(sb, "sensor_receive_latency_p99_millis",
+				ingestLatency.getReceivedMillisBySensor(99));
+		sensorLines(sb, "sensor_commit_latency_p99_millis",
+				ingestLatency.getCommittedMillisBySensor(99));
+		return sb.toString();
+	}
+
+	private static void sensorLines(StringBuilder sb, String name,
+			Map<String, Long> values) {
+		for (Map.Entry<String, Long> sensor : values.entrySet()) {
+			sb.append(name).append("{sensor=\"").append(sensor.getKey())
+					.append("\"} ").append(sensor.getValue()).append('\n');
+		}
+	}
+
+	private static void line(StringBuilder sb, String name, String shard,
+			Object value) {
+		sb.append(name);
+		if (shard != null) {
+			sb.append("{shard=\"").append(shard).append("\"}");
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	@Override
+	public int getShards() {
+		return shards.size();
+	}
+
+	@Override
+	public double getRecordsPerSecond() {
+		double sum = 0;
+		for (ShardMetrics shard : shards.values()) {
+			sum += shard.getRecordsPerSecond();
+		}
+		return sum;
+	}
+
+	@Override
+	public long getMaxMillisBehindLatest() {
+		long max = -1;
+		for (ShardMetrics shard : shards.values()) {
+			max = Math.max(max, shard.getMillisBehindLatest());
+		}
+		return max;
+	}
+
+	@Override
+	public long getParseFailures() {
+		return pipeline.getParseFailures();
+	}
+
+	@Override
+	public long getSkippedBatches() {
+		return pipeline.getSkippedBatches();
+	}
+
+	@Override
+	public long getDuplicates() {
+		return pipeline.getSequenceTracker().getDuplicates();
+	}
+
+	@Override
+	public long getLostRecords() {
+		return pipeline.getSequenceTracker().getLost();
+	}
+
+	@Override
+	public double getLossRate() {
+		return pipeline.getSequenceTracker().getLossRate();
+	}
+
+	@Override
+	public long getReorderedRecords() {
+		return pipeline.getSequenceTracker().getReordered();
+	}
+
+	@Override
+	public long getReorderDepthP99() {
+		return pipeline.getSequenceTracker().getReorderDepth(99);
+	}
+
+	@Override
+	public long getReorderDepthMax() {
+		return pipeline.getSequenceTracker().getMaxReorderDepth();
+	}
+
+	@Override
+	public int getPendingReadings() {
+		return buffer.getPendingCount();
+	}
+
+	@Override
+	public long getReadingsFlushed() {
+		return buffer.getReadingsFlushed();
+	}
+
+	@Override
+	public long getFailedFlushes() {
+		return buffer.getFailedFlushes();
+	}
+
+	@Override
+	public double getFlushP50Millis() {
+		return buffer.getFlushLatencyMillis(50);
+	}
+
+	@Override
+	public double getFlushP99Millis() {
+		return buffer.getFlushLatencyMillis(99);
+	}
+
+	@Override
+	public long getReceiveLatencyP50Millis() {
+		return ingestLatency.getReceivedMillis(50);
+	}
+
+	@Override
+	public long getReceiveLatencyP99Millis() {
+		return ingestLatency.getReceivedMillis(99);
+	}
+
+	@Override
+	public long getCommitLatencyP50Millis() {
+		return ingestLatency.getCommittedMillis(50);
+	}
+
+	@Override
+	public long getCommitLatencyP99Millis() {
+		return ingestLatency.getCommittedMillis(99);
+	}
+
+	@Override
+	public long getRollupsWritten() {
+		return rollups.getRollupsWritten();
+	}
+
+	@Override
+	public long getRollupLateUpdates() {
+		return rollups.getLateUpdates();
+	}
+
+	@Override
+	public long getRollupReplayedUpdates() {
+		return rollups.getReplayedUpdates();
+	}
+
+	@Override
+	public int getAlertRules() {
+		return alerts.getRules();
+	}
+
+	@Override
+	public long getAlertsFired() {
+		return alerts.getAlertsFired();
+	}
+
+	@Override
+	public long getAlertsResolved() {
+		return alerts.getAlertsResolved();
+	}
+
+	@Override
+	public long getAlertsDropped() {
+		return alerts.getAlertsDropped();
+	}
+
+	@Override
+	public long getAlertOutOfOrderReadings() {
+		return alerts.getOutOfOrderReadings();
+	}
+
+	private static String shardObjectName(String shardId) {
+		return DOMAIN + ":type=ShardMetrics,shard=" + ObjectName.quote(shardId);
+	}
+
+	private static void register(Object mbean, String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+					new ObjectName(name));
+		} catch (JMException e) {
+			LOG.warn("Unable to register " + name + " with JMX", e);
+		}
+	}
+
+	private static void unregister(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					new ObjectName(name));
+		} catch (JMException e) {
+			LOG.debug("Unable to unregister " + name + " from JMX", e);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * JMX view of the {@link ConsumerMetrics}.
+ * 
+ * @author hhagmans
+ * 
+ */
+public interface ConsumerMetricsMBean {
+
+	int getShards();
+
+	double getRecordsPerSecond();
+
+	long getMaxMillisBehindLatest();
+
+	long getParseFailures();
+
+	long getSkippedBatches();
+
+	long getDuplicates();
+
+	long getLostRecords();
+
+	double getLossRate();
+
+	long getReorderedRecords();
+
+	long getReorderDepthP99();
+
+	long getReorderDepthMax();
+
+	int getPendingReadings();
+
+	long getReadingsFlushed();
+
+	long getFailedFlushes();
+
+	double getFlushP50Millis();
+
+	double getFlushP99Millis();
+
+	long getReceiveLatencyP50Millis();
+
+	long getReceiveLatencyP99Millis();
+
+	long getCommitLatencyP50Millis();
+
+	long getCommitLatencyP99Millis();
+
+	long getRollupsWritten();
+
+	long getRollupLateUpdates();
+
+	long getRollupReplayedUpdates();
+
+	int getAlertRules();
+
+	long getAlertsFired();
+
+	long getAlertsResolved();
+
+	long getAlertsDropped();
+
+	long getAlertOutOfOrderReadings();
+}
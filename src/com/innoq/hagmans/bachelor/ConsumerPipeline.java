@@ -0,0 +1,465 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Decouples the record processors of the consumer from parsing and persisting
+ * the records, so that a shard keeps fetching while earlier batches are still
+ * being written.
+ *
+ * <p>
+ * The KCL thread of a shard only submits its batch. The parse stage decodes
+ * the records on a worker pool into a columnar {@link ReadingBatch} and splits
+ * it by sensor into stripes. Each stripe is persisted by a single thread, so
+ * the readings of a sensor are never handled by two threads at the same time.
+ * The persist stage checks the sequence numbers with the
+ * {@link SequenceTracker}, drops the duplicates, evaluates the alert rules of
+ * the {@link AlertEngine} and hands the readings to the
+ * {@link WriteBehindBuffer} and the {@link RollupAggregator}. All stages are
+ * connected by bounded queues: when a queue is full, the submitting thread
+ * blocks, which holds back the KCL.
+ *
+ * <p>
+ * Every submitted batch returns a {@link Ticket}, which is done once all
+ * readings of the batch have reached the buffer. The record processor keeps
+ * the tickets in order and only checkpoints the last record of the highest
+ * contiguous done batch, after flushing the buffer. A batch that failed is
+ * resubmitted until it is done.
+ *
+ * @author hhagmans
+ *
+ */
+public class ConsumerPipeline implements Closeable {
+	private static final Log LOG = LogFactory.getLog(ConsumerPipeline.class);
+
+	private final WriteBehindBuffer buffer;
+
+	private final TemperatureConsumer consumer;
+
+	private final RollupAggregator rollups;
+
+	private final SequenceTracker sequences;
+
+	private final AlertEngine alerts;
+
+	private final ThreadPoolExecutor parsers;
+
+	private final ThreadPoolExecutor[] stripes;
+
+	/**
+	 * Maximum number of sensor names each parse thread keeps
+	 */
+	private final int maxSensorNames;
+
+	/**
+	 * The sensor names of each parse thread
+	 */
+	private final ThreadLocal<SensorNameDictionary> sensorNames = new ThreadLocal<SensorNameDictionary>() {
+		@Override
+		protected SensorNameDictionary initialValue() {
+			return new SensorNameDictionary(maxSensorNames);
+		}
+	};
+
+	private final AtomicLong parseFailures = new AtomicLong(0);
+
+	private final AtomicLong skippedBatches = new AtomicLong(0);
+
+	/**
+	 * Tracks a submitted batch through the pipeline.
+	 */
+	public static class Ticket {
+		private final List<Record> records;
+
+		private final ShardMetrics metrics;
+
+		/**
+		 * The parse task, plus one for every stripe task of the batch
+		 */
+		private final AtomicInteger pendingTasks = new AtomicInteger(1);
+
+		private volatile boolean failed;
+
+		Ticket(List<Record> records, ShardMetrics metrics) {
+			this.records = records;
+			this.metrics = metrics;
+		}
+
+		void taskDone() {
+			if (pendingTasks.decrementAndGet() == 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * @return The last record of the batch, which may be checkpointed once
+		 *         the batch is done
+		 */
+		public Record getLastRecord() {
+			return records.get(records.size() - 1);
+		}
+
+		/**
+		 * @return Number of records in the batch
+		 */
+		public int getRecordCount() {
+			return records.size();
+		}
+
+		/**
+		 * @return The records of the batch
+		 */
+		public List<Record> getRecords() {
+			return records;
+		}
+
+		/**
+		 * @return Whether all readings of the batch have reached the buffer
+		 */
+		public boolean isDone() {
+			return pendingTasks.get() == 0 && !failed;
+		}
+
+		/**
+		 * @return Whether a stage failed. The batch must not be
+		 *         checkpointed, but processed again with
+		 *         {@link ConsumerPipeline#resubmit(Ticket)}.
+		 */
+		public boolean isFailed() {
+			return failed;
+		}
+
+		/**
+		 * Blocks until all stages have finished the batch.
+		 */
+		public synchronized void await() throws InterruptedException {
+			while (pendingTasks.get() > 0) {
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * Blocks the submitting thread while the queue of an executor is full.
+	 */
+	private static final RejectedExecutionHandler BLOCK = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Pipeline is closed");
+			}
+			try {
+				executor.getQueue().put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(
+						"Interrupted while waiting for the pipeline", e);
+			}
+		}
+	};
+
+	/**
+	 * @param consumer
+	 *            The consumer, which logs the readings
+	 * @param buffer
+	 *            Receives the parsed readings
+	 * @param rollups
+	 *            Aggregates the parsed readings
+	 * @param sequences
+	 *            Drops redelivered readings and detects lost ones
+	 * @param alerts
+	 *            Evaluates the alert rules on the readings
+	 * @param parseThreads
+	 *            Number of threads of the parse stage
+	 * @param maxSensorNames
+	 *            Maximum number of sensor names each parse thread keeps, so
+	 *            that it does not allocate a new string per record. Should be
+	 *            at least the size of the fleet.
+	 * @param persistStripes
+	 *            Number of stripes (and threads) of the persist stage
+	 * @param queueCapacity
+	 *            Capacity of the queue in front of each stage and stripe
+	 */
+	public ConsumerPipeline(TemperatureConsumer consumer,
+			WriteBehindBuffer buffer, RollupAggregator rollups,
+			SequenceTracker sequences, AlertEngine alerts, int parseThreads,
+			int maxSensorNames, int persistStripes, int queueCapacity) {
+		this.consumer = consumer;
+		this.buffer = buffer;
+		this.rollups = rollups;
+		this.sequences = sequences;
+		this.alerts = alerts;
+		this.maxSensorNames = maxSensorNames;
+		this.parsers = newStage(Math.max(1, parseThreads), queueCapacity);
+		this.stripes = new ThreadPoolExecutor[Math.max(1, persistStripes)];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = newStage(1, queueCapacity);
+		}
+	}
+
+	private static ThreadPoolExecutor newStage(int threads, int queueCapacity) {
+		return new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						Math.max(1, queueCapacity)), BLOCK);
+	}
+
+	/**
+	 * Hands a batch of records to the parse stage. Blocks while the parse
+	 * stage is full.
+	 *
+	 * @param records
+	 *            The records of a KCL batch, must not be empty
+	 * @param metrics
+	 *            The metrics of the shard of the records
+	 * @return The ticket of the batch
+	 */
+	public Ticket submit(List<Record> records, ShardMetrics metrics) {
+		Ticket ticket = new Ticket(records, metrics);
+		execute(ticket);
+		return ticket;
+	}
+
+	/**
+	 * Hands the batch of a failed ticket to the parse stage again. The
+	 * readings that reached the buffer the first time are dropped as
+	 * duplicates. Blocks while the parse stage is full.
+	 *
+	 * @param ticket
+	 *            A ticket that failed and whose stages have all finished
+	 */
+	public void resubmit(Ticket ticket) {
+		if (!ticket.failed || ticket.pendingTasks.get() != 0) {
+			throw new IllegalStateException(
+					"Only finished failed batches can be resubmitted");
+		}
+		ticket.failed = false;
+		ticket.pendingTasks.set(1);
+		execute(ticket);
+	}
+
+	/**
+	 * Gives up a failed batch: the ticket counts as done, so the batch is
+	 * checkpointed with the following ones. The readings of the batch that
+	 * did not reach the buffer are lost.
+	 *
+	 * @param ticket
+	 *            A ticket that failed and whose stages have all finished
+	 */
+	public void skip(Ticket ticket) {
+		if (!ticket.failed || ticket.pendingTasks.get() != 0) {
+			throw new IllegalStateException(
+					"Only finished failed batches can be skipped");
+		}
+		ticket.failed = false;
+		skippedBatches.getAndIncrement();
+	}
+
+	private void execute(final Ticket ticket) {
+		try {
+			parsers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						persist(parse(ticket.records, ticket.metrics), ticket,
+								ticket.metrics);
+					} catch (RuntimeException e) {
+						LOG.error("Error parsing records", e);
+						ticket.failed = true;
+					} finally {
+						ticket.taskDone();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Nobody must wait for the ticket forever
+			ticket.failed = true;
+			ticket.taskDone();
+			throw e;
+		}
+	}
+
+	/**
+	 * The parse stage: decodes the records in place into a columnar batch.
+	 * Both the binary and the legacy text format are accepted. Records that
+	 * cannot be decoded are counted and skipped, as are the records the
+	 * producer put while calibrating the KPL (see {@link KplAutoTuner}).
+	 */
+	private ReadingBatch parse(List<Record> records, ShardMetrics metrics) {
+		long start = System.nanoTime();
+		int failed = 0;
+		ReadingBatch batch = new ReadingBatch(records.size());
+		TemperatureReading reading = new TemperatureReading();
+		SensorNameDictionary names = sensorNames.get();
+		for (Record r : records) {
+			if (r.getPartitionKey().startsWith(
+					KplAutoTuner.CALIBRATION_PARTITION_KEY_PREFIX)) {
+				continue;
+			}
+			long run;
+			try {
+				// Get the timestamp of this run from the partition key.
+				run = Long.parseLong(r.getPartitionKey());
+				TemperatureRecordCodec.decode(r.getData(), reading, names);
+			} catch (IllegalArgumentException e) {
+				// Also covers the NumberFormatException of the partition key
+				long failures = parseFailures.incrementAndGet();
+				failed++;
+				LOG.warn(String.format(
+						"Skipping record %s, which cannot be parsed (%d so far)",
+						r.getSequenceNumber(), failures), e);
+				continue;
+			}
+			batch.add(run, reading);
+		}
+		metrics.parsed(System.nanoTime() - start, failed);
+		return batch;
+	}
+
+	/**
+	 * @return Number of records that were skipped because they could not be
+	 *         parsed
+	 */
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	/**
+	 * @return Number of failed batches that were given up
+	 */
+	public long getSkippedBatches() {
+		return skippedBatches.get();
+	}
+
+	/**
+	 * @return The tracker of the sequence numbers of the readings
+	 */
+	public SequenceTracker getSequenceTracker() {
+		return sequences;
+	}
+
+	/**
+	 * Splits a parsed batch by sensor and hands the parts to their stripes.
+	 */
+	private void persist(ReadingBatch batch, final Ticket ticket,
+			final ShardMetrics metrics) {
+		ReadingBatch[] parts = new ReadingBatch[stripes.length];
+		for (int i = 0; i < batch.size(); i++) {
+			int stripe = (batch.getSensor(i).hashCode() & Integer.MAX_VALUE)
+					% stripes.length;
+			if (parts[stripe] == null) {
+				parts[stripe] = new ReadingBatch(batch.size() / stripes.length
+						+ 1);
+			}
+			parts[stripe].add(batch, i);
+		}
+		for (int stripe = 0; stripe < parts.length; stripe++) {
+			final ReadingBatch part = parts[stripe];
+			if (part == null) {
+				continue;
+			}
+			ticket.pendingTasks.getAndIncrement();
+			try {
+				stripes[stripe].execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							store(part, metrics);
+						} catch (RuntimeException e) {
+							LOG.error("Error persisting readings", e);
+							ticket.failed = true;
+						} finally {
+							ticket.taskDone();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The pipeline is closed, nobody must wait for the ticket
+				// forever
+				LOG.warn("Unable to persist readings: " + e.getMessage());
+				ticket.failed = true;
+				ticket.taskDone();
+			}
+		}
+	}
+
+	/**
+	 * The persist stage: tracks the sequence numbers of a stripe, drops the
+	 * duplicates and hands the other readings to the buffer and the rollups.
+	 * If a reading cannot be handed over, its sequence number is forgotten
+	 * again, so that it is not dropped as a duplicate when the batch is
+	 * processed again. The latency from the producer to this stage is recorded
+	 * for every reading that is not a duplicate.
+	 */
+	private void store(ReadingBatch part, ShardMetrics metrics) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < part.size(); i++) {
+			String sensor = part.getSensor(i);
+			long run = part.getRun(i);
+			long sequenceNumber = part.getSequenceNumber(i);
+			if (!sequences.accept(sensor, run, sequenceNumber)) {
+				continue;
+			}
+			long producedAt = part.getProducedAt(i);
+			try {
+				if (part.isSummary(i)) {
+					// Summaries of a window are stored next to the readings,
+					// in a map keyed by the start of the window
+					buffer.addSummary(run, sensor,
+							String.valueOf(part.getTimestamp(i)),
+							part.getSummary(i), metrics, producedAt);
+				} else {
+					// Sensors in dead-band mode only send changes and
+					// heartbeats. Each reading holds until the next one, so
+					// the sparse readings already are the step function, but
+					// their means are weighted by time.
+					buffer.addTemperature(run, sensor, part.getTimestamp(i),
+							part.getTemperature(i), part.isChangeOnly(i),
+							metrics, producedAt);
+				}
+				rollups.add(sensor, part.getTimestamp(i), part.getCount(i),
+						part.getMin(i), part.getMax(i), part.getMean(i),
+						part.getTemperature(i), part.isChangeOnly(i));
+			} catch (RuntimeException e) {
+				sequences.forget(sensor, run, sequenceNumber);
+				throw e;
+			}
+			consumer.runSeen(run);
+			metrics.received(sensor, now - producedAt);
+			alerts.evaluate(sensor, part.getTimestamp(i), part.getMin(i),
+					part.getMax(i), part.getMean(i));
+			consumer.logResults(run, sensor, part.getTemperature(i));
+		}
+	}
+
+	/**
+	 * Stops the stages after the submitted batches are done.
+	 */
+	@Override
+	public void close() {
+		parsers.shutdown();
+		try {
+			parsers.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (ExecutorService stripe : stripes) {
+			stripe.shutdown();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * Decides which readings of a slice of a {@link SensorFleet} are put into the
+ * stream.
+ *
+ * <p>
+ * A reading is only emitted if its temperature differs from the last emitted
+ * temperature of the sensor by more than the threshold, or if the heartbeat
+ * interval has passed since the last emitted reading. Every emitted reading
+ * therefore holds until the next one, and the series can be reconstructed as
+ * a step function without losing any information beyond the threshold. Like
+ * the fleet, the state of the sensors is kept in primitive arrays, and a
+ * filter must only be used by the thread owning the slice.
+ *
+ * @author hhagmans
+ *
+ */
+public class DeadBandFilter {
+
+	private static final double EPSILON = 1e-9;
+
+	private final int from;
+
+	private final double threshold;
+
+	private final long heartbeatMillis;
+
+	private final double[] lastTemperatures;
+
+	private final long[] lastTimestamps;
+
+	private final boolean[] emitted;
+
+	/**
+	 * @param from
+	 *            Id of the first sensor of the slice (inclusive)
+	 * @param to
+	 *            Id of the last sensor of the slice (exclusive)
+	 * @param threshold
+	 *            A reading is emitted if it differs from the last emitted
+	 *            reading by more than this number of degrees
+	 * @param heartbeatMillis
+	 *            A reading is emitted if the last emitted reading of the sensor
+	 *            is at least this number of milliseconds old
+	 */
+	public DeadBandFilter(int from, int to, double threshold,
+			long heartbeatMillis) {
+		this.from = from;
+		this.threshold = threshold;
+		this.heartbeatMillis = heartbeatMillis;
+		lastTemperatures = new double[to - from];
+		lastTimestamps = new long[to - from];
+		emitted = new boolean[to - from];
+	}
+
+	/**
+	 * Checks whether a reading has to be emitted, and if so, remembers it as
+	 * the last emitted reading of its sensor.
+	 *
+	 * @param sensor
+	 *            Id of the sensor
+	 * @param temperature
+	 *            The temperature of the reading
+	 * @param timestamp
+	 *            Time in milliseconds at which the reading was produced
+	 * @return {@code true} if the reading has to be emitted
+	 */
+	public boolean accept(int sensor, double temperature, long timestamp) {
+		int i = sensor - from;
+		// The temperatures are multiples of 0.1, so allow for rounding errors
+		if (emitted[i]
+				&& Math.abs(temperature - lastTemperatures[i]) <= threshold
+						+ EPSILON
+				&& timestamp - lastTimestamps[i] < heartbeatMillis) {
+			return false;
+		}
+		emitted[i] = true;
+		lastTemperatures[i] = temperature;
+		lastTimestamps[i] = timestamp;
+		return true;
+	}
+}
@@ -5,9 +5,6 @@ import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 
@@ -31,16 +28,14 @@ public class DeleteResources {
 
 		Region region = RegionUtils.getRegion(TemperatureProducer.REGION);
 		AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
-		AmazonDynamoDB amazonDynamoDB = new AmazonDynamoDBClient(
-				credentialsProvider, new ClientConfiguration());
-		AmazonDynamoDBClient client = new AmazonDynamoDBClient();
-		client.setRegion(region);
-		DynamoDB dynamoDB = new DynamoDB(client);
-		amazonDynamoDB.setRegion(region);
-		DynamoDBUtils dbUtils = new DynamoDBUtils(dynamoDB, amazonDynamoDB,
-				client);
+		DynamoDBUtils dbUtils = DynamoDBClients.getDynamoDBUtils();
 		dbUtils.deleteTable(db_name);
 		dbUtils.deleteTable(TemperatureConsumer.tableName);
+		dbUtils.deleteTable(DynamoDBUtils
+				.getExpiryTableName(TemperatureConsumer.tableName));
+		dbUtils.deleteTable(TemperatureConsumer.legacyTableName);
+		dbUtils.deleteTable(TemperatureConsumer.rollupTableName);
+		DynamoDBClients.shutdown();
 
 		AmazonKinesis kinesis = new AmazonKinesisClient(credentialsProvider,
 				new ClientConfiguration());
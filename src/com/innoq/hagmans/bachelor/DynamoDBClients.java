@@ -0,0 +1,102 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+
+/**
+ * Process-wide registry of the Amazon DynamoDB client, so that all record
+ * processors, the servlet and the tools share one warm HTTP connection pool
+ * instead of creating their own clients.
+ * 
+ * <p>
+ * The client is an {@link AmazonDynamoDBAsyncClient}, whose requests run on a
+ * thread pool of the same size as its connection pool. A semaphore limits the
+ * number of asynchronous requests in flight, so a large flush cannot queue up
+ * an unbounded number of requests.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class DynamoDBClients {
+
+	/**
+	 * Maximum number of HTTP connections to DynamoDB
+	 */
+	private static final int MAX_CONNECTIONS = Integer.getInteger(
+			"dynamodb.max.connections", 50);
+
+	/**
+	 * Maximum number of asynchronous requests in flight
+	 */
+	private static final int MAX_IN_FLIGHT = Integer.getInteger(
+			"dynamodb.max.in.flight", 32);
+
+	/**
+	 * Length of the time buckets in which the readings of a sensor are
+	 * stored. Must not change for an existing table.
+	 */
+	private static final long BUCKET_MILLIS = TimeUnit.SECONDS.toMillis(Integer
+			.getInteger("bucket.seconds", 3600));
+
+	/**
+	 * Number of days the readings and minute rollups are kept after the end
+	 * of their bucket or window, 0 to keep them forever
+	 */
+	private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(Integer
+			.getInteger("retention.days", 0));
+
+	private static AmazonDynamoDBAsyncClient client;
+
+	private static DynamoDBUtils dbUtils;
+
+	private DynamoDBClients() {
+	}
+
+	/**
+	 * @return The shared client, which is created on the first call
+	 */
+	public static synchronized AmazonDynamoDBAsyncClient getClient() {
+		if (client == null) {
+			ClientConfiguration config = new ClientConfiguration()
+					.withMaxConnections(MAX_CONNECTIONS)
+					.withConnectionTimeout(5000).withSocketTimeout(10000)
+					.withMaxErrorRetry(5).withTcpKeepAlive(true)
+					.withConnectionTTL(60000);
+			ExecutorService executor = Executors
+					.newFixedThreadPool(MAX_CONNECTIONS);
+			client = new AmazonDynamoDBAsyncClient(
+					new DefaultAWSCredentialsProviderChain(), config, executor);
+			client.setRegion(RegionUtils.getRegion(TemperatureProducer.REGION));
+		}
+		return client;
+	}
+
+	/**
+	 * @return The shared utility instance, which uses the shared client
+	 */
+	public static synchronized DynamoDBUtils getDynamoDBUtils() {
+		if (dbUtils == null) {
+			dbUtils = new DynamoDBUtils(getClient(), new Semaphore(
+					MAX_IN_FLIGHT), BUCKET_MILLIS, RETENTION_MILLIS);
+		}
+		return dbUtils;
+	}
+
+	/**
+	 * Shuts down the shared client and its thread pool.
+	 */
+	public static synchronized void shutdown() {
+		if (client != null) {
+			client.shutdown();
+			client = null;
+			dbUtils = null;
+		}
+	}
+}
@@ -15,37 +15,67 @@ package com.innoq.hagmans.bachelor;
  * permissions and limitations under the License.
  */
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.ItemCollection;
-import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
 import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * Utility methods for interacting with Amazon DynamoDB for this application.
@@ -54,59 +84,183 @@ public class DynamoDBUtils {
 	private static final Log LOG = LogFactory.getLog(DynamoDBUtils.class);
 
 	private static final String ATTRIBUTE_NAME_HASH_KEY = "sensor";
-	private static final String ATTRIBUTE_NAME_RANGE_KEY = "time_stamp";
+	private static final String ATTRIBUTE_NAME_RANGE_KEY = "bucket";
+	private static final String LEGACY_ATTRIBUTE_NAME_RANGE_KEY = "time_stamp";
+	private static final String ATTRIBUTE_NAME_RUNS = "runs";
 	private static final String ATTRIBUTE_NAME_TEMPERATURE = "temperatures";
+	private static final String ATTRIBUTE_NAME_SERIES = "series";
+	private static final String ATTRIBUTE_NAME_SUMMARIES = "summaries";
+	private static final String ATTRIBUTE_NAME_EXPIRES_AT = "expires_at";
+	private static final String ATTRIBUTE_NAME_VERSION = "version";
+	private static final String ATTRIBUTE_NAME_CHANGE_ONLY = "change_only";
+	private static final String EXPIRY_TABLE_SUFFIX = "Expiry";
+	private static final String EXPIRY_ATTRIBUTE_NAME_HASH_KEY = "bucket_shard";
+	private static final String EXPIRY_ATTRIBUTE_NAME_RANGE_KEY = "sensor";
+
+	/**
+	 * Number of hash keys the expiry index entries of one bucket start are
+	 * spread over, so that the first writes of a bucket period do not all go
+	 * to one partition
+	 */
+	private static final int EXPIRY_SHARDS = 16;
+	private static final String SUMMARY_WINDOW = "window";
+	private static final String SUMMARY_COUNT = "count";
+	private static final String SUMMARY_MIN = "min";
+	private static final String SUMMARY_MAX = "max";
+	private static final String SUMMARY_MEAN = "mean";
+	private static final String SUMMARY_LAST = "last";
+	private static final String ROLLUP_ATTRIBUTE_NAME_HASH_KEY = "series";
+	private static final String ROLLUP_ATTRIBUTE_NAME_RANGE_KEY = "window_start";
+	private static final String ROLLUP_SENSOR = "sensor";
+	private static final String ROLLUP_RESOLUTION = "resolution";
+	private static final String ROLLUP_COUNT = "count";
+	private static final String ROLLUP_MIN = "min";
+	private static final String ROLLUP_MAX = "max";
+	private static final String ROLLUP_SUM = "sum";
+	private static final String ROLLUP_FIRST_TIMESTAMP = "first_ts";
+	private static final String ROLLUP_FIRST = "first";
+	private static final String ROLLUP_LAST_TIMESTAMP = "last_ts";
+	private static final String ROLLUP_LAST = "last";
+	private static final String ROLLUP_HELD_SUM = "held_sum";
+	private static final String ROLLUP_HELD_MILLIS = "held_ms";
+	private static final String ROLLUP_HELD_FROM = "held_ts";
+	private static final String ROLLUP_HELD = "held";
+
+	/**
+	 * Maximum number of keys of a BatchGetItem request
+	 */
+	private static final int BATCH_GET_SIZE = 100;
+
+	/**
+	 * Maximum number of items of a BatchWriteItem request
+	 */
+	private static final int BATCH_WRITE_SIZE = 25;
+
+	/**
+	 * Maximum number of retries of unprocessed keys or items, or of a write
+	 * that conflicted with another consumer, before the request fails
+	 */
+	private static final int MAX_RETRIES = 8;
+
+	private static final long MINUTE_MILLIS = RollupAggregator.Resolution.MINUTE
+			.getMillis();
+
+	private static final long HOUR_MILLIS = RollupAggregator.Resolution.HOUR
+			.getMillis();
 
 	private AmazonDynamoDB amazonDynamoDB;
 	private DynamoDB dynamoDB;
 	private AmazonDynamoDBClient client;
+	private AmazonDynamoDBAsync asyncClient;
+	private Semaphore limiter;
+	private long bucketMillis;
+	private long retentionMillis;
 
 	/**
 	 * Create a new utility instance that uses the provided Amazon DynamoDB
-	 * client.
-	 * 
-	 * @param dynamoDB
-	 * 
-	 * @param amazonDynamoDB
+	 * client. Usually, the shared instance of {@link DynamoDBClients} is used.
 	 * 
 	 * @param client
-	 * 
+	 *            The asynchronous client, which is also used for the
+	 *            synchronous requests
+	 * @param limiter
+	 *            Limits the number of asynchronous requests in flight
+	 * @param bucketMillis
+	 *            Length of the time buckets in milliseconds. Must not change
+	 *            for an existing table.
+	 * @param retentionMillis
+	 *            How long readings and minute rollups are kept after the end
+	 *            of their bucket or window, 0 to keep them forever
 	 */
-	public DynamoDBUtils(DynamoDB dynamoDB, AmazonDynamoDB amazonDynamoDB,
-			AmazonDynamoDBClient client) {
-		if (amazonDynamoDB == null || dynamoDB == null || client == null) {
+	public DynamoDBUtils(AmazonDynamoDBAsyncClient client, Semaphore limiter,
+			long bucketMillis, long retentionMillis) {
+		if (client == null || limiter == null) {
 			throw new NullPointerException("dynamoDB must not be null");
 		}
-		this.amazonDynamoDB = amazonDynamoDB;
-		this.dynamoDB = dynamoDB;
+		if (bucketMillis <= 0) {
+			throw new IllegalArgumentException(
+					"bucketMillis must be positive");
+		}
+		if (retentionMillis < 0) {
+			throw new IllegalArgumentException(
+					"retentionMillis must not be negative");
+		}
+		this.bucketMillis = bucketMillis;
+		this.retentionMillis = retentionMillis;
+		this.amazonDynamoDB = client;
+		this.dynamoDB = new DynamoDB(client);
 		this.client = client;
+		this.asyncClient = client;
+		this.limiter = limiter;
 	}
 
 	/**
 	 * Creates the table to store our temperatures in with a hash key of
-	 * "sensor" and a range key of "timestamp" so we can query counts for a
-	 * given sensor by time. This uses an initial provisioned throughput of 10
-	 * read capacity units and 5 write capacity units
+	 * "sensor" and a numeric range key of "bucket", the start of the time
+	 * bucket in milliseconds, so we can query the temperatures of a sensor by
+	 * time. This uses an initial provisioned throughput of 10 read capacity
+	 * units and 5 write capacity units
 	 * 
 	 * @param tableName
 	 *            The name of the table to create.
 	 */
 	public void createTemperatureTableIfNotExists(String tableName) {
+		// A numeric range key sorts the buckets by time, unlike the strings of
+		// the legacy table
+		createTableIfNotExists(tableName, ATTRIBUTE_NAME_HASH_KEY,
+				ATTRIBUTE_NAME_RANGE_KEY, ScalarAttributeType.N);
+		if (retentionMillis > 0) {
+			createTableIfNotExists(getExpiryTableName(tableName),
+					EXPIRY_ATTRIBUTE_NAME_HASH_KEY,
+					EXPIRY_ATTRIBUTE_NAME_RANGE_KEY, ScalarAttributeType.S);
+		}
+	}
+
+	/**
+	 * The expiry index of a temperature table has an entry per bucket, keyed
+	 * by the start of the bucket and the sensor, so that the compaction finds
+	 * the buckets that expired since its last pass with queries instead of a
+	 * scan of the whole table. It is only written if a retention is set.
+	 * 
+	 * @param tableName
+	 *            The name of the temperature table
+	 * @return The name of its expiry index table
+	 */
+	public static String getExpiryTableName(String tableName) {
+		return tableName + EXPIRY_TABLE_SUFFIX;
+	}
+
+	/**
+	 * Creates the table for the rollups of {@link RollupAggregator} with a
+	 * hash key of "series", the sensor and the length of the window, and a
+	 * numeric range key of "window_start", so we can query the rollups of a
+	 * sensor at one resolution by time.
+	 * 
+	 * @param tableName
+	 *            The name of the table to create.
+	 */
+	public void createRollupTableIfNotExists(String tableName) {
+		createTableIfNotExists(tableName, ROLLUP_ATTRIBUTE_NAME_HASH_KEY,
+				ROLLUP_ATTRIBUTE_NAME_RANGE_KEY, ScalarAttributeType.N);
+	}
+
+	/**
+	 * Creates a table with a string hash key and a range key of the given
+	 * type, unless it exists already, and waits until it is active.
+	 */
+	private void createTableIfNotExists(String tableName, String hashKey,
+			String rangeKey, ScalarAttributeType rangeKeyType) {
 		List<KeySchemaElement> ks = new ArrayList<>();
 		ks.add(new KeySchemaElement().withKeyType(KeyType.HASH)
-				.withAttributeName(ATTRIBUTE_NAME_HASH_KEY));
+				.withAttributeName(hashKey));
 		ks.add(new KeySchemaElement().withKeyType(KeyType.RANGE)
-				.withAttributeName(ATTRIBUTE_NAME_RANGE_KEY));
+				.withAttributeName(rangeKey));
 
 		ArrayList<AttributeDefinition> attributeDefinitions = new ArrayList<>();
 		attributeDefinitions.add(new AttributeDefinition().withAttributeName(
-				ATTRIBUTE_NAME_HASH_KEY).withAttributeType(
-				ScalarAttributeType.S));
-		// Range key must be a String. DynamoDBMapper translates Dates to
-		// ISO8601 strings.
+				hashKey).withAttributeType(ScalarAttributeType.S));
 		attributeDefinitions.add(new AttributeDefinition().withAttributeName(
-				ATTRIBUTE_NAME_RANGE_KEY).withAttributeType(
-				ScalarAttributeType.S));
+				rangeKey).withAttributeType(rangeKeyType));
 
 		// Create the table with enough write IOPS to handle 5 distinct
 		// resources updated every 1 second:
@@ -154,37 +308,574 @@ public class DynamoDBUtils {
 	public void putTemperatures(String tableName,
 			HashMap<String, HashMap<String, String>> temperatureMap,
 			long timestamp) {
+		batchPutTemperatures(tableName, toReadings(temperatureMap),
+				new HashMap<String, HashMap<String, Map<String, Object>>>(),
+				timestamp);
+	}
 
-		Table table = dynamoDB.getTable(tableName);
+	/**
+	 * @param temperatureMap
+	 *            The temperatures per sensor and timestamp as strings
+	 * @return The temperatures per sensor
+	 */
+	private static Map<String, SensorReadings> toReadings(
+			Map<String, ? extends Map<String, String>> temperatureMap) {
+		Map<String, SensorReadings> readings = new HashMap<>();
+		for (Map.Entry<String, ? extends Map<String, String>> sensor : temperatureMap
+				.entrySet()) {
+			SensorReadings sensorReadings = new SensorReadings(sensor
+					.getValue().size());
+			for (Map.Entry<String, String> temperature : sensor.getValue()
+					.entrySet()) {
+				sensorReadings.add(Long.parseLong(temperature.getKey()),
+						Double.parseDouble(temperature.getValue()));
+			}
+			readings.put(sensor.getKey(), sensorReadings);
+		}
+		return readings;
+	}
+
+	/**
+	 * Persists the given temperatures and window summaries on DynamoDB. The
+	 * readings of a sensor are stored in one item per time bucket (see
+	 * {@link #getBucketMillis()}), keyed by the sensor and the start of the
+	 * bucket. The temperatures of a bucket are stored as a compressed series
+	 * (see {@link SeriesCodec}), the summaries in a map of the same item, and
+	 * the timestamp of the run is added to its runs. If a retention is set,
+	 * the item also holds the time in epoch seconds after which it expires
+	 * (see {@link #getRetentionMillis()}).
+	 * 
+	 * <p>
+	 * The current items of up to 100 buckets are read with one BatchGetItem
+	 * request. The stored series is merged with the new readings while it is
+	 * decoded, and every item is written back with a PutItem request that
+	 * only succeeds if its version attribute has not changed since it was
+	 * read. If another consumer wrote the bucket in between, it is read again
+	 * and merged once more, so no readings are lost. All requests are sent
+	 * asynchronously and in parallel, limited by the in-flight limiter, and
+	 * the method only waits for their results. Unprocessed keys and conflicts
+	 * are retried with an exponential backoff, up to eight times, after which
+	 * the method fails and the caller has to write the readings again.
+	 * 
+	 * @param tableName
+	 *            The name of the table, where the records will be persisted
+	 * @param temperatureMap
+	 *            The temperatures per sensor. Of several readings of a
+	 *            sensor with the same timestamp the last one is kept.
+	 * @param summaryMap
+	 *            The summaries per sensor and start of the window
+	 * @param timestamp
+	 *            The timestamp of the run
+	 * @return Number of items written
+	 * @throws AmazonClientException
+	 *             If a request failed or ran out of retries
+	 */
+	public int batchPutTemperatures(String tableName,
+			Map<String, SensorReadings> temperatureMap,
+			Map<String, HashMap<String, Map<String, Object>>> summaryMap,
+			long timestamp) {
+		// Split the readings of every sensor into its buckets
+		Map<String, Map<Long, Bucket>> bucketsBySensor = new HashMap<>();
+		List<Bucket> buckets = new ArrayList<>();
+		for (Map.Entry<String, SensorReadings> sensor : temperatureMap
+				.entrySet()) {
+			SensorReadings readings = sensor.getValue();
+			for (int i = 0; i < readings.size(); i++) {
+				SensorReadings bucketReadings = bucket(bucketsBySensor,
+						buckets, sensor.getKey(), readings.getTimestamp(i)).temperatures;
+				bucketReadings.add(readings.getTimestamp(i),
+						readings.getTemperature(i));
+				if (readings.isChangeOnly()) {
+					bucketReadings.markChangeOnly();
+				}
+			}
+		}
+		for (Map.Entry<String, HashMap<String, Map<String, Object>>> sensor : summaryMap
+				.entrySet()) {
+			for (Map.Entry<String, Map<String, Object>> summary : sensor
+					.getValue().entrySet()) {
+				bucket(bucketsBySensor, buckets, sensor.getKey(),
+						Long.parseLong(summary.getKey())).summaries.put(summary.getKey(),
+						summary.getValue());
+			}
+		}
 
-		for (String sensor : temperatureMap.keySet()) {
-			QuerySpec spec = new QuerySpec().withHashKey(
-					ATTRIBUTE_NAME_HASH_KEY, sensor).withRangeKeyCondition(
-					new RangeKeyCondition(ATTRIBUTE_NAME_RANGE_KEY).eq(String
-							.valueOf(timestamp)));
+		for (Bucket bucket : buckets) {
+			bucket.temperatures.sortDistinct();
+		}
+
+		// Read the current items of all buckets
+		List<Future<BatchGetItemResult>> gets = new ArrayList<>();
+		for (int from = 0; from < buckets.size(); from += BATCH_GET_SIZE) {
+			List<Map<String, AttributeValue>> keys = new ArrayList<>();
+			for (Bucket bucket : buckets.subList(from,
+					Math.min(buckets.size(), from + BATCH_GET_SIZE))) {
+				keys.add(key(bucket));
+			}
+			Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+			requestItems.put(tableName, new KeysAndAttributes().withKeys(keys));
+			limiter.acquireUninterruptibly();
+			gets.add(asyncClient.batchGetItemAsync(new BatchGetItemRequest()
+					.withRequestItems(requestItems),
+					this.<BatchGetItemRequest, BatchGetItemResult> release()));
+		}
+		for (Future<BatchGetItemResult> get : gets) {
+			BatchGetItemResult result = await(get);
+			for (int attempt = 0;; attempt++) {
+				List<Map<String, AttributeValue>> items = result
+						.getResponses().get(tableName);
+				if (items != null) {
+					for (Item item : InternalUtils.toItemList(items)) {
+						Map<Long, Bucket> sensorBuckets = bucketsBySensor
+								.get(item.getString(ATTRIBUTE_NAME_HASH_KEY));
+						Bucket bucket = sensorBuckets == null ? null
+								: sensorBuckets.get(item
+										.getLong(ATTRIBUTE_NAME_RANGE_KEY));
+						if (bucket != null) {
+							bucket.existing = item;
+						}
+					}
+				}
+				Map<String, KeysAndAttributes> unprocessed = result
+						.getUnprocessedKeys();
+				if (unprocessed == null || unprocessed.isEmpty()) {
+					break;
+				}
+				backoff(attempt, "reading the buckets");
+				result = amazonDynamoDB.batchGetItem(new BatchGetItemRequest()
+						.withRequestItems(unprocessed));
+			}
+		}
 
-			ItemCollection<QueryOutcome> items = table.query(spec);
+		// Index the new buckets by their start, before they are written, so
+		// that the compaction finds every bucket without a scan
+		if (retentionMillis > 0) {
+			List<Item> entries = new ArrayList<>();
+			for (Bucket bucket : buckets) {
+				if (bucket.existing == null) {
+					entries.add(new Item()
+							.withPrimaryKey(
+									EXPIRY_ATTRIBUTE_NAME_HASH_KEY,
+									expiryKey(bucket.start, bucket.sensor),
+									EXPIRY_ATTRIBUTE_NAME_RANGE_KEY,
+									bucket.sensor)
+							.withLong(ATTRIBUTE_NAME_EXPIRES_AT,
+									expiresAt(bucket.start + bucketMillis)));
+				}
+			}
+			writeItems(getExpiryTableName(tableName), entries);
+		}
 
-			Iterator<Item> iterator = items.iterator();
-			Item item = null;
-			Map<String, String> temperatures = null;
-			while (iterator.hasNext()) {
-				item = iterator.next();
-				temperatures = item.getMap(ATTRIBUTE_NAME_TEMPERATURE);
+		// Merge the new readings and write the items back
+		List<Future<PutItemResult>> puts = new ArrayList<>(buckets.size());
+		for (Bucket bucket : buckets) {
+			limiter.acquireUninterruptibly();
+			puts.add(asyncClient.putItemAsync(
+					putRequest(tableName, bucket, timestamp),
+					this.<PutItemRequest, PutItemResult> release()));
+		}
+		// Wait for all writes before failing, so that none is still in flight
+		// when the caller writes the readings again
+		RuntimeException failure = null;
+		for (int i = 0; i < buckets.size(); i++) {
+			try {
+				try {
+					await(puts.get(i));
+				} catch (ConditionalCheckFailedException e) {
+					rewrite(tableName, buckets.get(i), timestamp);
+				}
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
 			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return buckets.size();
+	}
 
-			if (temperatures == null) {
-				temperatures = new HashMap<>();
+	/**
+	 * Merges the new readings of a bucket into its current item again after
+	 * another consumer wrote the bucket, until the write succeeds.
+	 * 
+	 * @throws AmazonClientException
+	 *             If a request failed, or the bucket was still written by
+	 *             another consumer after the last retry
+	 */
+	private void rewrite(String tableName, Bucket bucket, long timestamp) {
+		for (int attempt = 0;; attempt++) {
+			GetItemResult result = amazonDynamoDB.getItem(new GetItemRequest()
+					.withTableName(tableName).withKey(key(bucket))
+					.withConsistentRead(true));
+			bucket.existing = result.getItem() == null ? null : InternalUtils
+					.toItemList(Collections.singletonList(result.getItem()))
+					.get(0);
+			try {
+				amazonDynamoDB.putItem(putRequest(tableName, bucket, timestamp));
+				return;
+			} catch (ConditionalCheckFailedException e) {
+				backoff(attempt, "writing the bucket of " + bucket.sensor
+						+ " at " + bucket.start);
 			}
-			temperatures.putAll(temperatureMap.get(sensor));
-			table.putItem(new Item()
-					.withPrimaryKey(ATTRIBUTE_NAME_HASH_KEY, sensor,
-							ATTRIBUTE_NAME_RANGE_KEY, String.valueOf(timestamp))
-					.withMap(ATTRIBUTE_NAME_TEMPERATURE, temperatures));
-			System.out.println("PutItem succeeded!");
 		}
 	}
 
+	/**
+	 * @return Request that writes the merged item of a bucket if its version
+	 *         is still the one of the current item
+	 */
+	private PutItemRequest putRequest(String tableName, Bucket bucket,
+			long timestamp) {
+		long version = bucket.existing == null
+				|| !bucket.existing.isPresent(ATTRIBUTE_NAME_VERSION) ? 0
+				: bucket.existing.getLong(ATTRIBUTE_NAME_VERSION);
+		PutItemRequest request = new PutItemRequest()
+				.withTableName(tableName)
+				.withItem(
+						InternalUtils.toAttributeValues(mergeItem(bucket,
+								timestamp).withLong(ATTRIBUTE_NAME_VERSION,
+								version + 1)))
+				.addExpressionAttributeNamesEntry("#version",
+						ATTRIBUTE_NAME_VERSION);
+		// Items written before the version was introduced have none either
+		if (version == 0) {
+			request.withConditionExpression("attribute_not_exists(#version)");
+		} else {
+			request.withConditionExpression("#version = :version")
+					.addExpressionAttributeValuesEntry(":version",
+							new AttributeValue().withN(String.valueOf(version)));
+		}
+		return request;
+	}
+
+	/**
+	 * @return The primary key of the item of a bucket
+	 */
+	private static Map<String, AttributeValue> key(Bucket bucket) {
+		Map<String, AttributeValue> key = new HashMap<>();
+		key.put(ATTRIBUTE_NAME_HASH_KEY, new AttributeValue(bucket.sensor));
+		key.put(ATTRIBUTE_NAME_RANGE_KEY,
+				new AttributeValue().withN(String.valueOf(bucket.start)));
+		return key;
+	}
+
+	/**
+	 * Writes items with asynchronous BatchWriteItem requests of up to 25 items
+	 * each, which are sent in parallel, limited by the in-flight limiter.
+	 * Unprocessed items are retried with an exponential backoff.
+	 * 
+	 * @throws AmazonClientException
+	 *             If a request failed
+	 */
+	private void writeItems(String tableName, List<Item> items) {
+		List<Future<BatchWriteItemResult>> writes = new ArrayList<>();
+		for (int from = 0; from < items.size(); from += BATCH_WRITE_SIZE) {
+			List<WriteRequest> requests = new ArrayList<>();
+			for (Item item : items.subList(from,
+					Math.min(items.size(), from + BATCH_WRITE_SIZE))) {
+				requests.add(new WriteRequest(new PutRequest(InternalUtils
+						.toAttributeValues(item))));
+			}
+			Map<String, List<WriteRequest>> requestItems = new HashMap<>();
+			requestItems.put(tableName, requests);
+			limiter.acquireUninterruptibly();
+			writes.add(asyncClient.batchWriteItemAsync(
+					new BatchWriteItemRequest().withRequestItems(requestItems),
+					this.<BatchWriteItemRequest, BatchWriteItemResult> release()));
+		}
+		for (Future<BatchWriteItemResult> write : writes) {
+			BatchWriteItemResult result = await(write);
+			for (int attempt = 0;; attempt++) {
+				Map<String, List<WriteRequest>> unprocessed = result
+						.getUnprocessedItems();
+				if (unprocessed == null || unprocessed.isEmpty()) {
+					break;
+				}
+				backoff(attempt, "writing the items");
+				result = amazonDynamoDB
+						.batchWriteItem(new BatchWriteItemRequest()
+								.withRequestItems(unprocessed));
+			}
+		}
+	}
+
+	/**
+	 * The new readings of a sensor in a time bucket.
+	 */
+	private static class Bucket {
+		final String sensor;
+		final long start;
+		/**
+		 * The new readings, sorted and distinct once all are added
+		 */
+		final SensorReadings temperatures = new SensorReadings(4);
+		final Map<String, Map<String, Object>> summaries = new HashMap<>();
+		Item existing;
+
+		Bucket(String sensor, long start) {
+			this.sensor = sensor;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * @return The bucket of the reading of a sensor at the given timestamp,
+	 *         which is created if it is not there yet
+	 */
+	private Bucket bucket(Map<String, Map<Long, Bucket>> bucketsBySensor,
+			List<Bucket> buckets, String sensor, long timestamp) {
+		Map<Long, Bucket> sensorBuckets = bucketsBySensor.get(sensor);
+		if (sensorBuckets == null) {
+			sensorBuckets = new HashMap<>();
+			bucketsBySensor.put(sensor, sensorBuckets);
+		}
+		long start = bucketOf(timestamp);
+		Bucket bucket = sensorBuckets.get(start);
+		if (bucket == null) {
+			bucket = new Bucket(sensor, start);
+			sensorBuckets.put(start, bucket);
+			buckets.add(bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return The hash key of the expiry index entry of a bucket
+	 */
+	private static String expiryKey(long start, String sensor) {
+		return start + "#"
+				+ (sensor.hashCode() & Integer.MAX_VALUE) % EXPIRY_SHARDS;
+	}
+
+	/**
+	 * @param timestamp
+	 *            A timestamp in milliseconds
+	 * @return Start of the bucket that holds the timestamp
+	 */
+	public long bucketOf(long timestamp) {
+		long offset = timestamp % bucketMillis;
+		return timestamp - (offset < 0 ? offset + bucketMillis : offset);
+	}
+
+	/**
+	 * @return Length of the time buckets in milliseconds
+	 */
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	/**
+	 * @return How long readings and minute rollups are kept after the end of
+	 *         their bucket or window in milliseconds, 0 if they are kept
+	 *         forever
+	 */
+	public long getRetentionMillis() {
+		return retentionMillis;
+	}
+
+	/**
+	 * @param end
+	 *            End of a bucket or window in milliseconds
+	 * @return The time in epoch seconds after which the data of the bucket or
+	 *         window expires, which is the format the time to live of DynamoDB
+	 *         expects
+	 */
+	private long expiresAt(long end) {
+		return TimeUnit.MILLISECONDS.toSeconds(end + retentionMillis);
+	}
+
+	/**
+	 * @return Handler that releases a permit of the limiter when the request
+	 *         has completed
+	 */
+	private <REQUEST extends AmazonWebServiceRequest, RESULT> AsyncHandler<REQUEST, RESULT> release() {
+		return new AsyncHandler<REQUEST, RESULT>() {
+			@Override
+			public void onSuccess(REQUEST request, RESULT result) {
+				limiter.release();
+			}
+
+			@Override
+			public void onError(Exception exception) {
+				limiter.release();
+			}
+		};
+	}
+
+	/**
+	 * Waits for the result of an asynchronous request.
+	 * 
+	 * @throws AmazonClientException
+	 *             If the request failed
+	 */
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException(
+					"Interrupted while waiting for a request", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof AmazonClientException) {
+				throw (AmazonClientException) e.getCause();
+			}
+			throw new AmazonClientException("Request failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Merges the new temperatures and summaries of a bucket into its current
+	 * item. The stored series is decoded reading by reading and merged with
+	 * the sorted new readings into the new series, a new reading replaces a
+	 * stored one with the same timestamp.
+	 * 
+	 * @param bucket
+	 *            The bucket with the new readings and its current item, if
+	 *            there is one
+	 * @param timestamp
+	 *            The timestamp of the run
+	 * @return The merged item, without a version
+	 */
+	private Item mergeItem(Bucket bucket, long timestamp) {
+		SensorReadings temperatures = bucket.temperatures;
+		ByteBuffer stored = null;
+		Map<String, Object> summaries = null;
+		Set<Number> runs = new HashSet<>();
+		Item existing = bucket.existing;
+		if (existing != null) {
+			if (existing.isPresent(ATTRIBUTE_NAME_SERIES)) {
+				stored = existing.getByteBuffer(ATTRIBUTE_NAME_SERIES);
+			}
+			// Items written before the series was introduced hold a map,
+			// which is converted now
+			if (existing.isPresent(ATTRIBUTE_NAME_TEMPERATURE)) {
+				Map<String, Object> legacy = existing
+						.getMap(ATTRIBUTE_NAME_TEMPERATURE);
+				temperatures = new SensorReadings(legacy.size()
+						+ bucket.temperatures.size());
+				for (Map.Entry<String, Object> temperature : legacy.entrySet()) {
+					temperatures.add(Long.parseLong(temperature.getKey()),
+							Double.parseDouble(String.valueOf(temperature
+									.getValue())));
+				}
+				// The new readings are added last, so they are kept
+				temperatures.addAll(bucket.temperatures);
+				temperatures.sortDistinct();
+			}
+			summaries = existing.getMap(ATTRIBUTE_NAME_SUMMARIES);
+			if (existing.isPresent(ATTRIBUTE_NAME_RUNS)) {
+				for (BigDecimal run : existing
+						.getNumberSet(ATTRIBUTE_NAME_RUNS)) {
+					runs.add(run.longValue());
+				}
+			}
+		}
+		if (summaries == null) {
+			summaries = new HashMap<>();
+		}
+		summaries.putAll(bucket.summaries);
+		runs.add(timestamp);
+		SeriesCodec.Encoder series;
+		if (stored == null) {
+			series = new SeriesCodec.Encoder(temperatures.size());
+			for (int i = 0; i < temperatures.size(); i++) {
+				series.append(temperatures.getTimestamp(i),
+						temperatures.getTemperature(i));
+			}
+		} else {
+			// A stored reading takes about two bytes
+			series = new SeriesCodec.Encoder(stored.remaining() / 2
+					+ temperatures.size());
+			SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(stored);
+			boolean more = decoder.next();
+			for (int i = 0; i < temperatures.size(); i++) {
+				long next = temperatures.getTimestamp(i);
+				while (more && decoder.getTimestamp() < next) {
+					series.append(decoder.getTimestamp(),
+							decoder.getTemperature());
+					more = decoder.next();
+				}
+				while (more && decoder.getTimestamp() == next) {
+					more = decoder.next();
+				}
+				series.append(next, temperatures.getTemperature(i));
+			}
+			while (more) {
+				series.append(decoder.getTimestamp(), decoder.getTemperature());
+				more = decoder.next();
+			}
+		}
+		Item item = new Item()
+				.withPrimaryKey(ATTRIBUTE_NAME_HASH_KEY, bucket.sensor,
+						ATTRIBUTE_NAME_RANGE_KEY, bucket.start)
+				.withBinary(ATTRIBUTE_NAME_SERIES, series.toByteArray())
+				.withNumberSet(ATTRIBUTE_NAME_RUNS, runs);
+		if (!summaries.isEmpty()) {
+			item.withMap(ATTRIBUTE_NAME_SUMMARIES, summaries);
+		}
+		// Marks the series as readings that hold until the next one, so the
+		// downsampling weighs them by time
+		if (bucket.temperatures.isChangeOnly()
+				|| (existing != null
+						&& existing.isPresent(ATTRIBUTE_NAME_CHANGE_ONLY) && existing
+							.getBoolean(ATTRIBUTE_NAME_CHANGE_ONLY))) {
+			item.withBoolean(ATTRIBUTE_NAME_CHANGE_ONLY, true);
+		}
+		if (retentionMillis > 0) {
+			item.withLong(ATTRIBUTE_NAME_EXPIRES_AT,
+					expiresAt(bucket.start + bucketMillis));
+		}
+		return item;
+	}
+
+	/**
+	 * Waits before the next attempt of a batch request, 50 ms for the first
+	 * retry, doubling up to 3.2 seconds.
+	 * 
+	 * @param attempt
+	 *            Number of the retry, starting at 0
+	 * @param request
+	 *            What the request does, for the exception
+	 * @throws AmazonClientException
+	 *             If all retries are used up, so the caller fails instead of
+	 *             holding back the buffer and the checkpoints
+	 */
+	private static void backoff(int attempt, String request) {
+		if (attempt >= MAX_RETRIES) {
+			throw new AmazonClientException("Gave up " + request + " after "
+					+ MAX_RETRIES + " retries");
+		}
+		try {
+			Thread.sleep(50L << Math.min(attempt, 6));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while retrying a batch request", e);
+		}
+	}
+
+	/**
+	 * Converts the summary of a window into the map that is stored in the
+	 * summaries of an item.
+	 * 
+	 * @param summary
+	 *            A decoded summary record
+	 * @return Map with the length of the window in milliseconds, the number of
+	 *         readings and the min, max, mean and last temperature
+	 */
+	public static Map<String, Object> toSummary(TemperatureReading summary) {
+		Map<String, Object> map = new HashMap<>();
+		map.put(SUMMARY_WINDOW, summary.getWindowMillis());
+		map.put(SUMMARY_COUNT, summary.getCount());
+		map.put(SUMMARY_MIN, summary.getMin());
+		map.put(SUMMARY_MAX, summary.getMax());
+		map.put(SUMMARY_MEAN, summary.getMean());
+		map.put(SUMMARY_LAST, summary.getTemperature());
+		return map;
+	}
+
 	/**
 	 * Gibt eine @HashMap mit allen Temperaturen zurück für den übergebenen
 	 * Sensor
@@ -197,27 +888,107 @@ public class DynamoDBUtils {
 	 */
 	public HashMap<String, HashMap<String, Object>> getTemperaturesForSensor(
 			String sensor, String tableName) {
+		return getTemperaturesForSensor(sensor, tableName, Long.MIN_VALUE,
+				Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the temperatures of a sensor between two timestamps. Only the
+	 * buckets that overlap the range are read.
+	 * 
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param tableName
+	 *            The name of the table
+	 * @param from
+	 *            First timestamp in milliseconds, inclusive
+	 * @param to
+	 *            Last timestamp in milliseconds, inclusive
+	 * @return The temperatures of the sensor per timestamp of the run and
+	 *         timestamp of the reading, like
+	 *         {@link #getTemperaturesForSensor(String, String)}
+	 */
+	public HashMap<String, HashMap<String, Object>> getTemperaturesForSensor(
+			String sensor, String tableName, long from, long to) {
 		Table table = dynamoDB.getTable(tableName);
 
 		QuerySpec spec = new QuerySpec().withHashKey(ATTRIBUTE_NAME_HASH_KEY,
 				sensor);
+		if (from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+			spec.withRangeKeyCondition(new RangeKeyCondition(
+					ATTRIBUTE_NAME_RANGE_KEY).between(bucketOf(from),
+					bucketOf(to)));
+		}
 
-		ItemCollection<QueryOutcome> items = table.query(spec);
-
-		Iterator<Item> iterator = items.iterator();
-		Item item = null;
 		HashMap<String, HashMap<String, Object>> temperatureMap = new HashMap<>();
-		while (iterator.hasNext()) {
-			item = iterator.next();
-			temperatureMap.put(item.getString(ATTRIBUTE_NAME_RANGE_KEY),
-					new HashMap<>(item.getMap(ATTRIBUTE_NAME_TEMPERATURE)));
+		for (Item item : table.query(spec)) {
+			addTemperatures(item, temperatureMap, from, to);
 		}
-
 		return temperatureMap;
 	}
 
 	/**
-	 * Returns a @HashMap with all temperatures for all sensors
+	 * Adds the temperatures of a bucket between two timestamps to the
+	 * temperatures of its sensor. Windows summarized by the producer are shown
+	 * with their mean temperature at the start of the window. Every reading is
+	 * assigned to the latest run that started before it.
+	 */
+	private static void addTemperatures(Item item,
+			HashMap<String, HashMap<String, Object>> temperatureMap,
+			long from, long to) {
+		Map<String, Object> readings = new HashMap<>();
+		if (item.isPresent(ATTRIBUTE_NAME_SUMMARIES)) {
+			Map<String, Map<String, Object>> summaries = item
+					.getMap(ATTRIBUTE_NAME_SUMMARIES);
+			for (Map.Entry<String, Map<String, Object>> summary : summaries
+					.entrySet()) {
+				readings.put(summary.getKey(),
+						summary.getValue().get(SUMMARY_MEAN));
+			}
+		}
+		if (item.isPresent(ATTRIBUTE_NAME_TEMPERATURE)) {
+			readings.putAll(item.<Object> getMap(ATTRIBUTE_NAME_TEMPERATURE));
+		}
+
+		TreeSet<Long> runs = new TreeSet<>();
+		for (BigDecimal run : item.getNumberSet(ATTRIBUTE_NAME_RUNS)) {
+			runs.add(run.longValue());
+		}
+		for (Map.Entry<String, Object> reading : readings.entrySet()) {
+			addTemperature(temperatureMap, runs,
+					Long.parseLong(reading.getKey()), reading.getValue(),
+					from, to);
+		}
+		if (item.isPresent(ATTRIBUTE_NAME_SERIES)) {
+			SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(
+					item.getByteBuffer(ATTRIBUTE_NAME_SERIES));
+			while (decoder.next()) {
+				addTemperature(temperatureMap, runs, decoder.getTimestamp(),
+						decoder.getTemperature(), from, to);
+			}
+		}
+	}
+
+	private static void addTemperature(
+			HashMap<String, HashMap<String, Object>> temperatureMap,
+			TreeSet<Long> runs, long timestamp, Object temperature, long from,
+			long to) {
+		if (timestamp < from || timestamp > to) {
+			return;
+		}
+		Long run = runs.floor(timestamp);
+		String runKey = String.valueOf(run != null ? run : runs.first());
+		HashMap<String, Object> temperatures = temperatureMap.get(runKey);
+		if (temperatures == null) {
+			temperatures = new HashMap<>();
+			temperatureMap.put(runKey, temperatures);
+		}
+		temperatures.put(String.valueOf(timestamp), temperature);
+	}
+
+	/**
+	 * Returns a @HashMap with all temperatures for all sensors. If a retention
+	 * is set, expired buckets that were not deleted yet are skipped.
 	 * 
 	 * @param tableName
 	 * @return @HashMap, which key is the name of the sensor. The values are
@@ -227,20 +998,733 @@ public class DynamoDBUtils {
 	 */
 	public HashMap<String, HashMap<String, HashMap<String, Object>>> getAllSensorTemperatures(
 			String tableName) {
-		ScanRequest scanRequest = new ScanRequest().withTableName(tableName);
-
-		ScanResult result = client.scan(scanRequest);
 		HashMap<String, HashMap<String, HashMap<String, Object>>> allTemperatures = new HashMap<>();
-		for (Map<String, AttributeValue> item : result.getItems()) {
-			String sensorName = item.get(ATTRIBUTE_NAME_HASH_KEY).getS();
-			HashMap<String, HashMap<String, Object>> currentHashMap = getTemperaturesForSensor(
-					sensorName, tableName);
-			allTemperatures.put(sensorName, currentHashMap);
+		ScanRequest scan = new ScanRequest().withTableName(tableName);
+		if (retentionMillis > 0) {
+			scan.withFilterExpression("#bucket > :expired")
+					.withExpressionAttributeNames(
+							Collections.singletonMap("#bucket",
+									ATTRIBUTE_NAME_RANGE_KEY))
+					.withExpressionAttributeValues(
+							Collections.singletonMap(":expired",
+									number(getLastExpiredBucket(System
+											.currentTimeMillis()))));
 		}
+		Map<String, AttributeValue> lastKey = null;
+		do {
+			ScanResult result = client.scan(scan
+					.withExclusiveStartKey(lastKey));
+			for (Item item : InternalUtils.toItemList(result.getItems())) {
+				String sensorName = item.getString(ATTRIBUTE_NAME_HASH_KEY);
+				HashMap<String, HashMap<String, Object>> temperatureMap = allTemperatures
+						.get(sensorName);
+				if (temperatureMap == null) {
+					temperatureMap = new HashMap<>();
+					allTemperatures.put(sensorName, temperatureMap);
+				}
+				addTemperatures(item, temperatureMap, Long.MIN_VALUE,
+						Long.MAX_VALUE);
+			}
+			lastKey = result.getLastEvaluatedKey();
+		} while (lastKey != null && !lastKey.isEmpty());
 
 		return allTemperatures;
 	}
 
+	/**
+	 * Writes rollups to the rollup table, replacing the stored ones of the
+	 * same windows. If a retention is set, minute rollups expire like the
+	 * readings, while hour and day rollups are kept forever.
+	 * 
+	 * @param tableName
+	 *            The name of the rollup table
+	 * @param rollups
+	 *            The rollups to write
+	 * @throws AmazonClientException
+	 *             If a request failed
+	 */
+	public void batchPutRollups(String tableName, List<Rollup> rollups) {
+		List<Item> items = new ArrayList<>(rollups.size());
+		for (Rollup rollup : rollups) {
+			Item item = new Item()
+					.withPrimaryKey(
+							ROLLUP_ATTRIBUTE_NAME_HASH_KEY,
+							rollupSeries(rollup.getSensor(),
+									rollup.getResolutionMillis()),
+							ROLLUP_ATTRIBUTE_NAME_RANGE_KEY,
+							rollup.getWindowStart())
+					.withString(ROLLUP_SENSOR, rollup.getSensor())
+					.withLong(ROLLUP_RESOLUTION, rollup.getResolutionMillis())
+					.withLong(ROLLUP_COUNT, rollup.getCount())
+					.withDouble(ROLLUP_MIN, rollup.getMin())
+					.withDouble(ROLLUP_MAX, rollup.getMax())
+					.withDouble(ROLLUP_SUM, rollup.getSum())
+					.withLong(ROLLUP_FIRST_TIMESTAMP, rollup.getFirstTimestamp())
+					.withDouble(ROLLUP_FIRST, rollup.getFirst())
+					.withLong(ROLLUP_LAST_TIMESTAMP, rollup.getLastTimestamp())
+					.withDouble(ROLLUP_LAST, rollup.getLast());
+			if (rollup.getHeldFrom() != Long.MIN_VALUE) {
+				item.withDouble(ROLLUP_HELD_SUM, rollup.getHeldSum())
+						.withLong(ROLLUP_HELD_MILLIS, rollup.getHeldMillis())
+						.withLong(ROLLUP_HELD_FROM, rollup.getHeldFrom())
+						.withDouble(ROLLUP_HELD, rollup.getHeld());
+			}
+			// The hour and day rollups are the history of expired readings
+			if (retentionMillis > 0
+					&& rollup.getResolutionMillis() == MINUTE_MILLIS) {
+				item.withLong(ATTRIBUTE_NAME_EXPIRES_AT,
+						expiresAt(rollup.getWindowStart() + MINUTE_MILLIS));
+			}
+			items.add(item);
+		}
+		writeItems(tableName, items);
+	}
+
+	/**
+	 * Reads the rollup of a sensor in one window.
+	 * 
+	 * @param tableName
+	 *            The name of the rollup table
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param resolutionMillis
+	 *            Length of the window in milliseconds
+	 * @param windowStart
+	 *            Start of the window in milliseconds
+	 * @return The rollup, or {@code null} if there is none
+	 */
+	public Rollup getRollup(String tableName, String sensor,
+			long resolutionMillis, long windowStart) {
+		Item item = dynamoDB.getTable(tableName).getItem(
+				ROLLUP_ATTRIBUTE_NAME_HASH_KEY,
+				rollupSeries(sensor, resolutionMillis),
+				ROLLUP_ATTRIBUTE_NAME_RANGE_KEY, windowStart);
+		return item == null ? null : toRollup(item);
+	}
+
+	/**
+	 * Returns the rollups of a sensor at one resolution whose windows overlap
+	 * the range between two timestamps, ordered by time.
+	 * 
+	 * @param tableName
+	 *            The name of the rollup table
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param resolutionMillis
+	 *            Length of the windows in milliseconds
+	 * @param from
+	 *            First timestamp in milliseconds, inclusive
+	 * @param to
+	 *            Last timestamp in milliseconds, inclusive
+	 * @return The rollups
+	 */
+	public List<Rollup> getRollups(String tableName, String sensor,
+			long resolutionMillis, long from, long to) {
+		QuerySpec spec = new QuerySpec().withHashKey(
+				ROLLUP_ATTRIBUTE_NAME_HASH_KEY,
+				rollupSeries(sensor, resolutionMillis)).withRangeKeyCondition(
+				new RangeKeyCondition(ROLLUP_ATTRIBUTE_NAME_RANGE_KEY).between(
+						from - resolutionMillis + 1, to));
+		List<Rollup> rollups = new ArrayList<>();
+		for (Item item : dynamoDB.getTable(tableName).query(spec)) {
+			rollups.add(toRollup(item));
+		}
+		return rollups;
+	}
+
+	/**
+	 * Returns the names of all sensors that have rollups. Only the sensor
+	 * attribute of the items is read.
+	 * 
+	 * @param tableName
+	 *            The name of the rollup table
+	 * @return The names of the sensors, sorted
+	 */
+	public TreeSet<String> getRollupSensors(String tableName) {
+		TreeSet<String> sensors = new TreeSet<>();
+		Map<String, AttributeValue> lastKey = null;
+		do {
+			ScanResult result = client.scan(new ScanRequest()
+					.withTableName(tableName)
+					.withProjectionExpression(ROLLUP_SENSOR)
+					.withExclusiveStartKey(lastKey));
+			for (Map<String, AttributeValue> item : result.getItems()) {
+				sensors.add(item.get(ROLLUP_SENSOR).getS());
+			}
+			lastKey = result.getLastEvaluatedKey();
+		} while (lastKey != null && !lastKey.isEmpty());
+		return sensors;
+	}
+
+	/**
+	 * @return The hash key of the rollups of a sensor at one resolution
+	 */
+	private static String rollupSeries(String sensor, long resolutionMillis) {
+		return sensor + "#" + resolutionMillis;
+	}
+
+	private static Rollup toRollup(Item item) {
+		if (item.isPresent(ROLLUP_HELD_FROM)) {
+			return new Rollup(item.getString(ROLLUP_SENSOR),
+					item.getLong(ROLLUP_RESOLUTION),
+					item.getLong(ROLLUP_ATTRIBUTE_NAME_RANGE_KEY),
+					item.getLong(ROLLUP_COUNT), item.getDouble(ROLLUP_MIN),
+					item.getDouble(ROLLUP_MAX), item.getDouble(ROLLUP_SUM),
+					item.getLong(ROLLUP_FIRST_TIMESTAMP),
+					item.getDouble(ROLLUP_FIRST),
+					item.getLong(ROLLUP_LAST_TIMESTAMP),
+					item.getDouble(ROLLUP_LAST),
+					item.getDouble(ROLLUP_HELD_SUM),
+					item.getLong(ROLLUP_HELD_MILLIS),
+					item.getLong(ROLLUP_HELD_FROM), item.getDouble(ROLLUP_HELD));
+		}
+		return new Rollup(item.getString(ROLLUP_SENSOR),
+				item.getLong(ROLLUP_RESOLUTION),
+				item.getLong(ROLLUP_ATTRIBUTE_NAME_RANGE_KEY),
+				item.getLong(ROLLUP_COUNT), item.getDouble(ROLLUP_MIN),
+				item.getDouble(ROLLUP_MAX), item.getDouble(ROLLUP_SUM),
+				item.getLong(ROLLUP_FIRST_TIMESTAMP),
+				item.getDouble(ROLLUP_FIRST),
+				item.getLong(ROLLUP_LAST_TIMESTAMP),
+				item.getDouble(ROLLUP_LAST));
+	}
+
+	/**
+	 * Deletes the buckets of the temperature table whose retention has
+	 * expired by scanning the whole table. This also finds the buckets that
+	 * have no entry in the expiry index, because they were written before the
+	 * retention was set, so it is the first pass of a compaction; the later
+	 * passes use
+	 * {@link #compactExpiredBuckets(String, String, long, long, RateLimiter, RateLimiter, int)}
+	 * . Before a bucket is deleted, its readings are added to the hour
+	 * rollups of its sensor that do not exist yet, so readings written before
+	 * the consumer maintained rollups keep a history. This needs buckets of
+	 * whole hours; shorter buckets are deleted without rollups. A bucket is
+	 * only deleted if its version is still the one that was read, so a bucket
+	 * that a late replay just rewrote is left to its time to live.
+	 * 
+	 * <p>
+	 * The table is scanned in pages of the given size, and the capacity units
+	 * consumed by every request are taken from the rate limiters, so the
+	 * compaction leaves the provisioned throughput to the consumer and the
+	 * servlet.
+	 * 
+	 * @param tableName
+	 *            The name of the temperature table
+	 * @param rollupTableName
+	 *            The name of the rollup table
+	 * @param now
+	 *            The current time in milliseconds
+	 * @param reads
+	 *            Limits the read capacity units per second
+	 * @param writes
+	 *            Limits the write capacity units per second
+	 * @param pageSize
+	 *            Number of items evaluated per scan request
+	 * @return Number of buckets deleted, 0 if no retention is set
+	 * @throws AmazonClientException
+	 *             If a request failed
+	 */
+	public int compactTemperatures(String tableName, String rollupTableName,
+			long now, RateLimiter reads, RateLimiter writes, int pageSize) {
+		if (retentionMillis == 0) {
+			return 0;
+		}
+		boolean downsample = bucketMillis % HOUR_MILLIS == 0;
+		Map<String, String> names = new HashMap<>();
+		names.put("#sensor", ATTRIBUTE_NAME_HASH_KEY);
+		names.put("#bucket", ATTRIBUTE_NAME_RANGE_KEY);
+		ScanRequest scan = new ScanRequest()
+				.withTableName(tableName)
+				.withFilterExpression("#bucket <= :expired")
+				.withExpressionAttributeValues(
+						Collections.singletonMap(":expired",
+								number(getLastExpiredBucket(now))))
+				.withLimit(pageSize)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		if (!downsample) {
+			names.put("#version", ATTRIBUTE_NAME_VERSION);
+			scan.withProjectionExpression("#sensor, #bucket, #version");
+		}
+		scan.withExpressionAttributeNames(names);
+		int deleted = 0;
+		Map<String, AttributeValue> lastKey = null;
+		do {
+			ScanResult result = client.scan(scan
+					.withExclusiveStartKey(lastKey));
+			acquire(reads, result.getConsumedCapacity());
+			for (Map<String, AttributeValue> attributes : result.getItems()) {
+				if (deleteBucket(tableName, downsample ? rollupTableName
+						: null, attributes, reads, writes)) {
+					deleted++;
+				}
+			}
+			lastKey = result.getLastEvaluatedKey();
+		} while (lastKey != null && !lastKey.isEmpty());
+		return deleted;
+	}
+
+	/**
+	 * What a pass of the compaction deleted.
+	 */
+	public static class Compacted {
+		private final int buckets;
+
+		private final int rollups;
+
+		Compacted(int buckets, int rollups) {
+			this.buckets = buckets;
+			this.rollups = rollups;
+		}
+
+		/**
+		 * @return Number of buckets deleted
+		 */
+		public int getBuckets() {
+			return buckets;
+		}
+
+		/**
+		 * @return Number of minute rollups deleted
+		 */
+		public int getRollups() {
+			return rollups;
+		}
+	}
+
+	/**
+	 * Deletes the buckets that expired since the last pass of the compaction,
+	 * like {@link #compactTemperatures}, and the minute rollups of their
+	 * sensors and time ranges. The buckets are found by querying the expiry
+	 * index for each bucket start, so the read capacity of a pass grows with
+	 * the number of expired buckets instead of the size of the table. The
+	 * index entries are deleted with their buckets.
+	 * 
+	 * @param tableName
+	 *            The name of the temperature table
+	 * @param rollupTableName
+	 *            The name of the rollup table
+	 * @param from
+	 *            Start of the first bucket to compact, usually the one after
+	 *            the last expired bucket of the previous pass
+	 * @param now
+	 *            The current time in milliseconds, buckets up to
+	 *            {@link #getLastExpiredBucket(long)} are compacted
+	 * @param reads
+	 *            Limits the read capacity units per second
+	 * @param writes
+	 *            Limits the write capacity units per second
+	 * @param pageSize
+	 *            Number of items evaluated per query request
+	 * @return What was deleted, nothing if no retention is set
+	 * @throws AmazonClientException
+	 *             If a request failed
+	 */
+	public Compacted compactExpiredBuckets(String tableName,
+			String rollupTableName, long from, long now, RateLimiter reads,
+			RateLimiter writes, int pageSize) {
+		if (retentionMillis == 0) {
+			return new Compacted(0, 0);
+		}
+		String downsampleTableName = bucketMillis % HOUR_MILLIS == 0 ? rollupTableName
+				: null;
+		long lastMinute = now - retentionMillis - MINUTE_MILLIS;
+		int buckets = 0;
+		int rollups = 0;
+		for (long start = bucketOf(from); start <= getLastExpiredBucket(now); start += bucketMillis) {
+			for (int shard = 0; shard < EXPIRY_SHARDS; shard++) {
+				QueryRequest query = new QueryRequest(
+						getExpiryTableName(tableName))
+						.withKeyConditionExpression("#key = :key")
+						.addExpressionAttributeNamesEntry("#key",
+								EXPIRY_ATTRIBUTE_NAME_HASH_KEY)
+						.addExpressionAttributeValuesEntry(":key",
+								new AttributeValue(start + "#" + shard))
+						.withLimit(pageSize)
+						.withReturnConsumedCapacity(
+								ReturnConsumedCapacity.TOTAL);
+				Map<String, AttributeValue> lastKey = null;
+				do {
+					QueryResult result = client.query(query
+							.withExclusiveStartKey(lastKey));
+					acquire(reads, result.getConsumedCapacity());
+					for (Map<String, AttributeValue> entry : result
+							.getItems()) {
+						String sensor = entry.get(
+								EXPIRY_ATTRIBUTE_NAME_RANGE_KEY).getS();
+						Map<String, AttributeValue> key = new HashMap<>();
+						key.put(ATTRIBUTE_NAME_HASH_KEY, new AttributeValue(
+								sensor));
+						key.put(ATTRIBUTE_NAME_RANGE_KEY, number(start));
+						GetItemResult bucket = client.getItem(new GetItemRequest(
+								tableName, key)
+								.withConsistentRead(true)
+								.withReturnConsumedCapacity(
+										ReturnConsumedCapacity.TOTAL));
+						acquire(reads, bucket.getConsumedCapacity());
+						if (bucket.getItem() != null
+								&& deleteBucket(tableName,
+										downsampleTableName, bucket.getItem(),
+										reads, writes)) {
+							buckets++;
+						} else {
+							deleteItem(getExpiryTableName(tableName), entry,
+									null, writes);
+						}
+						rollups += deleteMinuteRollups(rollupTableName,
+								sensor, start, Math.min(start + bucketMillis
+										- 1, lastMinute), reads, writes,
+								pageSize);
+					}
+					lastKey = result.getLastEvaluatedKey();
+				} while (lastKey != null && !lastKey.isEmpty());
+			}
+		}
+		return new Compacted(buckets, rollups);
+	}
+
+	/**
+	 * Deletes the minute rollups whose retention has expired by scanning the
+	 * whole rollup table, as the first pass of a compaction like
+	 * {@link #compactTemperatures(String, String, long, RateLimiter, RateLimiter, int)}
+	 * . The hour and day rollups are kept.
+	 * 
+	 * @param tableName
+	 *            The name of the rollup table
+	 * @param now
+	 *            The current time in milliseconds
+	 * @param reads
+	 *            Limits the read capacity units per second
+	 * @param writes
+	 *            Limits the write capacity units per second
+	 * @param pageSize
+	 *            Number of items evaluated per scan request
+	 * @return Number of rollups deleted, 0 if no retention is set
+	 * @throws AmazonClientException
+	 *             If a request failed
+	 */
+	public int compactRollups(String tableName, long now, RateLimiter reads,
+			RateLimiter writes, int pageSize) {
+		if (retentionMillis == 0) {
+			return 0;
+		}
+		Map<String, String> names = new HashMap<>();
+		names.put("#series", ROLLUP_ATTRIBUTE_NAME_HASH_KEY);
+		names.put("#start", ROLLUP_ATTRIBUTE_NAME_RANGE_KEY);
+		names.put("#resolution", ROLLUP_RESOLUTION);
+		Map<String, AttributeValue> values = new HashMap<>();
+		values.put(":minute", number(MINUTE_MILLIS));
+		values.put(":expired", number(now - retentionMillis - MINUTE_MILLIS));
+		ScanRequest scan = new ScanRequest()
+				.withTableName(tableName)
+				.withFilterExpression(
+						"#resolution = :minute AND #start <= :expired")
+				.withProjectionExpression("#series, #start")
+				.withExpressionAttributeNames(names)
+				.withExpressionAttributeValues(values).withLimit(pageSize)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		int deleted = 0;
+		Map<String, AttributeValue> lastKey = null;
+		do {
+			ScanResult result = client.scan(scan
+					.withExclusiveStartKey(lastKey));
+			acquire(reads, result.getConsumedCapacity());
+			for (Map<String, AttributeValue> attributes : result.getItems()) {
+				deleteItem(tableName, attributes, null, writes);
+				deleted++;
+			}
+			lastKey = result.getLastEvaluatedKey();
+		} while (lastKey != null && !lastKey.isEmpty());
+		return deleted;
+	}
+
+	/**
+	 * Deletes the minute rollups of a sensor that start in a time range.
+	 * 
+	 * @return Number of rollups deleted
+	 */
+	private int deleteMinuteRollups(String tableName, String sensor,
+			long from, long to, RateLimiter reads, RateLimiter writes,
+			int pageSize) {
+		if (to < from) {
+			return 0;
+		}
+		Map<String, String> names = new HashMap<>();
+		names.put("#series", ROLLUP_ATTRIBUTE_NAME_HASH_KEY);
+		names.put("#start", ROLLUP_ATTRIBUTE_NAME_RANGE_KEY);
+		Map<String, AttributeValue> values = new HashMap<>();
+		values.put(":series",
+				new AttributeValue(rollupSeries(sensor, MINUTE_MILLIS)));
+		values.put(":from", number(from));
+		values.put(":to", number(to));
+		QueryRequest query = new QueryRequest(tableName)
+				.withKeyConditionExpression(
+						"#series = :series AND #start BETWEEN :from AND :to")
+				.withProjectionExpression("#series, #start")
+				.withExpressionAttributeNames(names)
+				.withExpressionAttributeValues(values).withLimit(pageSize)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		int deleted = 0;
+		Map<String, AttributeValue> lastKey = null;
+		do {
+			QueryResult result = client.query(query
+					.withExclusiveStartKey(lastKey));
+			acquire(reads, result.getConsumedCapacity());
+			for (Map<String, AttributeValue> attributes : result.getItems()) {
+				deleteItem(tableName, attributes, null, writes);
+				deleted++;
+			}
+			lastKey = result.getLastEvaluatedKey();
+		} while (lastKey != null && !lastKey.isEmpty());
+		return deleted;
+	}
+
+	/**
+	 * Downsamples an expired bucket into the hour rollups, if a rollup table
+	 * is given, and deletes it and its expiry index entry.
+	 * 
+	 * @param attributes
+	 *            The bucket item, at least its key and version
+	 * @return Whether the bucket was deleted, {@code false} if it was
+	 *         rewritten since it was read
+	 */
+	private boolean deleteBucket(String tableName, String rollupTableName,
+			Map<String, AttributeValue> attributes, RateLimiter reads,
+			RateLimiter writes) {
+		if (rollupTableName != null) {
+			downsample(rollupTableName, InternalUtils.toItemList(
+					Collections.singletonList(attributes)).get(0), reads,
+					writes);
+		}
+		Map<String, AttributeValue> key = new HashMap<>();
+		key.put(ATTRIBUTE_NAME_HASH_KEY, attributes.get(ATTRIBUTE_NAME_HASH_KEY));
+		key.put(ATTRIBUTE_NAME_RANGE_KEY,
+				attributes.get(ATTRIBUTE_NAME_RANGE_KEY));
+		AttributeValue version = attributes.get(ATTRIBUTE_NAME_VERSION);
+		if (!deleteItem(tableName, key, version == null ? new AttributeValue()
+				.withNULL(true) : version, writes)) {
+			LOG.debug(String.format(
+					"Bucket of %s at %s was rewritten, leaving it to its time to live",
+					key.get(ATTRIBUTE_NAME_HASH_KEY).getS(),
+					key.get(ATTRIBUTE_NAME_RANGE_KEY).getN()));
+			return false;
+		}
+		String sensor = key.get(ATTRIBUTE_NAME_HASH_KEY).getS();
+		long start = Long.parseLong(key.get(ATTRIBUTE_NAME_RANGE_KEY).getN());
+		Map<String, AttributeValue> entry = new HashMap<>();
+		entry.put(EXPIRY_ATTRIBUTE_NAME_HASH_KEY, new AttributeValue(
+				expiryKey(start, sensor)));
+		entry.put(EXPIRY_ATTRIBUTE_NAME_RANGE_KEY, new AttributeValue(sensor));
+		deleteItem(getExpiryTableName(tableName), entry, null, writes);
+		return true;
+	}
+
+	/**
+	 * Deletes an item and takes the consumed write capacity from the rate
+	 * limiter.
+	 * 
+	 * @param key
+	 *            The key of the item, other attributes are ignored
+	 * @param version
+	 *            The version the item must still have, a NULL attribute
+	 *            value if it must have none, or {@code null} to delete it
+	 *            unconditionally
+	 * @return Whether the item was deleted, {@code false} if its version
+	 *         changed
+	 */
+	private boolean deleteItem(String tableName,
+			Map<String, AttributeValue> key, AttributeValue version,
+			RateLimiter writes) {
+		DeleteItemRequest delete = new DeleteItemRequest(tableName, key)
+				.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+		if (version != null) {
+			delete.addExpressionAttributeNamesEntry("#version",
+					ATTRIBUTE_NAME_VERSION);
+			if (Boolean.TRUE.equals(version.getNULL())) {
+				delete.withConditionExpression("attribute_not_exists(#version)");
+			} else {
+				delete.withConditionExpression("#version = :version")
+						.addExpressionAttributeValuesEntry(":version", version);
+			}
+		}
+		try {
+			acquire(writes, client.deleteItem(delete).getConsumedCapacity());
+			return true;
+		} catch (ConditionalCheckFailedException e) {
+			writes.acquire();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the hour rollups of the readings of a bucket that do not exist
+	 * yet.
+	 */
+	private void downsample(String rollupTableName, Item item,
+			RateLimiter reads, RateLimiter writes) {
+		String sensor = item.getString(ATTRIBUTE_NAME_HASH_KEY);
+		TreeMap<Long, Rollup> hours = new TreeMap<>();
+		if (item.isPresent(ATTRIBUTE_NAME_SERIES)) {
+			boolean changeOnly = item.isPresent(ATTRIBUTE_NAME_CHANGE_ONLY)
+					&& item.getBoolean(ATTRIBUTE_NAME_CHANGE_ONLY);
+			SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(
+					item.getByteBuffer(ATTRIBUTE_NAME_SERIES));
+			while (decoder.next()) {
+				double temperature = decoder.getTemperature();
+				if (changeOnly) {
+					hour(hours, sensor, decoder.getTimestamp()).addChangeOnly(
+							decoder.getTimestamp(), temperature);
+				} else {
+					addToHour(hours, sensor, decoder.getTimestamp(), 1,
+							temperature, temperature, temperature,
+							temperature);
+				}
+			}
+		}
+		if (item.isPresent(ATTRIBUTE_NAME_TEMPERATURE)) {
+			for (Map.Entry<String, Object> reading : item.<Object> getMap(
+					ATTRIBUTE_NAME_TEMPERATURE).entrySet()) {
+				double temperature = Double.parseDouble(String.valueOf(reading
+						.getValue()));
+				addToHour(hours, sensor, Long.parseLong(reading.getKey()), 1,
+						temperature, temperature, temperature, temperature);
+			}
+		}
+		if (item.isPresent(ATTRIBUTE_NAME_SUMMARIES)) {
+			for (Map.Entry<String, Map<String, Object>> summary : item
+					.<Map<String, Object>> getMap(ATTRIBUTE_NAME_SUMMARIES)
+					.entrySet()) {
+				Map<String, Object> values = summary.getValue();
+				addToHour(hours, sensor, Long.parseLong(summary.getKey()),
+						((Number) values.get(SUMMARY_COUNT)).longValue(),
+						((Number) values.get(SUMMARY_MIN)).doubleValue(),
+						((Number) values.get(SUMMARY_MAX)).doubleValue(),
+						((Number) values.get(SUMMARY_MEAN)).doubleValue(),
+						((Number) values.get(SUMMARY_LAST)).doubleValue());
+			}
+		}
+		List<Rollup> missing = new ArrayList<>();
+		for (Rollup rollup : hours.values()) {
+			reads.acquire();
+			if (getRollup(rollupTableName, sensor, HOUR_MILLIS,
+					rollup.getWindowStart()) == null) {
+				missing.add(rollup);
+			}
+		}
+		if (!missing.isEmpty()) {
+			writes.acquire(missing.size());
+			batchPutRollups(rollupTableName, missing);
+		}
+	}
+
+	private static void addToHour(Map<Long, Rollup> hours, String sensor,
+			long timestamp, long count, double min, double max, double mean,
+			double last) {
+		hour(hours, sensor, timestamp).add(timestamp, count, min, max, mean,
+				last);
+	}
+
+	/**
+	 * @return The hour rollup that holds the timestamp, which is created if
+	 *         it is not there yet
+	 */
+	private static Rollup hour(Map<Long, Rollup> hours, String sensor,
+			long timestamp) {
+		long start = RollupAggregator.Resolution.HOUR.windowOf(timestamp);
+		Rollup rollup = hours.get(start);
+		if (rollup == null) {
+			rollup = new Rollup(sensor, HOUR_MILLIS, start);
+			hours.put(start, rollup);
+		}
+		return rollup;
+	}
+
+	/**
+	 * @param now
+	 *            The current time in milliseconds
+	 * @return Start of the latest bucket whose retention has expired
+	 */
+	public long getLastExpiredBucket(long now) {
+		return bucketOf(now - retentionMillis - bucketMillis);
+	}
+
+	private static AttributeValue number(long value) {
+		return new AttributeValue().withN(String.valueOf(value));
+	}
+
+	/**
+	 * Takes the consumed capacity units, at least one, from a rate limiter.
+	 */
+	private static void acquire(RateLimiter limiter, ConsumedCapacity consumed) {
+		double units = consumed == null || consumed.getCapacityUnits() == null ? 1
+				: consumed.getCapacityUnits();
+		limiter.acquire(Math.max(1, (int) Math.ceil(units)));
+	}
+
+	/**
+	 * Copies the items of a table in the legacy layout, with one item per
+	 * sensor and run keyed by the timestamp of the run as a string, into a
+	 * table in the time-bucketed layout. The items are copied page by page of
+	 * the scan, and the readings of each page are written with
+	 * {@link #batchPutTemperatures(String, Map, Map, long)}, so the migration
+	 * can be repeated without duplicating anything.
+	 * 
+	 * @param legacyTableName
+	 *            The name of the table in the legacy layout
+	 * @param tableName
+	 *            The name of the table in the time-bucketed layout
+	 * @return Number of legacy items copied
+	 */
+	public int migrateLegacyTable(String legacyTableName, String tableName) {
+		int migrated = 0;
+		Map<String, AttributeValue> lastKey = null;
+		do {
+			ScanResult result = client.scan(new ScanRequest().withTableName(
+					legacyTableName).withExclusiveStartKey(lastKey));
+			Map<Long, Map<String, SensorReadings>> temperatures = new HashMap<>();
+			Map<Long, Map<String, HashMap<String, Map<String, Object>>>> summaries = new HashMap<>();
+			for (Item item : InternalUtils.toItemList(result.getItems())) {
+				String sensor = item.getString(ATTRIBUTE_NAME_HASH_KEY);
+				long run = Long.parseLong(item
+						.getString(LEGACY_ATTRIBUTE_NAME_RANGE_KEY));
+				if (!temperatures.containsKey(run)) {
+					temperatures.put(run, new HashMap<String, SensorReadings>());
+					summaries
+							.put(run,
+									new HashMap<String, HashMap<String, Map<String, Object>>>());
+				}
+				if (item.isPresent(ATTRIBUTE_NAME_TEMPERATURE)) {
+					Map<String, Object> legacy = item
+							.getMap(ATTRIBUTE_NAME_TEMPERATURE);
+					SensorReadings sensorTemperatures = new SensorReadings(
+							legacy.size());
+					for (Map.Entry<String, Object> temperature : legacy
+							.entrySet()) {
+						sensorTemperatures.add(Long.parseLong(temperature
+								.getKey()), Double.parseDouble(String
+								.valueOf(temperature.getValue())));
+					}
+					temperatures.get(run).put(sensor, sensorTemperatures);
+				}
+				if (item.isPresent(ATTRIBUTE_NAME_SUMMARIES)) {
+					summaries.get(run).put(
+							sensor,
+							new HashMap<>(item
+									.<Map<String, Object>> getMap(ATTRIBUTE_NAME_SUMMARIES)));
+				}
+				migrated++;
+			}
+			for (Long run : temperatures.keySet()) {
+				batchPutTemperatures(tableName, temperatures.get(run),
+						summaries.get(run), run);
+			}
+			LOG.info(String.format("Migrated %d items from %s to %s",
+					migrated, legacyTableName, tableName));
+			lastKey = result.getLastEvaluatedKey();
+		} while (lastKey != null && !lastKey.isEmpty());
+		return migrated;
+	}
+
 	/**
 	 * Delete a DynamoDB table.
 	 * 
@@ -0,0 +1,132 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values with a bounded relative error,
+ * in the style of HdrHistogram.
+ *
+ * <p>
+ * Values below 128 are counted exactly. Above that, every power of two is
+ * split into 128 linear sub-buckets, so a value is reported with an error of
+ * less than 1 %. Recording a value only increments a few atomic counters and
+ * allocates nothing, so the histogram can be updated from the callbacks of
+ * every record.
+ *
+ * @author hhagmans
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long highestValue;
+
+	private final AtomicLongArray counts;
+
+	private final AtomicLong count = new AtomicLong(0);
+
+	private final AtomicLong sum = new AtomicLong(0);
+
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * @param highestValue
+	 *            Highest value to track. Larger values are counted as this
+	 *            value.
+	 */
+	public Histogram(long highestValue) {
+		this.highestValue = Math.max(SUB_BUCKETS, highestValue);
+		this.counts = new AtomicLongArray(indexOf(this.highestValue) + 1);
+	}
+
+	/**
+	 * Records a value. Negative values are counted as 0.
+	 *
+	 * @param value
+	 *            The value
+	 */
+	public void record(long value) {
+		value = Math.max(0, Math.min(value, highestValue));
+		counts.getAndIncrement(indexOf(value));
+		count.getAndIncrement();
+		sum.getAndAdd(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of recorded values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Mean of the recorded values, or 0 if there are none
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @return Largest recorded value
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100
+	 * @return The highest value that is equivalent to the value at the given
+	 *         percentile, or 0 if no values were recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile)
+				/ 100 * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestEquivalentValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * The first 128 values have buckets of their own. Above that, a value with
+	 * its highest bit at position m falls into the sub-bucket of its next 7
+	 * bits in the power of two m.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
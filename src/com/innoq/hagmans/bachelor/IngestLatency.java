@@ -0,0 +1,165 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histograms of the end-to-end latency of the readings: from the timestamp the
+ * producer put into the record until the consumer received the reading, and
+ * until the reading was written to DynamoDB. The timestamp of a summary is
+ * the end of its window.
+ *
+ * <p>
+ * The latencies of all readings are recorded in one pair of histograms, and
+ * those of the first sensors seen in one pair per sensor. The number of
+ * sensors with their own histograms is capped, because every histogram takes
+ * a few kilobytes; the readings of the other sensors only count towards the
+ * totals. The latencies are measured against the clock of the consumer, so
+ * the clocks of producer and consumer have to be synchronized. Negative
+ * latencies count as 0.
+ *
+ * @see ShardMetrics
+ * @author hhagmans
+ *
+ */
+public class IngestLatency {
+
+	/**
+	 * Latencies are recorded in milliseconds, up to one day
+	 */
+	static final long HIGHEST_LATENCY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * The latencies of a sensor
+	 */
+	private static class Sensor {
+		final Histogram received = new Histogram(HIGHEST_LATENCY_MILLIS);
+		final Histogram committed = new Histogram(HIGHEST_LATENCY_MILLIS);
+	}
+
+	private final int maxSensors;
+
+	private final Sensor total = new Sensor();
+
+	private final ConcurrentMap<String, Sensor> sensors = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxSensors
+	 *            Maximum number of sensors with their own histograms
+	 */
+	public IngestLatency(int maxSensors) {
+		this.maxSensors = maxSensors;
+	}
+
+	/**
+	 * Records the latency until a reading was received.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param millis
+	 *            The latency in milliseconds
+	 */
+	public void received(String sensor, long millis) {
+		total.received.record(millis);
+		Sensor histograms = sensor(sensor);
+		if (histograms != null) {
+			histograms.received.record(millis);
+		}
+	}
+
+	/**
+	 * Records the latency until a reading was written to DynamoDB.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param millis
+	 *            The latency in milliseconds
+	 */
+	public void committed(String sensor, long millis) {
+		total.committed.record(millis);
+		Sensor histograms = sensor(sensor);
+		if (histograms != null) {
+			histograms.committed.record(millis);
+		}
+	}
+
+	/**
+	 * @return The histograms of the sensor, or {@code null} if the cap is
+	 *         reached. Threads adding sensors at the same time may exceed the
+	 *         cap by their number.
+	 */
+	private Sensor sensor(String sensor) {
+		Sensor histograms = sensors.get(sensor);
+		if (histograms == null) {
+			if (sensors.size() >= maxSensors) {
+				return null;
+			}
+			histograms = new Sensor();
+			Sensor previous = sensors.putIfAbsent(sensor, histograms);
+			if (previous != null) {
+				histograms = previous;
+			}
+		}
+		return histograms;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100
+	 * @return Latency until the readings of all sensors were received, in
+	 *         milliseconds at the given percentile
+	 */
+	public long getReceivedMillis(double percentile) {
+		return total.received.getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100
+	 * @return Latency until the readings of all sensors were written, in
+	 *         milliseconds at the given percentile
+	 */
+	public long getCommittedMillis(double percentile) {
+		return total.committed.getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100
+	 * @return Latency until the readings were received per sensor with its
+	 *         own histograms, sorted by the name of the sensor
+	 */
+	public Map<String, Long> getReceivedMillisBySensor(double percentile) {
+		TreeMap<String, Long> latencies = new TreeMap<>();
+		for (Map.Entry<String, Sensor> sensor : sensors.entrySet()) {
+			latencies.put(sensor.getKey(), sensor.getValue().received
+					.getValueAtPercentile(percentile));
+		}
+		return latencies;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100
+	 * @return Latency until the readings were written per sensor with its own
+	 *         histograms, sorted by the name of the sensor
+	 */
+	public Map<String, Long> getCommittedMillisBySensor(double percentile) {
+		TreeMap<String, Long> latencies = new TreeMap<>();
+		for (Map.Entry<String, Sensor> sensor : sensors.entrySet()) {
+			latencies.put(sensor.getKey(), sensor.getValue().committed
+					.getValueAtPercentile(percentile));
+		}
+		return latencies;
+	}
+
+	/**
+	 * @return Number of sensors with their own histograms
+	 */
+	public int getTrackedSensors() {
+		return sensors.size();
+	}
+}
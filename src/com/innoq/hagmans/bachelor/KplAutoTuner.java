@@ -0,0 +1,288 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
+import com.amazonaws.services.kinesis.producer.Metric;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Picks the RecordMaxBufferedTime and MaxConnections of the KPL by running
+ * short calibration phases at the target rate before the actual run.
+ *
+ * <p>
+ * A longer buffered time lets the KPL aggregate more user records into each
+ * Kinesis record, but every record waits longer. The tuner therefore tries the
+ * buffered times from the longest to the shortest that still fits into the
+ * target p99 latency, each with as few connections as possible. A candidate
+ * passes if all of its records were put at the target rate without failures
+ * within the target p99. The tuner stops as soon as a passing candidate
+ * aggregates worse than the best one so far, and picks the passing candidate
+ * with the most user records per Kinesis record. If no candidate passes, the
+ * one with the lowest p99 is picked.
+ *
+ * <p>
+ * The KPL cannot be reconfigured in place, so every phase starts a producer of
+ * its own, which is flushed and destroyed afterwards. The records of the
+ * calibration phases are put with partition keys that start with
+ * {@link #CALIBRATION_PARTITION_KEY_PREFIX}, which the consumer skips, so
+ * they neither end up in the tables nor in the sequence numbers of the
+ * fleet.
+ *
+ * @author hhagmans
+ *
+ */
+public class KplAutoTuner {
+	private static final Log LOG = LogFactory.getLog(KplAutoTuner.class);
+
+	/**
+	 * Prefix of the partition keys of the calibration records
+	 */
+	public static final String CALIBRATION_PARTITION_KEY_PREFIX = "calibration-";
+
+	/**
+	 * Candidates for RecordMaxBufferedTime in milliseconds, longest first
+	 */
+	private static final long[] BUFFERED_TIMES = { 15000, 5000, 2000, 1000,
+			500, 200, 100, 50 };
+
+	/**
+	 * Candidates for MaxConnections, fewest first
+	 */
+	private static final int[] CONNECTIONS = { 1, 4, 16 };
+
+	/**
+	 * A phase passes if it achieves at least this share of the target rate
+	 */
+	private static final double MIN_RATE_SHARE = 0.95;
+
+	private final Supplier<KinesisProducerConfiguration> configuration;
+
+	private final String streamName;
+
+	private final int recordsPerSecond;
+
+	private final int phaseSeconds;
+
+	private final long targetP99Millis;
+
+	private final int maxInFlight;
+
+	/**
+	 * Produces the records of the calibration phases.
+	 */
+	public interface Load {
+		/**
+		 * Puts the next record into the sink.
+		 */
+		ListenableFuture<PutResult> put(RecordSink sink);
+	}
+
+	/**
+	 * The measurements of a calibration phase.
+	 */
+	private static class Phase {
+		final long bufferedTime;
+		final int connections;
+		final long p99Millis;
+		final double achievedRate;
+		final double recordsPerKinesisRecord;
+		final boolean passed;
+
+		Phase(long bufferedTime, int connections, long p99Millis,
+				double achievedRate, double recordsPerKinesisRecord,
+				boolean passed) {
+			this.bufferedTime = bufferedTime;
+			this.connections = connections;
+			this.p99Millis = p99Millis;
+			this.achievedRate = achievedRate;
+			this.recordsPerKinesisRecord = recordsPerKinesisRecord;
+			this.passed = passed;
+		}
+	}
+
+	/**
+	 * @param configuration
+	 *            Creates a fresh copy of the base configuration for each
+	 *            candidate
+	 * @param streamName
+	 *            Name of the stream the records are put in
+	 * @param recordsPerSecond
+	 *            The target rate
+	 * @param phaseSeconds
+	 *            Duration of each calibration phase
+	 * @param targetP99Millis
+	 *            The target p99 latency from the put until the callback
+	 * @param maxInFlight
+	 *            Maximum number of records buffered by the KPL
+	 */
+	public KplAutoTuner(Supplier<KinesisProducerConfiguration> configuration,
+			String streamName, int recordsPerSecond, int phaseSeconds,
+			long targetP99Millis, int maxInFlight) {
+		this.configuration = configuration;
+		this.streamName = streamName;
+		this.recordsPerSecond = recordsPerSecond;
+		this.phaseSeconds = phaseSeconds;
+		this.targetP99Millis = targetP99Millis;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Runs the calibration phases.
+	 *
+	 * @param load
+	 *            Produces the records
+	 * @return The configuration with the chosen settings
+	 */
+	public KinesisProducerConfiguration tune(Load load) {
+		Phase best = null;
+		Phase fastest = null;
+		for (long bufferedTime : BUFFERED_TIMES) {
+			// Records wait for up to the buffered time before they are sent, so
+			// only shorter times can meet the target. The shortest one is
+			// always tried.
+			if (bufferedTime >= targetP99Millis && bufferedTime != last()) {
+				continue;
+			}
+			Phase passed = null;
+			for (int connections : CONNECTIONS) {
+				Phase phase = run(load, bufferedTime, connections);
+				if (fastest == null || phase.p99Millis < fastest.p99Millis) {
+					fastest = phase;
+				}
+				if (phase.passed) {
+					passed = phase;
+					break;
+				}
+			}
+			if (passed == null) {
+				continue;
+			}
+			if (best != null
+					&& passed.recordsPerKinesisRecord < best.recordsPerKinesisRecord) {
+				break;
+			}
+			best = passed;
+		}
+
+		Phase chosen = best != null ? best : fastest;
+		if (best == null) {
+			LOG.warn(String
+					.format("No candidate met the target p99 of %d ms at %d records per second, using the fastest one",
+							targetP99Millis, recordsPerSecond));
+		}
+		LOG.info(String
+				.format("Using RecordMaxBufferedTime=%d and MaxConnections=%d (p99 %d ms, %.1f records per Kinesis record)",
+						chosen.bufferedTime, chosen.connections,
+						chosen.p99Millis, chosen.recordsPerKinesisRecord));
+		return candidate(chosen.bufferedTime, chosen.connections);
+	}
+
+	private static long last() {
+		return BUFFERED_TIMES[BUFFERED_TIMES.length - 1];
+	}
+
+	private KinesisProducerConfiguration candidate(long bufferedTime,
+			int connections) {
+		KinesisProducerConfiguration config = configuration.get();
+		config.setRecordMaxBufferedTime(bufferedTime);
+		config.setMaxConnections(connections);
+		return config;
+	}
+
+	private Phase run(Load load, long bufferedTime, int connections) {
+		KinesisProducer producer = new KinesisProducer(candidate(bufferedTime,
+				connections));
+		RecordSink sink = new KplRecordSink(producer, streamName);
+		try {
+			final Histogram latency = new Histogram(TimeUnit.HOURS.toMillis(1));
+			final AtomicLong failed = new AtomicLong(0);
+			RateController rateController = new RateController(
+					recordsPerSecond, phaseSeconds, sink, maxInFlight);
+			while (rateController.acquire()) {
+				final long start = System.nanoTime();
+				Futures.addCallback(load.put(sink),
+						new FutureCallback<PutResult>() {
+							@Override
+							public void onSuccess(PutResult result) {
+								latency.record(TimeUnit.NANOSECONDS
+										.toMillis(System.nanoTime() - start));
+							}
+
+							@Override
+							public void onFailure(Throwable t) {
+								failed.getAndIncrement();
+							}
+						});
+			}
+
+			// Records that are not done after twice the target are too slow
+			// anyway
+			long deadline = System.currentTimeMillis() + 2 * targetP99Millis;
+			while (sink.getOutstandingRecordsCount() > 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			int unfinished = sink.getOutstandingRecordsCount();
+			long p99 = unfinished > 0 ? Long.MAX_VALUE : latency
+					.getValueAtPercentile(99);
+			double achievedRate = rateController.getAchievedRate();
+			double recordsPerKinesisRecord = recordsPerKinesisRecord(producer);
+			boolean passed = p99 <= targetP99Millis && failed.get() == 0
+					&& achievedRate >= MIN_RATE_SHARE * recordsPerSecond;
+			LOG.info(String
+					.format("Calibration with RecordMaxBufferedTime=%d and MaxConnections=%d: p99 %s ms, %.1f records per second, %.1f records per Kinesis record, %d failed, %d unfinished - %s",
+							bufferedTime, connections,
+							unfinished > 0 ? "n/a" : Long.toString(p99),
+							achievedRate, recordsPerKinesisRecord,
+							failed.get(), unfinished, passed ? "passed"
+									: "failed"));
+			// The consumer skips the calibration records, but they should
+			// not be dropped from the stream half-way
+			sink.flushSync();
+			return new Phase(bufferedTime, connections, p99, achievedRate,
+					recordsPerKinesisRecord, passed);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Calibration was interrupted", e);
+		} finally {
+			sink.destroy();
+		}
+	}
+
+	/**
+	 * @return The mean number of user records per Kinesis record of the
+	 *         phase, taken from the KPL metric with the fewest dimensions
+	 *         (i.e. the one for the whole stream), or 0 if it is not available
+	 */
+	private double recordsPerKinesisRecord(KinesisProducer producer)
+			throws InterruptedException {
+		try {
+			List<Metric> metrics = producer.getMetrics(
+					"UserRecordsPerKinesisRecord", phaseSeconds);
+			Metric total = null;
+			for (Metric metric : metrics) {
+				Map<String, String> dimensions = metric.getDimensions();
+				if (total == null
+						|| dimensions.size() < total.getDimensions().size()) {
+					total = metric;
+				}
+			}
+			return total == null ? 0 : total.getMean();
+		} catch (ExecutionException e) {
+			LOG.warn("Unable to get the metrics of the KPL", e);
+			return 0;
+		}
+	}
+}
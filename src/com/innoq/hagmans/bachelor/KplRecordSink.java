@@ -0,0 +1,87 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.kinesis.producer.Attempt;
+import com.amazonaws.services.kinesis.producer.KinesisProducer;
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Puts records through the Kinesis Producer Library, which aggregates them
+ * and sends them from its native child process.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class KplRecordSink implements RecordSink {
+
+	private final KinesisProducer producer;
+
+	private final String streamName;
+
+	/**
+	 * @param producer
+	 *            The KinesisProducer to put the records with
+	 * @param streamName
+	 *            Name of the stream the records are put in
+	 */
+	public KplRecordSink(KinesisProducer producer, String streamName) {
+		this.producer = producer;
+		this.streamName = streamName;
+	}
+
+	@Override
+	public ListenableFuture<PutResult> put(String partitionKey,
+			String explicitHashKey, ByteBuffer data) {
+		final SettableFuture<PutResult> future = SettableFuture.create();
+		Futures.addCallback(producer.addUserRecord(streamName, partitionKey,
+				explicitHashKey, data), new FutureCallback<UserRecordResult>() {
+			@Override
+			public void onSuccess(UserRecordResult result) {
+				future.set(toPutResult(result));
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (t instanceof UserRecordFailedException) {
+					future.setException(new PutFailedException(
+							toPutResult(((UserRecordFailedException) t)
+									.getResult())));
+				} else {
+					future.setException(t);
+				}
+			}
+		});
+		return future;
+	}
+
+	@Override
+	public int getOutstandingRecordsCount() {
+		return producer.getOutstandingRecordsCount();
+	}
+
+	@Override
+	public void flushSync() {
+		producer.flushSync();
+	}
+
+	@Override
+	public void destroy() {
+		// This kills the child process and shuts down the threads managing it.
+		producer.destroy();
+	}
+
+	private static PutResult toPutResult(UserRecordResult result) {
+		Attempt last = Iterables.getLast(result.getAttempts(), null);
+		return new PutResult(result.isSuccessful(), result.getAttempts()
+				.size(), result.getShardId(), result.getSequenceNumber(),
+				last == null ? null : last.getErrorCode(), last == null ? null
+						: last.getErrorMessage());
+	}
+}
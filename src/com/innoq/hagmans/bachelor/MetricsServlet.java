@@ -0,0 +1,30 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link ConsumerMetrics} of the consumer in this process as plain
+ * text.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private final ConsumerMetrics metrics;
+
+	public MetricsServlet(ConsumerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		response.setContentType("text/plain;charset=UTF-8");
+		response.getWriter().print(metrics.report());
+	}
+}
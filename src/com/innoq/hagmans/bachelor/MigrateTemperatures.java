@@ -0,0 +1,37 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * Copies the temperatures of the legacy table, with one item per sensor and
+ * run, into the time-bucketed table (see
+ * {@link DynamoDBUtils#migrateLegacyTable(String, String)}). The legacy table
+ * is left untouched, and the migration can be run again if it was
+ * interrupted.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class MigrateTemperatures {
+
+	public static void main(String[] args) {
+
+		String legacyTableName = TemperatureConsumer.legacyTableName;
+		String tableName = TemperatureConsumer.tableName;
+
+		if (args.length == 2) {
+			legacyTableName = args[0];
+			tableName = args[1];
+		}
+
+		DynamoDBUtils dbUtils = DynamoDBClients.getDynamoDBUtils();
+		try {
+			dbUtils.createTemperatureTableIfNotExists(tableName);
+			int migrated = dbUtils.migrateLegacyTable(legacyTableName,
+					tableName);
+			System.out.println(String.format(
+					"Migrated %d items from %s to %s", migrated,
+					legacyTableName, tableName));
+		} finally {
+			DynamoDBClients.shutdown();
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+
+/**
+ * A write-ahead log for the records of the producer, so that a throttled
+ * stream, a network outage or a crash of the producer costs latency instead of
+ * lost records.
+ *
+ * <p>
+ * Every record is appended to a memory-mapped segment file before it is handed
+ * to the {@link RecordSink}, and is acknowledged in place once the sink
+ * reports it as put. Records that failed are marked for a retry and are put again by
+ * {@link #drain(Sink, RateController)}, which may run faster than the
+ * producer's target rate to catch up after an outage. When the producer is
+ * restarted, every record of the old segments that was not acknowledged is
+ * retried. Segments are deleted as soon as all of their records are
+ * acknowledged.
+ *
+ * <p>
+ * A segment starts with a magic number, followed by the entries. Each entry
+ * consists of its length (4 bytes), its status (1 byte), the length-prefixed
+ * partition key, the length-prefixed explicit hash key and the data of the
+ * record. The keys only consist of ASCII digits. A length of 0 marks the end
+ * of the segment.
+ *
+ * @author hhagmans
+ *
+ */
+public class Outbox implements Closeable {
+	private static final Log LOG = LogFactory.getLog(Outbox.class);
+
+	private static final int MAGIC = 0x4F425831;
+
+	private static final byte STATUS_IN_FLIGHT = 0;
+
+	private static final byte STATUS_ACKED = 1;
+
+	private static final byte STATUS_FAILED = 2;
+
+	/**
+	 * Maximum number of records collected by one pass of the drain
+	 */
+	private static final int DRAIN_BATCH_SIZE = 1000;
+
+	private static final String SEGMENT_PREFIX = "outbox-";
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+	private Segment active;
+
+	/**
+	 * Receives the records to retry from the drain.
+	 */
+	public interface Sink {
+		/**
+		 * Puts a record again. The record must be acknowledged or failed
+		 * through {@link Outbox#callback(long, FutureCallback)}.
+		 */
+		void put(long handle, String partitionKey, String explicitHashKey,
+				ByteBuffer data);
+	}
+
+	/**
+	 * A memory-mapped segment file.
+	 */
+	private static class Segment {
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		int pending;
+		int failed;
+		boolean sealed;
+
+		Segment(int id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, size);
+		}
+
+		void close() throws IOException {
+			buffer.force();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Opens the outbox in the given directory. All records of existing
+	 * segments that were not acknowledged are marked for a retry.
+	 *
+	 * @param directory
+	 *            Directory of the segment files
+	 * @param segmentSize
+	 *            Size of each segment file in bytes
+	 * @throws IOException
+	 *             If the segments cannot be opened
+	 */
+	public Outbox(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create outbox directory "
+					+ directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		int recovered = 0;
+		int nextId = 0;
+		for (File file : files) {
+			String name = file.getName();
+			int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+			Segment segment = new Segment(id, file, (int) file.length());
+			segment.sealed = true;
+			if (segment.buffer.getInt(0) == MAGIC) {
+				int position = 4;
+				int length;
+				while (position + 4 <= segment.buffer.capacity()
+						&& (length = segment.buffer.getInt(position)) > 0) {
+					if (segment.buffer.get(position + 4) != STATUS_ACKED) {
+						segment.buffer.put(position + 4, STATUS_FAILED);
+						segment.pending++;
+						segment.failed++;
+					}
+					position += 4 + length;
+				}
+			}
+			recovered += segment.pending;
+			nextId = id + 1;
+			if (segment.pending == 0) {
+				segment.close();
+				deleteSegment(segment);
+			} else {
+				segments.put(id, segment);
+			}
+		}
+		if (recovered > 0) {
+			LOG.info(String.format(
+					"Recovered %d unacknowledged records from the outbox",
+					recovered));
+		}
+		active = newSegment(nextId);
+	}
+
+	/**
+	 * Appends a record to the outbox without allocating anything.
+	 *
+	 * @param partitionKey
+	 *            Partition key of the record, consisting of ASCII digits
+	 * @param explicitHashKey
+	 *            Explicit hash key of the record, consisting of ASCII digits
+	 * @param data
+	 *            Data of the record. Its position is not changed.
+	 * @return Handle of the record, which is used to acknowledge it
+	 * @throws IOException
+	 *             If a new segment cannot be created
+	 */
+	public synchronized long append(String partitionKey,
+			String explicitHashKey, ByteBuffer data) throws IOException {
+		int length = 1 + 2 + partitionKey.length() + 2
+				+ explicitHashKey.length() + data.remaining();
+		if (4 + 4 + length + 4 > segmentSize) {
+			throw new IllegalArgumentException(
+					"Record is larger than an outbox segment");
+		}
+		MappedByteBuffer buffer = active.buffer;
+		if (buffer.position() + 4 + length + 4 > segmentSize) {
+			seal(active);
+			active = newSegment(active.id + 1);
+			buffer = active.buffer;
+		}
+		int position = buffer.position();
+		// The status and content are written before the length, so a crash
+		// never leaves a half written entry behind
+		buffer.position(position + 4);
+		buffer.put(STATUS_IN_FLIGHT);
+		putAscii(buffer, partitionKey);
+		putAscii(buffer, explicitHashKey);
+		int dataPosition = data.position();
+		buffer.put(data);
+		data.position(dataPosition);
+		buffer.putInt(position, length);
+		active.pending++;
+		return handle(active.id, position);
+	}
+
+	/**
+	 * Marks a record as put. The segment of the record is deleted once all of
+	 * its records are acknowledged.
+	 *
+	 * @param handle
+	 *            Handle of the record
+	 */
+	public synchronized void ack(long handle) {
+		Segment segment = segments.get(segmentId(handle));
+		if (segment == null) {
+			return;
+		}
+		int position = position(handle);
+		byte status = segment.buffer.get(position + 4);
+		if (status == STATUS_ACKED) {
+			return;
+		}
+		if (status == STATUS_FAILED) {
+			segment.failed--;
+		}
+		segment.buffer.put(position + 4, STATUS_ACKED);
+		segment.pending--;
+		if (segment.sealed && segment.pending == 0) {
+			segments.remove(segment.id);
+			try {
+				segment.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close outbox segment " + segment.file, e);
+			}
+			deleteSegment(segment);
+		}
+	}
+
+	/**
+	 * Marks a record as failed, so that it is put again by the drain.
+	 *
+	 * @param handle
+	 *            Handle of the record
+	 */
+	public synchronized void fail(long handle) {
+		Segment segment = segments.get(segmentId(handle));
+		int position = position(handle);
+		if (segment != null
+				&& segment.buffer.get(position + 4) == STATUS_IN_FLIGHT) {
+			segment.buffer.put(position + 4, STATUS_FAILED);
+			segment.failed++;
+		}
+	}
+
+	/**
+	 * Wraps the callback of a record, so that the record is acknowledged when
+	 * it was put and retried when it failed. Failures are not passed on to the
+	 * given callback, because the outbox takes care of them.
+	 *
+	 * @param handle
+	 *            Handle of the record
+	 * @param callback
+	 *            Callback that is notified about successful puts
+	 * @return The wrapped callback
+	 */
+	public FutureCallback<PutResult> callback(final long handle,
+			final FutureCallback<PutResult> callback) {
+		return new FutureCallback<PutResult>() {
+			@Override
+			public void onSuccess(PutResult result) {
+				ack(handle);
+				callback.onSuccess(result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				fail(handle);
+			}
+		};
+	}
+
+	/**
+	 * Puts the records marked for a retry again, at the pace of the given
+	 * rate controller.
+	 *
+	 * @param sink
+	 *            Puts the records
+	 * @param rateController
+	 *            Paces the retries
+	 * @return Number of records that were put again
+	 */
+	public int drain(Sink sink, RateController rateController) {
+		List<Long> handles = collectFailed();
+		int drained = 0;
+		for (Long handle : handles) {
+			if (!rateController.acquire()) {
+				break;
+			}
+			String partitionKey;
+			String explicitHashKey;
+			ByteBuffer data;
+			synchronized (this) {
+				Segment segment = segments.get(segmentId(handle));
+				int position = position(handle);
+				if (segment == null
+						|| segment.buffer.get(position + 4) != STATUS_FAILED) {
+					continue;
+				}
+				segment.buffer.put(position + 4, STATUS_IN_FLIGHT);
+				segment.failed--;
+				ByteBuffer entry = segment.buffer.duplicate();
+				int end = position + 4 + entry.getInt(position);
+				entry.position(position + 5);
+				partitionKey = getAscii(entry);
+				explicitHashKey = getAscii(entry);
+				entry.limit(end);
+				data = entry.slice();
+			}
+			sink.put(handle, partitionKey, explicitHashKey, data);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * @return Number of records that have not been acknowledged yet
+	 */
+	public synchronized int getPendingCount() {
+		int pending = 0;
+		for (Segment segment : segments.values()) {
+			pending += segment.pending;
+		}
+		return pending;
+	}
+
+	/**
+	 * @return Number of records waiting for a retry
+	 */
+	public synchronized int getFailedCount() {
+		int failed = 0;
+		for (Segment segment : segments.values()) {
+			failed += segment.failed;
+		}
+		return failed;
+	}
+
+	/**
+	 * Writes the acknowledgements and appended records to disk.
+	 */
+	public synchronized void sync() {
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Closes all segments. Records that were not acknowledged yet are retried
+	 * on the next start.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		seal(active);
+		for (Segment segment : segments.values()) {
+			segment.close();
+			if (segment.pending == 0) {
+				deleteSegment(segment);
+			}
+		}
+		segments.clear();
+	}
+
+	private synchronized List<Long> collectFailed() {
+		List<Long> handles = new ArrayList<>();
+		for (Segment segment : segments.values()) {
+			if (segment.failed == 0) {
+				continue;
+			}
+			int position = 4;
+			int length;
+			while (handles.size() < DRAIN_BATCH_SIZE
+					&& position + 4 <= segment.buffer.capacity()
+					&& (length = segment.buffer.getInt(position)) > 0) {
+				if (segment.buffer.get(position + 4) == STATUS_FAILED) {
+					handles.add(handle(segment.id, position));
+				}
+				position += 4 + length;
+			}
+		}
+		return handles;
+	}
+
+	private Segment newSegment(int id) throws IOException {
+		File file = new File(directory, String.format("%s%010d%s",
+				SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		Segment segment = new Segment(id, file, segmentSize);
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.position(4);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void seal(Segment segment) {
+		segment.sealed = true;
+		segment.buffer.force();
+		if (segment.pending == 0) {
+			segments.remove(segment.id);
+			try {
+				segment.close();
+			} catch (IOException e) {
+				LOG.warn("Unable to close outbox segment " + segment.file, e);
+			}
+			deleteSegment(segment);
+		}
+	}
+
+	private void deleteSegment(Segment segment) {
+		if (!segment.file.delete()) {
+			LOG.warn("Unable to delete outbox segment " + segment.file);
+		}
+	}
+
+	private static void putAscii(ByteBuffer buffer, String value) {
+		buffer.putShort((short) value.length());
+		for (int i = 0; i < value.length(); i++) {
+			buffer.put((byte) value.charAt(i));
+		}
+	}
+
+	private static String getAscii(ByteBuffer buffer) {
+		char[] chars = new char[buffer.getShort()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) buffer.get();
+		}
+		return new String(chars);
+	}
+
+	private static long handle(int segmentId, int position) {
+		return ((long) segmentId << 32) | position;
+	}
+
+	private static int segmentId(long handle) {
+		return (int) (handle >>> 32);
+	}
+
+	private static int position(long handle) {
+		return (int) handle;
+	}
+}
@@ -0,0 +1,196 @@
+package com.innoq.hagmans.bachelor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+
+/**
+ * Measures the latency of every record from the moment it is handed to the
+ * {@link RecordSink} until its callback fires, split by successful and failed
+ * records, together with the number of attempts per record and the achieved
+ * records and bytes per second.
+ * 
+ * <p>
+ * The metrics can be watched through JMX while the producer runs and are
+ * printed as a percentile report at the end of a run.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class ProducerMetrics implements ProducerMetricsMBean {
+	private static final Log LOG = LogFactory.getLog(ProducerMetrics.class);
+
+	private static final String OBJECT_NAME = "com.innoq.hagmans.bachelor:type=ProducerMetrics";
+
+	/**
+	 * Latencies are recorded in microseconds, up to one hour
+	 */
+	private final Histogram successLatency = new Histogram(
+			TimeUnit.HOURS.toMicros(1));
+
+	private final Histogram failureLatency = new Histogram(
+			TimeUnit.HOURS.toMicros(1));
+
+	private final Histogram attempts = new Histogram(1000);
+
+	private final AtomicLong recordsPut = new AtomicLong(0);
+
+	private final AtomicLong bytesPut = new AtomicLong(0);
+
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * Registers the metrics with the platform MBean server. Failures are
+	 * logged, the metrics still work without JMX.
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			LOG.warn("Unable to register the producer metrics with JMX", e);
+		}
+	}
+
+	/**
+	 * Counts a record that is about to be put and wraps its callback, so that
+	 * its latency and attempts are recorded when it completes.
+	 * 
+	 * @param bytes
+	 *            Size of the data of the record
+	 * @param callback
+	 *            Callback of the record
+	 * @return The wrapped callback
+	 */
+	public FutureCallback<PutResult> track(int bytes,
+			final FutureCallback<PutResult> callback) {
+		recordsPut.getAndIncrement();
+		bytesPut.getAndAdd(bytes);
+		final long start = System.nanoTime();
+		return new FutureCallback<PutResult>() {
+			@Override
+			public void onSuccess(PutResult result) {
+				successLatency.record(micros(start));
+				attempts.record(result.getAttempts());
+				callback.onSuccess(result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				failureLatency.record(micros(start));
+				if (t instanceof PutFailedException) {
+					attempts.record(((PutFailedException) t).getResult()
+							.getAttempts());
+				}
+				callback.onFailure(t);
+			}
+		};
+	}
+
+	/**
+	 * @return A report of the throughput, the latency percentiles and the
+	 *         attempts
+	 */
+	public String report() {
+		return String
+				.format("%d records put, %d succeeded, %d failed, %.1f records/s, %.1f bytes/s%n"
+						+ "Success latency (ms): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n"
+						+ "Failure latency (ms): p50 %.1f, p99 %.1f, max %.1f%n"
+						+ "Attempts per record: mean %.2f, p99 %d, max %d",
+						getRecordsPut(), getRecordsSucceeded(),
+						getRecordsFailed(), getRecordsPerSecond(),
+						getBytesPerSecond(), getSuccessLatencyMeanMillis(),
+						millis(successLatency, 50), millis(successLatency, 90),
+						getSuccessLatencyP99Millis(),
+						getSuccessLatencyP999Millis(),
+						getSuccessLatencyMaxMillis(),
+						millis(failureLatency, 50), getFailureLatencyP99Millis(),
+						failureLatency.getMax() / 1000d, getMeanAttempts(),
+						attempts.getValueAtPercentile(99), getMaxAttempts());
+	}
+
+	@Override
+	public long getRecordsPut() {
+		return recordsPut.get();
+	}
+
+	@Override
+	public long getRecordsSucceeded() {
+		return successLatency.getCount();
+	}
+
+	@Override
+	public long getRecordsFailed() {
+		return failureLatency.getCount();
+	}
+
+	@Override
+	public double getRecordsPerSecond() {
+		return recordsPut.get() / elapsedSeconds();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return bytesPut.get() / elapsedSeconds();
+	}
+
+	@Override
+	public double getSuccessLatencyMeanMillis() {
+		return successLatency.getMean() / 1000;
+	}
+
+	@Override
+	public double getSuccessLatencyP50Millis() {
+		return millis(successLatency, 50);
+	}
+
+	@Override
+	public double getSuccessLatencyP99Millis() {
+		return millis(successLatency, 99);
+	}
+
+	@Override
+	public double getSuccessLatencyP999Millis() {
+		return millis(successLatency, 99.9);
+	}
+
+	@Override
+	public double getSuccessLatencyMaxMillis() {
+		return successLatency.getMax() / 1000d;
+	}
+
+	@Override
+	public double getFailureLatencyP99Millis() {
+		return millis(failureLatency, 99);
+	}
+
+	@Override
+	public double getMeanAttempts() {
+		return attempts.getMean();
+	}
+
+	@Override
+	public long getMaxAttempts() {
+		return attempts.getMax();
+	}
+
+	private double elapsedSeconds() {
+		return Math.max(1, System.nanoTime() - startNanos) / 1e9;
+	}
+
+	private static long micros(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000d;
+	}
+}
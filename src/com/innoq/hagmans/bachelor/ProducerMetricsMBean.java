@@ -0,0 +1,36 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * JMX view of the {@link ProducerMetrics}.
+ * 
+ * @author hhagmans
+ * 
+ */
+public interface ProducerMetricsMBean {
+
+	long getRecordsPut();
+
+	long getRecordsSucceeded();
+
+	long getRecordsFailed();
+
+	double getRecordsPerSecond();
+
+	double getBytesPerSecond();
+
+	double getSuccessLatencyMeanMillis();
+
+	double getSuccessLatencyP50Millis();
+
+	double getSuccessLatencyP99Millis();
+
+	double getSuccessLatencyP999Millis();
+
+	double getSuccessLatencyMaxMillis();
+
+	double getFailureLatencyP99Millis();
+
+	double getMeanAttempts();
+
+	long getMaxAttempts();
+}
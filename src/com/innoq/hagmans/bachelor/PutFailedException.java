@@ -0,0 +1,29 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * Signals that a record could not be put by a {@link RecordSink}, even after
+ * retrying it.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class PutFailedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final PutResult result;
+
+	/**
+	 * @param result
+	 *            The result of the failed put
+	 */
+	public PutFailedException(PutResult result) {
+		super(String.format("Record failed to put - %s : %s",
+				result.getErrorCode(), result.getErrorMessage()));
+		this.result = result;
+	}
+
+	public PutResult getResult() {
+		return result;
+	}
+}
@@ -0,0 +1,364 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Puts records with {@link AmazonKinesis#putRecords(PutRecordsRequest)}
+ * directly from the JVM, without the native child process of the KPL.
+ *
+ * <p>
+ * Records are collected into a batch, which is sent as soon as it reaches the
+ * maximum number of records or bytes, or when its oldest record has waited for
+ * the linger time. Several batches are sent in parallel, and
+ * {@link #put(String, String, ByteBuffer)} blocks while all of them are in
+ * flight. Each record of a response that failed (e.g. because its shard was
+ * throttled) is retried on its own with an exponential backoff, until it
+ * succeeds or runs out of attempts. Unlike the KPL, the sink does not combine
+ * multiple records into one Kinesis record, so every record counts against the
+ * 1000 records per second limit of its shard.
+ *
+ * @author hhagmans
+ *
+ */
+public class PutRecordsSink implements RecordSink {
+	private static final Log LOG = LogFactory.getLog(PutRecordsSink.class);
+
+	/**
+	 * Maximum number of records of a PutRecords request
+	 */
+	public static final int MAX_RECORDS_PER_REQUEST = 500;
+
+	/**
+	 * Maximum size of a PutRecords request, including the partition keys
+	 */
+	public static final int MAX_BYTES_PER_REQUEST = 5 << 20;
+
+	private static final long MIN_BACKOFF_MILLIS = 100;
+
+	private static final long MAX_BACKOFF_MILLIS = 5000;
+
+	private final AmazonKinesis kinesis;
+
+	private final String streamName;
+
+	private final int maxBatchCount;
+
+	private final int maxBatchBytes;
+
+	private final long lingerNanos;
+
+	private final int maxAttempts;
+
+	private final Semaphore batchesInFlight;
+
+	private final ExecutorService senders;
+
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+
+	private List<Entry> batch = new ArrayList<>();
+
+	private int batchBytes;
+
+	private long batchStartNanos;
+
+	/**
+	 * A record with its result future.
+	 */
+	private static class Entry {
+		final String partitionKey;
+		final String explicitHashKey;
+		final byte[] data;
+		final SettableFuture<PutResult> future = SettableFuture.create();
+		int attempts;
+		String errorCode;
+		String errorMessage;
+
+		Entry(String partitionKey, String explicitHashKey, byte[] data) {
+			this.partitionKey = partitionKey;
+			this.explicitHashKey = explicitHashKey;
+			this.data = data;
+		}
+
+		int size() {
+			return partitionKey.length() + data.length;
+		}
+	}
+
+	/**
+	 * @param kinesis
+	 *            The Amazon Kinesis client used to put the records. Its
+	 *            connection pool should be at least as large as the number of
+	 *            parallel batches.
+	 * @param streamName
+	 *            Name of the stream the records are put in
+	 * @param maxBatchCount
+	 *            Maximum number of records per batch (at most 500)
+	 * @param maxBatchBytes
+	 *            Maximum size of a batch in bytes (at most 5 MB)
+	 * @param lingerMillis
+	 *            Maximum time in milliseconds a record waits for its batch to
+	 *            fill up
+	 * @param parallelBatches
+	 *            Maximum number of batches in flight
+	 * @param maxAttempts
+	 *            Maximum number of attempts per record
+	 */
+	public PutRecordsSink(AmazonKinesis kinesis, String streamName,
+			int maxBatchCount, int maxBatchBytes, int lingerMillis,
+			int parallelBatches, int maxAttempts) {
+		if (kinesis == null) {
+			throw new NullPointerException(
+					"Amazon Kinesis client must not be null");
+		}
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+		this.maxBatchCount = Math.max(1,
+				Math.min(maxBatchCount, MAX_RECORDS_PER_REQUEST));
+		this.maxBatchBytes = Math.max(1,
+				Math.min(maxBatchBytes, MAX_BYTES_PER_REQUEST));
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.batchesInFlight = new Semaphore(Math.max(1, parallelBatches));
+		this.senders = Executors.newFixedThreadPool(Math.max(1,
+				parallelBatches));
+
+		// Sends batches that did not fill up in time
+		long period = Math.max(1, lingerMillis / 4);
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				List<Entry> expired = null;
+				synchronized (PutRecordsSink.this) {
+					if (!batch.isEmpty()
+							&& System.nanoTime() - batchStartNanos >= lingerNanos) {
+						expired = takeBatch();
+					}
+				}
+				if (expired != null) {
+					send(expired, false);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public ListenableFuture<PutResult> put(String partitionKey,
+			String explicitHashKey, ByteBuffer data) {
+		// Copy the data, so the caller can reuse its buffer
+		byte[] bytes = new byte[data.remaining()];
+		int position = data.position();
+		data.get(bytes);
+		data.position(position);
+
+		Entry entry = new Entry(partitionKey, explicitHashKey, bytes);
+		outstanding.getAndIncrement();
+		List<Entry> full = null;
+		List<Entry> filled = null;
+		synchronized (this) {
+			if (!batch.isEmpty() && batchBytes + entry.size() > maxBatchBytes) {
+				full = takeBatch();
+			}
+			if (batch.isEmpty()) {
+				batchStartNanos = System.nanoTime();
+			}
+			batch.add(entry);
+			batchBytes += entry.size();
+			if (batch.size() >= maxBatchCount) {
+				filled = takeBatch();
+			}
+		}
+		if (full != null) {
+			send(full, true);
+		}
+		if (filled != null) {
+			send(filled, true);
+		}
+		return entry.future;
+	}
+
+	@Override
+	public int getOutstandingRecordsCount() {
+		return outstanding.get();
+	}
+
+	@Override
+	public void flushSync() {
+		List<Entry> rest;
+		synchronized (this) {
+			rest = takeBatch();
+		}
+		if (!rest.isEmpty()) {
+			send(rest, true);
+		}
+		try {
+			while (outstanding.get() > 0) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		timer.shutdownNow();
+		senders.shutdownNow();
+	}
+
+	/**
+	 * Must be called while holding the lock of the sink.
+	 */
+	private List<Entry> takeBatch() {
+		List<Entry> taken = batch;
+		batch = new ArrayList<>();
+		batchBytes = 0;
+		return taken;
+	}
+
+	/**
+	 * Sends a batch on one of the sender threads.
+	 *
+	 * @param entries
+	 *            The records of the batch
+	 * @param block
+	 *            Whether to block until fewer than the maximum number of
+	 *            batches are in flight. The timer never blocks, so that it
+	 *            cannot stall the retries.
+	 */
+	private void send(final List<Entry> entries, boolean block) {
+		if (block) {
+			batchesInFlight.acquireUninterruptibly();
+		}
+		final boolean acquired = block;
+		senders.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					putRecords(entries);
+				} finally {
+					if (acquired) {
+						batchesInFlight.release();
+					}
+				}
+			}
+		});
+	}
+
+	private void putRecords(List<Entry> entries) {
+		List<PutRecordsRequestEntry> requestEntries = new ArrayList<>(
+				entries.size());
+		for (Entry entry : entries) {
+			entry.attempts++;
+			requestEntries.add(new PutRecordsRequestEntry()
+					.withPartitionKey(entry.partitionKey)
+					.withExplicitHashKey(entry.explicitHashKey)
+					.withData(ByteBuffer.wrap(entry.data)));
+		}
+
+		List<Entry> retries = new ArrayList<>();
+		// Number of entries that were completed or added to the retries
+		int handled = 0;
+		try {
+			PutRecordsResult result = kinesis.putRecords(new PutRecordsRequest()
+					.withStreamName(streamName).withRecords(requestEntries));
+			// The results are in the same order as the records of the request
+			List<PutRecordsResultEntry> resultEntries = result.getRecords();
+			for (; handled < entries.size(); handled++) {
+				Entry entry = entries.get(handled);
+				PutRecordsResultEntry resultEntry = resultEntries.get(handled);
+				if (resultEntry.getErrorCode() == null) {
+					complete(entry, new PutResult(true, entry.attempts,
+							resultEntry.getShardId(),
+							resultEntry.getSequenceNumber(), null, null));
+				} else {
+					entry.errorCode = resultEntry.getErrorCode();
+					entry.errorMessage = resultEntry.getErrorMessage();
+					retries.add(entry);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Besides the errors of the client, e.g. a stand-in that returns
+			// fewer results than records. The futures of the remaining
+			// entries must be completed, or flushSync waits forever.
+			LOG.warn(String.format(
+					"Unable to put %d records into stream %s, retrying",
+					entries.size() - handled, streamName), e);
+			for (Entry entry : entries.subList(handled, entries.size())) {
+				entry.errorCode = e.getClass().getSimpleName();
+				entry.errorMessage = e.getMessage();
+				retries.add(entry);
+			}
+		}
+		if (!retries.isEmpty()) {
+			retry(retries);
+		}
+	}
+
+	/**
+	 * Fails the records that ran out of attempts and sends the others again
+	 * after a backoff.
+	 */
+	private void retry(List<Entry> entries) {
+		final List<Entry> again = new ArrayList<>(entries.size());
+		int attempts = Integer.MAX_VALUE;
+		for (Entry entry : entries) {
+			if (entry.attempts >= maxAttempts) {
+				complete(entry, new PutResult(false, entry.attempts, null,
+						null, entry.errorCode, entry.errorMessage));
+			} else {
+				again.add(entry);
+				attempts = Math.min(attempts, entry.attempts);
+			}
+		}
+		if (again.isEmpty()) {
+			return;
+		}
+		long backoff = Math.min(MAX_BACKOFF_MILLIS,
+				MIN_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					send(again, false);
+				}
+			}, backoff, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			// The sink was destroyed
+			for (Entry entry : again) {
+				complete(entry, new PutResult(false, entry.attempts, null,
+						null, entry.errorCode, entry.errorMessage));
+			}
+		}
+	}
+
+	private void complete(Entry entry, PutResult result) {
+		outstanding.getAndDecrement();
+		if (result.isSuccessful()) {
+			entry.future.set(result);
+		} else {
+			entry.future.setException(new PutFailedException(result));
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * The result of putting a single record through a {@link RecordSink}.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class PutResult {
+
+	private final boolean successful;
+
+	private final int attempts;
+
+	private final String shardId;
+
+	private final String sequenceNumber;
+
+	private final String errorCode;
+
+	private final String errorMessage;
+
+	/**
+	 * @param successful
+	 *            Whether the record was put
+	 * @param attempts
+	 *            Number of attempts it took to put the record
+	 * @param shardId
+	 *            Id of the shard the record was put into, if successful
+	 * @param sequenceNumber
+	 *            Sequence number of the record, if successful
+	 * @param errorCode
+	 *            Error code of the last attempt, if not successful
+	 * @param errorMessage
+	 *            Error message of the last attempt, if not successful
+	 */
+	public PutResult(boolean successful, int attempts, String shardId,
+			String sequenceNumber, String errorCode, String errorMessage) {
+		this.successful = successful;
+		this.attempts = attempts;
+		this.shardId = shardId;
+		this.sequenceNumber = sequenceNumber;
+		this.errorCode = errorCode;
+		this.errorMessage = errorMessage;
+	}
+
+	public boolean isSuccessful() {
+		return successful;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public String getShardId() {
+		return shardId;
+	}
+
+	public String getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public String getErrorCode() {
+		return errorCode;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+}
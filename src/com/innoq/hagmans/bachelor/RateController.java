@@ -0,0 +1,145 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket that paces the puts of one generator thread.
+ *
+ * <p>
+ * In open-loop mode the controller issues records at the target rate no matter
+ * what happens downstream, and catches up if the generator falls behind. In
+ * closed-loop mode it additionally holds back while the record sink has
+ * more than a configured number of records in flight, and does not try to
+ * catch up afterwards. This keeps the sink's buffers (and therefore the age of
+ * the buffered records) bounded when the stream gets throttled, instead of
+ * letting records run into their TTL.
+ *
+ * <p>
+ * A controller must only be used by a single thread, its counters can be read
+ * by any thread.
+ *
+ * @author hhagmans
+ *
+ */
+public class RateController {
+
+	/**
+	 * How long to wait before checking the records in flight again
+	 */
+	private static final long BACKPRESSURE_PAUSE_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	private final double ratePerSecond;
+
+	private final double nanosPerToken;
+
+	private final double burst;
+
+	private final RecordSink sink;
+
+	private final int maxInFlight;
+
+	private final long startNanos;
+
+	private final long endNanos;
+
+	private long lastRefillNanos;
+
+	private double tokens;
+
+	private final AtomicLong issued = new AtomicLong(0);
+
+	private final AtomicLong backpressureNanos = new AtomicLong(0);
+
+	/**
+	 * Creates a controller that starts immediately.
+	 *
+	 * @param ratePerSecond
+	 *            Target number of records per second
+	 * @param durationSeconds
+	 *            How many seconds to issue records for
+	 * @param sink
+	 *            The sink whose records in flight are limited, or
+	 *            {@code null} for open-loop mode
+	 * @param maxInFlight
+	 *            Maximum number of records in flight in closed-loop mode
+	 */
+	public RateController(int ratePerSecond, int durationSeconds,
+			RecordSink sink, int maxInFlight) {
+		this.ratePerSecond = ratePerSecond;
+		this.nanosPerToken = 1e9 / Math.max(1, ratePerSecond);
+		this.sink = sink;
+		this.maxInFlight = maxInFlight;
+		// The open loop may catch up without limit, the closed loop may burst
+		// for 10 ms at most
+		this.burst = sink == null ? Double.MAX_VALUE : Math.max(1,
+				ratePerSecond / 100d);
+		this.startNanos = System.nanoTime();
+		this.endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.lastRefillNanos = startNanos;
+	}
+
+	/**
+	 * Blocks until the next record may be issued.
+	 *
+	 * @return {@code true} if the next record may be issued, {@code false} if
+	 *         the duration of the run has elapsed
+	 */
+	public boolean acquire() {
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= endNanos || ratePerSecond <= 0) {
+				return false;
+			}
+			if (sink != null
+					&& sink.getOutstandingRecordsCount() >= maxInFlight) {
+				LockSupport.parkNanos(BACKPRESSURE_PAUSE_NANOS);
+				backpressureNanos.addAndGet(System.nanoTime() - now);
+				continue;
+			}
+
+			tokens = Math.min(burst, tokens + (now - lastRefillNanos)
+					/ nanosPerToken);
+			lastRefillNanos = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				issued.getAndIncrement();
+				return true;
+			}
+			LockSupport.parkNanos(Math.min(endNanos - now,
+					(long) ((1 - tokens) * nanosPerToken)));
+		}
+	}
+
+	/**
+	 * @return Number of records issued so far
+	 */
+	public long getIssued() {
+		return issued.get();
+	}
+
+	/**
+	 * @return Target number of records per second
+	 */
+	public double getTargetRate() {
+		return ratePerSecond;
+	}
+
+	/**
+	 * @return Number of records per second issued since the start
+	 */
+	public double getAchievedRate() {
+		long elapsed = Math.min(System.nanoTime(), endNanos) - startNanos;
+		return elapsed <= 0 ? 0 : issued.get() * 1e9 / elapsed;
+	}
+
+	/**
+	 * @return Time in milliseconds the controller held back because too many
+	 *         records were in flight
+	 */
+	public long getBackpressureMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(backpressureNanos.get());
+	}
+}
@@ -0,0 +1,230 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The decoded readings of a batch of records in columnar form: one array per
+ * field instead of one object per reading. Summaries of a window additionally
+ * carry the map that is stored in the summaries of the item.
+ *
+ * <p>
+ * A batch is filled by a single thread and then handed on to the next stage of
+ * the {@link ConsumerPipeline}, which only reads it.
+ *
+ * @author hhagmans
+ *
+ */
+public class ReadingBatch {
+
+	private String[] sensors;
+
+	private long[] runs;
+
+	private long[] sequenceNumbers;
+
+	private long[] timestamps;
+
+	private long[] produced;
+
+	private double[] temperatures;
+
+	private int[] counts;
+
+	private double[] mins;
+
+	private double[] maxs;
+
+	private double[] means;
+
+	private boolean[] changeOnly;
+
+	private final List<Map<String, Object>> summaries = new ArrayList<>();
+
+	private int size;
+
+	/**
+	 * @param capacity
+	 *            Initial number of readings the batch can hold
+	 */
+	public ReadingBatch(int capacity) {
+		capacity = Math.max(1, capacity);
+		sensors = new String[capacity];
+		runs = new long[capacity];
+		sequenceNumbers = new long[capacity];
+		timestamps = new long[capacity];
+		produced = new long[capacity];
+		temperatures = new double[capacity];
+		counts = new int[capacity];
+		mins = new double[capacity];
+		maxs = new double[capacity];
+		means = new double[capacity];
+		changeOnly = new boolean[capacity];
+	}
+
+	/**
+	 * Appends a decoded reading or summary.
+	 *
+	 * @param run
+	 *            The timestamp of the run
+	 * @param reading
+	 *            The decoded record
+	 */
+	public void add(long run, TemperatureReading reading) {
+		add(run, reading.getSensorName(), reading.getSequenceNumber(),
+				reading.getTimestamp(),
+				reading.getTimestamp() + reading.getWindowMillis(),
+				reading.getTemperature(), reading.getCount(), reading.getMin(),
+				reading.getMax(), reading.getMean(), reading.isChangeOnly(),
+				reading.isSummary() ? DynamoDBUtils.toSummary(reading) : null);
+	}
+
+	/**
+	 * Copies a reading of another batch.
+	 *
+	 * @param batch
+	 *            The other batch
+	 * @param i
+	 *            Index of the reading in the other batch
+	 */
+	public void add(ReadingBatch batch, int i) {
+		add(batch.runs[i], batch.sensors[i], batch.sequenceNumbers[i],
+				batch.timestamps[i], batch.produced[i], batch.temperatures[i],
+				batch.counts[i], batch.mins[i], batch.maxs[i], batch.means[i],
+				batch.changeOnly[i], batch.summaries.get(i));
+	}
+
+	private void add(long run, String sensor, long sequenceNumber,
+			long timestamp, long producedAt, double temperature, int count,
+			double min, double max, double mean, boolean isChangeOnly,
+			Map<String, Object> summary) {
+		if (size == sensors.length) {
+			int capacity = 2 * size;
+			sensors = Arrays.copyOf(sensors, capacity);
+			runs = Arrays.copyOf(runs, capacity);
+			sequenceNumbers = Arrays.copyOf(sequenceNumbers, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			produced = Arrays.copyOf(produced, capacity);
+			temperatures = Arrays.copyOf(temperatures, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			mins = Arrays.copyOf(mins, capacity);
+			maxs = Arrays.copyOf(maxs, capacity);
+			means = Arrays.copyOf(means, capacity);
+			changeOnly = Arrays.copyOf(changeOnly, capacity);
+		}
+		sensors[size] = sensor;
+		runs[size] = run;
+		sequenceNumbers[size] = sequenceNumber;
+		timestamps[size] = timestamp;
+		produced[size] = producedAt;
+		temperatures[size] = temperature;
+		counts[size] = count;
+		mins[size] = min;
+		maxs[size] = max;
+		means[size] = mean;
+		changeOnly[size] = isChangeOnly;
+		summaries.add(summary);
+		size++;
+	}
+
+	/**
+	 * @return Number of readings in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getSensor(int i) {
+		return sensors[i];
+	}
+
+	public long getRun(int i) {
+		return runs[i];
+	}
+
+	/**
+	 * @return Sequence number of the record within its sensor and run, or
+	 *         {@link TemperatureReading#NO_SEQUENCE_NUMBER}
+	 */
+	public long getSequenceNumber(int i) {
+		return sequenceNumbers[i];
+	}
+
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+
+	/**
+	 * @return Time in milliseconds at which the producer created the record:
+	 *         the timestamp of a reading, or the end of the window of a
+	 *         summary
+	 */
+	public long getProducedAt(int i) {
+		return produced[i];
+	}
+
+	/**
+	 * @return The temperature of a reading, or the last temperature of the
+	 *         window of a summary
+	 */
+	public double getTemperature(int i) {
+		return temperatures[i];
+	}
+
+	/**
+	 * @return Number of readings summarized, 1 for a single reading
+	 */
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * @return The lowest temperature of the window of a summary, or the
+	 *         temperature of a reading
+	 */
+	public double getMin(int i) {
+		return mins[i];
+	}
+
+	/**
+	 * @return The highest temperature of the window of a summary, or the
+	 *         temperature of a reading
+	 */
+	public double getMax(int i) {
+		return maxs[i];
+	}
+
+	/**
+	 * @return The mean temperature of the window of a summary, or the
+	 *         temperature of a reading
+	 */
+	public double getMean(int i) {
+		return means[i];
+	}
+
+	/**
+	 * @return Whether the reading was only sent because the temperature
+	 *         changed, so that it holds until the next reading of the sensor
+	 */
+	public boolean isChangeOnly(int i) {
+		return changeOnly[i];
+	}
+
+	/**
+	 * @return Whether the reading is the summary of a window
+	 */
+	public boolean isSummary(int i) {
+		return summaries.get(i) != null;
+	}
+
+	/**
+	 * @return The summary of a window (see
+	 *         {@link DynamoDBUtils#toSummary(TemperatureReading)}), or
+	 *         {@code null} if the reading is no summary
+	 */
+	public Map<String, Object> getSummary(int i) {
+		return summaries.get(i);
+	}
+}
@@ -0,0 +1,124 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Generates the records of a slice of a {@link SensorFleet}.
+ * 
+ * <p>
+ * Every call of {@link #next()} advances the next sensor of the slice in a
+ * round-robin fashion and encodes its reading into a buffer that is reused for
+ * all records. Together with the thread local random numbers of
+ * {@link Utils#getNextTemperature(double)}, the steady state of the generator
+ * doesn't allocate any objects. A generator is not thread safe and must
+ * always be used by the thread owning the slice.
+ * 
+ * @author hhagmans
+ * 
+ */
+public class ReadingGenerator {
+
+	private final SensorFleet fleet;
+
+	private final int from;
+
+	private final int to;
+
+	private final boolean legacyFormat;
+
+	private final int legacySize;
+
+	private final ByteBuffer buffer;
+
+	private int sensor;
+
+	private int lastSensor;
+
+	/**
+	 * @param fleet
+	 *            The simulated fleet
+	 * @param from
+	 *            Id of the first sensor of the slice (inclusive)
+	 * @param to
+	 *            Id of the last sensor of the slice (exclusive)
+	 * @param legacyFormat
+	 *            Whether the records are written in the legacy text format
+	 *            instead of the binary format of
+	 *            {@link TemperatureRecordCodec}
+	 * @param legacySize
+	 *            Size of each record in the legacy text format
+	 */
+	public ReadingGenerator(SensorFleet fleet, int from, int to,
+			boolean legacyFormat, int legacySize) {
+		this.fleet = fleet;
+		this.from = from;
+		this.to = to;
+		this.legacyFormat = legacyFormat;
+		this.legacySize = legacySize;
+		// The text of a long sensor name may exceed the padded size
+		this.buffer = ByteBuffer.allocate(Math.max(
+				TemperatureRecordCodec.MAX_RECORD_SIZE, Math.max(legacySize,
+						Utils.maxDataLength(fleet.getMaxEncodedNameLength()))));
+		this.sensor = from;
+	}
+
+	/**
+	 * Generates the reading of the next sensor of the slice.
+	 * 
+	 * @return The encoded reading. The buffer is only valid until the next
+	 *         call of this method, so its content must be copied (as
+	 *         KinesisProducer.addUserRecord does) if it is used longer.
+	 */
+	public ByteBuffer next() {
+		double temperature = advance();
+		return encode(temperature, System.currentTimeMillis(), (byte) 0);
+	}
+
+	/**
+	 * Encodes a reading of the sensor that was advanced last.
+	 * 
+	 * @param temperature
+	 *            The temperature of the reading
+	 * @param timestamp
+	 *            Time in milliseconds at which the reading was produced
+	 * @param flags
+	 *            The flags of the reading (see {@link TemperatureRecordCodec}
+	 *            ), which are dropped in the legacy text format
+	 * @return The encoded reading. The buffer is only valid until the next
+	 *         reading is encoded.
+	 */
+	public ByteBuffer encode(double temperature, long timestamp, byte flags) {
+		buffer.clear();
+		if (legacyFormat) {
+			Utils.writeData(buffer, temperature,
+					fleet.getEncodedName(lastSensor), timestamp, legacySize);
+		} else {
+			TemperatureRecordCodec.encodeReading(buffer,
+					fleet.getEncodedName(lastSensor),
+					fleet.nextSequenceNumber(lastSensor), timestamp,
+					temperature, flags);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Advances the temperature of the next sensor of the slice without
+	 * encoding it.
+	 * 
+	 * @return The new temperature of the sensor, see {@link #getLastSensor()}
+	 */
+	public double advance() {
+		double temperature = fleet.nextTemperature(sensor);
+		lastSensor = sensor;
+		sensor = sensor + 1 < to ? sensor + 1 : from;
+		return temperature;
+	}
+
+	/**
+	 * @return Id of the sensor of the last generated reading
+	 */
+	public int getLastSensor() {
+		return lastSensor;
+	}
+}
@@ -0,0 +1,49 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Puts the records of the producer into a Kinesis stream.
+ * 
+ * @see KplRecordSink
+ * @see PutRecordsSink
+ * @author hhagmans
+ * 
+ */
+public interface RecordSink {
+
+	/**
+	 * Puts a record asynchronously. The data is copied before this method
+	 * returns, so the caller may reuse its buffer.
+	 * 
+	 * @param partitionKey
+	 *            Partition key of the record
+	 * @param explicitHashKey
+	 *            Explicit hash key of the record
+	 * @param data
+	 *            Data of the record
+	 * @return Future that completes when the record was put, or fails with a
+	 *         {@link PutFailedException} when it could not be put
+	 */
+	ListenableFuture<PutResult> put(String partitionKey,
+			String explicitHashKey, ByteBuffer data);
+
+	/**
+	 * @return Number of records that were handed to the sink and have not
+	 *         completed yet
+	 */
+	int getOutstandingRecordsCount();
+
+	/**
+	 * Sends all buffered records and blocks until all records have completed.
+	 */
+	void flushSync();
+
+	/**
+	 * Releases all resources of the sink. Records that have not completed yet
+	 * may be lost.
+	 */
+	void destroy();
+}
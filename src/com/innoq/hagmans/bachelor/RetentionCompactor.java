@@ -0,0 +1,168 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Deletes the readings and minute rollups whose retention has expired in the
+ * background, so that the tables, and with them the cost of the scans of the
+ * servlet, stop growing with every run of the producer.
+ *
+ * <p>
+ * The items also carry the time they expire, so the time to live of DynamoDB
+ * can delete them as well once it is enabled on the tables. The compactor
+ * does not depend on it: it also removes items written before the retention
+ * was set, and it downsamples expired buckets into hour rollups first (see
+ * {@link DynamoDBUtils#compactTemperatures}). The read and write capacity
+ * units it consumes per second are capped.
+ *
+ * <p>
+ * Only the first pass scans the tables, to find the items that have no entry
+ * in the expiry index. The later passes query the index for the buckets that
+ * expired since the previous pass (see
+ * {@link DynamoDBUtils#compactExpiredBuckets}), so their cost grows with the
+ * number of expired items instead of the size of the tables. Runs are keyed
+ * by the time they started and their buckets by time, so a run expires bucket
+ * by bucket as it ages and is gone with its last bucket.
+ *
+ * @author hhagmans
+ *
+ */
+public class RetentionCompactor implements Closeable {
+	private static final Log LOG = LogFactory.getLog(RetentionCompactor.class);
+
+	private final DynamoDBUtils dbUtils;
+
+	private final String tableName;
+
+	private final String rollupTableName;
+
+	private final RateLimiter reads;
+
+	private final RateLimiter writes;
+
+	private final int pageSize;
+
+	private final long intervalMillis;
+
+	private final AtomicLong bucketsDeleted = new AtomicLong(0);
+
+	private final AtomicLong rollupsDeleted = new AtomicLong(0);
+
+	/**
+	 * Start of the last bucket compacted, {@link Long#MIN_VALUE} before the
+	 * first pass. Only accessed by the compactor thread.
+	 */
+	private long compactedThrough = Long.MIN_VALUE;
+
+	private final ScheduledExecutorService compactor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	/**
+	 * @param dbUtils
+	 *            Deletes the expired items, with the retention it was created
+	 *            with
+	 * @param tableName
+	 *            The name of the temperature table
+	 * @param rollupTableName
+	 *            The name of the rollup table
+	 * @param readUnitsPerSecond
+	 *            Maximum read capacity units consumed per second
+	 * @param writeUnitsPerSecond
+	 *            Maximum write capacity units consumed per second
+	 * @param pageSize
+	 *            Number of items evaluated per scan request
+	 * @param intervalMillis
+	 *            Interval in which the tables are compacted
+	 */
+	public RetentionCompactor(DynamoDBUtils dbUtils, String tableName,
+			String rollupTableName, double readUnitsPerSecond,
+			double writeUnitsPerSecond, int pageSize, long intervalMillis) {
+		this.dbUtils = dbUtils;
+		this.tableName = tableName;
+		this.rollupTableName = rollupTableName;
+		this.reads = RateLimiter.create(readUnitsPerSecond);
+		this.writes = RateLimiter.create(writeUnitsPerSecond);
+		this.pageSize = pageSize;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Starts the compaction in the background, the first pass runs at once.
+	 */
+	public void start() {
+		compactor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (RuntimeException e) {
+					LOG.warn("Unable to compact the tables, will retry", e);
+				}
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Deletes the expired buckets and minute rollups.
+	 *
+	 * @throws AmazonClientException
+	 *             If a request failed
+	 */
+	public synchronized void compact() {
+		long now = System.currentTimeMillis();
+		int buckets;
+		int rollups;
+		if (compactedThrough == Long.MIN_VALUE) {
+			buckets = dbUtils.compactTemperatures(tableName, rollupTableName,
+					now, reads, writes, pageSize);
+			bucketsDeleted.getAndAdd(buckets);
+			rollups = dbUtils.compactRollups(rollupTableName, now, reads,
+					writes, pageSize);
+		} else {
+			DynamoDBUtils.Compacted compacted = dbUtils.compactExpiredBuckets(
+					tableName, rollupTableName,
+					compactedThrough + dbUtils.getBucketMillis(), now, reads,
+					writes, pageSize);
+			buckets = compacted.getBuckets();
+			bucketsDeleted.getAndAdd(buckets);
+			rollups = compacted.getRollups();
+		}
+		rollupsDeleted.getAndAdd(rollups);
+		compactedThrough = dbUtils.getLastExpiredBucket(now);
+		LOG.info(String.format(
+				"Deleted %d expired buckets and %d expired minute rollups",
+				buckets, rollups));
+	}
+
+	/**
+	 * @return Number of expired buckets deleted so far
+	 */
+	public long getBucketsDeleted() {
+		return bucketsDeleted.get();
+	}
+
+	/**
+	 * @return Number of expired minute rollups deleted so far
+	 */
+	public long getRollupsDeleted() {
+		return rollupsDeleted.get();
+	}
+
+	/**
+	 * Stops the compaction, a running pass is interrupted.
+	 */
+	@Override
+	public void close() {
+		compactor.shutdownNow();
+	}
+}
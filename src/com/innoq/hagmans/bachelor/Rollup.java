@@ -0,0 +1,254 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * The aggregate of the readings of a sensor in a window of event time: the
+ * number of readings, the minimum, maximum and sum of the temperatures, and
+ * the first and last temperature with their timestamps.
+ *
+ * <p>
+ * The readings of a sensor in dead-band mode are only sent when the
+ * temperature changes, and each one holds until the next one, so their
+ * arithmetic mean would overweight the short periods of fast changes. For
+ * these readings the rollup also keeps the mean weighted by the time each
+ * temperature held, from the first of them in the window to its end, and
+ * {@link #getMean()} returns it. A reading that arrives after a later one has
+ * already been added only counts for the number of readings, the extremes
+ * and the arithmetic mean.
+ *
+ * @see RollupAggregator
+ * @author hhagmans
+ *
+ */
+public class Rollup {
+
+	private final String sensor;
+
+	private final long resolutionMillis;
+
+	private final long windowStart;
+
+	private long count;
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	private double sum;
+
+	private long firstTimestamp = Long.MAX_VALUE;
+
+	private double first;
+
+	private long lastTimestamp = Long.MIN_VALUE;
+
+	private double last;
+
+	/**
+	 * Sum of the temperatures of the change-only readings, each multiplied by
+	 * the milliseconds it held until the next one
+	 */
+	private double heldSum;
+
+	private long heldMillis;
+
+	/**
+	 * Timestamp of the latest change-only reading, whose temperature holds
+	 * until the end of the window, or Long.MIN_VALUE if there is none
+	 */
+	private long heldFrom = Long.MIN_VALUE;
+
+	private double held;
+
+	/**
+	 * Creates an empty rollup.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param resolutionMillis
+	 *            Length of the window in milliseconds
+	 * @param windowStart
+	 *            Start of the window in milliseconds
+	 */
+	public Rollup(String sensor, long resolutionMillis, long windowStart) {
+		this.sensor = sensor;
+		this.resolutionMillis = resolutionMillis;
+		this.windowStart = windowStart;
+	}
+
+	/**
+	 * Creates a rollup with the given values, e.g. one read from DynamoDB.
+	 */
+	public Rollup(String sensor, long resolutionMillis, long windowStart,
+			long count, double min, double max, double sum,
+			long firstTimestamp, double first, long lastTimestamp, double last) {
+		this(sensor, resolutionMillis, windowStart);
+		this.count = count;
+		this.min = min;
+		this.max = max;
+		this.sum = sum;
+		this.firstTimestamp = firstTimestamp;
+		this.first = first;
+		this.lastTimestamp = lastTimestamp;
+		this.last = last;
+	}
+
+	/**
+	 * Creates a rollup with the given values including those of the
+	 * change-only readings, e.g. one read from DynamoDB.
+	 */
+	public Rollup(String sensor, long resolutionMillis, long windowStart,
+			long count, double min, double max, double sum,
+			long firstTimestamp, double first, long lastTimestamp,
+			double last, double heldSum, long heldMillis, long heldFrom,
+			double held) {
+		this(sensor, resolutionMillis, windowStart, count, min, max, sum,
+				firstTimestamp, first, lastTimestamp, last);
+		this.heldSum = heldSum;
+		this.heldMillis = heldMillis;
+		this.heldFrom = heldFrom;
+		this.held = held;
+	}
+
+	/**
+	 * @return A copy of this rollup
+	 */
+	public Rollup copy() {
+		return new Rollup(sensor, resolutionMillis, windowStart, count, min,
+				max, sum, firstTimestamp, first, lastTimestamp, last, heldSum,
+				heldMillis, heldFrom, held);
+	}
+
+	/**
+	 * Adds a reading, or the summary of a window of readings.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the reading, or start of the summarized window
+	 * @param readings
+	 *            Number of readings, 1 for a single reading
+	 * @param minimum
+	 *            The lowest temperature
+	 * @param maximum
+	 *            The highest temperature
+	 * @param mean
+	 *            The mean temperature, which is also used as the first one
+	 * @param latest
+	 *            The last temperature
+	 */
+	public void add(long timestamp, long readings, double minimum,
+			double maximum, double mean, double latest) {
+		count += readings;
+		min = Math.min(min, minimum);
+		max = Math.max(max, maximum);
+		sum += mean * readings;
+		if (timestamp < firstTimestamp) {
+			firstTimestamp = timestamp;
+			first = mean;
+		}
+		if (timestamp >= lastTimestamp) {
+			lastTimestamp = timestamp;
+			last = latest;
+		}
+	}
+
+	/**
+	 * Adds a reading that was only sent because the temperature changed, so
+	 * that it holds until the next reading of the sensor.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the reading
+	 * @param temperature
+	 *            The temperature
+	 */
+	public void addChangeOnly(long timestamp, double temperature) {
+		add(timestamp, 1, temperature, temperature, temperature, temperature);
+		if (timestamp <= heldFrom) {
+			// Late, the period it held is unknown
+			return;
+		}
+		if (heldFrom != Long.MIN_VALUE) {
+			heldSum += held * (timestamp - heldFrom);
+			heldMillis += timestamp - heldFrom;
+		}
+		heldFrom = timestamp;
+		held = temperature;
+	}
+
+	public String getSensor() {
+		return sensor;
+	}
+
+	public long getResolutionMillis() {
+		return resolutionMillis;
+	}
+
+	public long getWindowStart() {
+		return windowStart;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return The mean temperature weighted by time if the window holds
+	 *         change-only readings, otherwise the arithmetic mean, or 0 if
+	 *         the rollup is empty
+	 */
+	public double getMean() {
+		if (heldFrom != Long.MIN_VALUE) {
+			long untilEnd = windowStart + resolutionMillis - heldFrom;
+			if (heldMillis + untilEnd > 0) {
+				return (heldSum + held * untilEnd) / (heldMillis + untilEnd);
+			}
+		}
+		return count == 0 ? 0 : sum / count;
+	}
+
+	public long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	public double getFirst() {
+		return first;
+	}
+
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	public double getLast() {
+		return last;
+	}
+
+	public double getHeldSum() {
+		return heldSum;
+	}
+
+	public long getHeldMillis() {
+		return heldMillis;
+	}
+
+	/**
+	 * @return Timestamp of the latest change-only reading, or Long.MIN_VALUE
+	 *         if the window holds none
+	 */
+	public long getHeldFrom() {
+		return heldFrom;
+	}
+
+	public double getHeld() {
+		return held;
+	}
+}
@@ -0,0 +1,509 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Maintains a {@link Rollup} per sensor and window of one minute, one hour
+ * and one day of event time, so that charts over long ranges do not have to
+ * read every reading.
+ *
+ * <p>
+ * The windows are kept in memory and written to the rollup table whenever
+ * they changed, every flush interval and before every checkpoint. Every
+ * sensor has its own watermark, the latest event time seen from it so far, so
+ * a sensor whose clock runs ahead or whose shard is processed ahead of the
+ * others does not close the windows of the other sensors. A window closes
+ * once the watermark of its sensor has passed its end by the allowed
+ * lateness: it is written one last time and dropped from memory. Readings
+ * that arrive later are counted and ignored. The last windows of a sensor
+ * that stops reporting stay in memory.
+ *
+ * <p>
+ * A window that starts before this aggregator was created may already have
+ * been written by an earlier run of the consumer. When such a window is first
+ * touched, it is read from the table by a separate thread, so that the persist
+ * stripes never wait for DynamoDB. Until then the window keeps its updates
+ * aside and is neither written nor closed. Once it is read, updates up to its
+ * last timestamp are skipped, because they are replays of records after the
+ * last checkpoint. This assumes that a single consumer processes the stream.
+ *
+ * @author hhagmans
+ *
+ */
+public class RollupAggregator implements Closeable {
+	private static final Log LOG = LogFactory.getLog(RollupAggregator.class);
+
+	/**
+	 * The window lengths of the rollups.
+	 */
+	public enum Resolution {
+		MINUTE(TimeUnit.MINUTES.toMillis(1)), HOUR(TimeUnit.HOURS.toMillis(1)), DAY(
+				TimeUnit.DAYS.toMillis(1));
+
+		private final long millis;
+
+		private Resolution(long millis) {
+			this.millis = millis;
+		}
+
+		/**
+		 * @return Length of a window in milliseconds
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * @return Start of the window that holds the timestamp
+		 */
+		public long windowOf(long timestamp) {
+			long offset = timestamp % millis;
+			return timestamp - (offset < 0 ? offset + millis : offset);
+		}
+
+		/**
+		 * Picks the coarsest resolution that still has a window for every
+		 * pixel of a chart.
+		 *
+		 * @param rangeMillis
+		 *            The time range of the chart
+		 * @param width
+		 *            Width of the chart in pixels
+		 * @return The resolution, or {@code null} if even the finest
+		 *         resolution has fewer windows than pixels, so the readings
+		 *         themselves should be drawn
+		 */
+		public static Resolution coarsestFor(long rangeMillis, int width) {
+			Resolution[] resolutions = values();
+			for (int i = resolutions.length - 1; i >= 0; i--) {
+				if (rangeMillis / resolutions[i].millis >= width) {
+					return resolutions[i];
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The open windows of a sensor per resolution and window start, and the
+	 * watermark of the sensor, which are guarded by this object.
+	 */
+	private static class SensorWindows {
+		final EnumMap<Resolution, HashMap<Long, Window>> windows = new EnumMap<>(
+				Resolution.class);
+
+		long watermark = Long.MIN_VALUE;
+
+		SensorWindows() {
+			for (Resolution resolution : Resolution.values()) {
+				windows.put(resolution, new HashMap<Long, Window>());
+			}
+		}
+	}
+
+	/**
+	 * A rollup in memory.
+	 */
+	private static class Window {
+		/**
+		 * The windows of the sensor, which guard this window
+		 */
+		final SensorWindows lock;
+
+		Rollup rollup;
+
+		/**
+		 * Readings up to this timestamp were written by an earlier run
+		 */
+		long restoredThrough = Long.MIN_VALUE;
+
+		/**
+		 * The updates that arrived while the window is read from the table,
+		 * or {@code null} once it is read
+		 */
+		Updates updates;
+
+		boolean dirty;
+
+		Window(SensorWindows lock, Rollup rollup) {
+			this.lock = lock;
+			this.rollup = rollup;
+		}
+	}
+
+	/**
+	 * Updates of a window in parallel arrays.
+	 */
+	private static class Updates {
+		long[] timestamps = new long[4];
+		long[] counts = new long[4];
+		double[] mins = new double[4];
+		double[] maxs = new double[4];
+		double[] means = new double[4];
+		double[] lasts = new double[4];
+		boolean[] changeOnly = new boolean[4];
+		int size;
+
+		void add(long timestamp, long count, double min, double max,
+				double mean, double last, boolean isChangeOnly) {
+			if (size == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, 2 * size);
+				counts = Arrays.copyOf(counts, 2 * size);
+				mins = Arrays.copyOf(mins, 2 * size);
+				maxs = Arrays.copyOf(maxs, 2 * size);
+				means = Arrays.copyOf(means, 2 * size);
+				lasts = Arrays.copyOf(lasts, 2 * size);
+				changeOnly = Arrays.copyOf(changeOnly, 2 * size);
+			}
+			timestamps[size] = timestamp;
+			counts[size] = count;
+			mins[size] = min;
+			maxs[size] = max;
+			means[size] = mean;
+			lasts[size] = last;
+			changeOnly[size] = isChangeOnly;
+			size++;
+		}
+	}
+
+	/**
+	 * Number of threads that read windows of earlier runs from the table
+	 */
+	private static final int RESTORE_THREADS = 4;
+
+	private final DynamoDBUtils dbUtils;
+
+	private final String tableName;
+
+	private final long allowedLatenessMillis;
+
+	private final long createdMillis = System.currentTimeMillis();
+
+	/**
+	 * The open windows and the watermark per sensor
+	 */
+	private final ConcurrentMap<String, SensorWindows> sensors = new ConcurrentHashMap<>();
+
+	private final AtomicLong lateUpdates = new AtomicLong(0);
+
+	private final AtomicLong replayedUpdates = new AtomicLong(0);
+
+	private final AtomicLong rollupsWritten = new AtomicLong(0);
+
+	/**
+	 * Only one flush runs at a time
+	 */
+	private final Object flushLock = new Object();
+
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final ExecutorService restorer = Executors
+			.newFixedThreadPool(RESTORE_THREADS);
+
+	/**
+	 * @param dbUtils
+	 *            Reads and writes the rollups
+	 * @param tableName
+	 *            The name of the rollup table
+	 * @param allowedLatenessMillis
+	 *            How long a window accepts readings after its end, measured
+	 *            in event time
+	 * @param flushIntervalMillis
+	 *            Interval in which changed windows are written in the
+	 *            background
+	 */
+	public RollupAggregator(DynamoDBUtils dbUtils, String tableName,
+			long allowedLatenessMillis, long flushIntervalMillis) {
+		this.dbUtils = dbUtils;
+		this.tableName = tableName;
+		this.allowedLatenessMillis = allowedLatenessMillis;
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					LOG.warn("Unable to write the rollups, will retry", e);
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a reading, or the summary of a window of readings, to the rollups
+	 * of its sensor.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param timestamp
+	 *            Timestamp of the reading, or start of the summarized window
+	 * @param count
+	 *            Number of readings, 1 for a single reading
+	 * @param min
+	 *            The lowest temperature
+	 * @param max
+	 *            The highest temperature
+	 * @param mean
+	 *            The mean temperature
+	 * @param last
+	 *            The last temperature
+	 * @param changeOnly
+	 *            Whether the reading was only sent because the temperature
+	 *            changed, so that it holds until the next one (see
+	 *            {@link Rollup#addChangeOnly(long, double)})
+	 */
+	public void add(String sensor, long timestamp, long count, double min,
+			double max, double mean, double last, boolean changeOnly) {
+		SensorWindows windows = sensors.get(sensor);
+		if (windows == null) {
+			windows = new SensorWindows();
+			SensorWindows previous = sensors.putIfAbsent(sensor, windows);
+			if (previous != null) {
+				windows = previous;
+			}
+		}
+		synchronized (windows) {
+			windows.watermark = Math.max(windows.watermark, timestamp);
+			for (Resolution resolution : Resolution.values()) {
+				long start = resolution.windowOf(timestamp);
+				HashMap<Long, Window> resolutionWindows = windows.windows
+						.get(resolution);
+				if (isClosed(windows, resolution, start)) {
+					lateUpdates.getAndIncrement();
+					continue;
+				}
+				Window window = resolutionWindows.get(start);
+				if (window == null) {
+					window = open(windows, sensor, resolution, start);
+					resolutionWindows.put(start, window);
+				}
+				if (window.updates != null) {
+					window.updates.add(timestamp, count, min, max, mean, last,
+							changeOnly);
+					continue;
+				}
+				if (timestamp <= window.restoredThrough) {
+					replayedUpdates.getAndIncrement();
+					continue;
+				}
+				add(window.rollup, timestamp, count, min, max, mean, last,
+						changeOnly);
+				window.dirty = true;
+			}
+		}
+	}
+
+	private static void add(Rollup rollup, long timestamp, long count,
+			double min, double max, double mean, double last,
+			boolean changeOnly) {
+		if (changeOnly) {
+			rollup.addChangeOnly(timestamp, last);
+		} else {
+			rollup.add(timestamp, count, min, max, mean, last);
+		}
+	}
+
+	/**
+	 * @return Whether the watermark of the sensor has passed the end of the
+	 *         window by the allowed lateness. The caller holds the lock of the
+	 *         windows of the sensor.
+	 */
+	private boolean isClosed(SensorWindows windows, Resolution resolution,
+			long windowStart) {
+		return windows.watermark >= windowStart + resolution.millis
+				+ allowedLatenessMillis;
+	}
+
+	/**
+	 * Opens a window. If it may have been written by an earlier run, it is
+	 * restored from the table in the background. The caller holds the lock
+	 * of the windows of the sensor.
+	 */
+	private Window open(SensorWindows lock, String sensor,
+			Resolution resolution, long start) {
+		Window window = new Window(lock, new Rollup(sensor, resolution.millis,
+				start));
+		if (start < createdMillis) {
+			window.updates = new Updates();
+			try {
+				restorer.execute(restore(window, sensor, resolution, start));
+			} catch (RejectedExecutionException e) {
+				// Closed, the window starts empty
+				window.updates = null;
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * @return Task that reads a window from the table and applies the updates
+	 *         that arrived in the meantime
+	 */
+	private Runnable restore(final Window window, final String sensor,
+			final Resolution resolution, final long start) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Rollup stored = null;
+				try {
+					stored = dbUtils.getRollup(tableName, sensor,
+							resolution.millis, start);
+				} catch (AmazonClientException e) {
+					LOG.warn(String.format(
+							"Unable to restore the rollup of %s at %d, starting empty",
+							sensor, start), e);
+				}
+				synchronized (window.lock) {
+					if (stored != null) {
+						window.rollup = stored;
+						window.restoredThrough = stored.getLastTimestamp();
+					}
+					Updates updates = window.updates;
+					window.updates = null;
+					for (int i = 0; i < updates.size; i++) {
+						if (updates.timestamps[i] <= window.restoredThrough) {
+							replayedUpdates.getAndIncrement();
+							continue;
+						}
+						add(window.rollup, updates.timestamps[i],
+								updates.counts[i], updates.mins[i],
+								updates.maxs[i], updates.means[i],
+								updates.lasts[i], updates.changeOnly[i]);
+						window.dirty = true;
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes all windows that changed since the last flush and drops the
+	 * closed windows from memory. If the write fails, the windows are written
+	 * again by the next flush.
+	 *
+	 * @throws AmazonClientException
+	 *             If the rollups could not be written
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<Window> flushed = new ArrayList<>();
+			List<Rollup> rollups = new ArrayList<>();
+			for (SensorWindows windows : sensors.values()) {
+				synchronized (windows) {
+					for (Map.Entry<Resolution, HashMap<Long, Window>> resolution : windows.windows
+							.entrySet()) {
+						Iterator<Map.Entry<Long, Window>> it = resolution
+								.getValue().entrySet().iterator();
+						while (it.hasNext()) {
+							Map.Entry<Long, Window> entry = it.next();
+							Window window = entry.getValue();
+							if (window.updates != null) {
+								// Still being restored
+								continue;
+							}
+							if (window.dirty) {
+								window.dirty = false;
+								flushed.add(window);
+								rollups.add(window.rollup.copy());
+							} else if (isClosed(windows, resolution.getKey(),
+									entry.getKey())) {
+								// Written by an earlier flush
+								it.remove();
+							}
+						}
+					}
+				}
+			}
+			if (rollups.isEmpty()) {
+				return;
+			}
+			try {
+				dbUtils.batchPutRollups(tableName, rollups);
+				rollupsWritten.getAndAdd(rollups.size());
+			} catch (RuntimeException e) {
+				for (Window window : flushed) {
+					synchronized (window.lock) {
+						window.dirty = true;
+					}
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of window updates that were ignored because the window
+	 *         had already closed
+	 */
+	public long getLateUpdates() {
+		return lateUpdates.get();
+	}
+
+	/**
+	 * @return Number of window updates that were skipped because an earlier
+	 *         run had already written them
+	 */
+	public long getReplayedUpdates() {
+		return replayedUpdates.get();
+	}
+
+	/**
+	 * @return Number of rollups written so far
+	 */
+	public long getRollupsWritten() {
+		return rollupsWritten.get();
+	}
+
+	/**
+	 * @param sensor
+	 *            Name of the sensor
+	 * @return The latest event time seen from the sensor so far, or
+	 *         Long.MIN_VALUE if none was seen
+	 */
+	public long getWatermark(String sensor) {
+		SensorWindows windows = sensors.get(sensor);
+		if (windows == null) {
+			return Long.MIN_VALUE;
+		}
+		synchronized (windows) {
+			return windows.watermark;
+		}
+	}
+
+	/**
+	 * Waits for the windows that are being restored, writes the changed
+	 * windows and stops the background flushes.
+	 */
+	@Override
+	public void close() {
+		flusher.shutdown();
+		restorer.shutdown();
+		try {
+			restorer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+}
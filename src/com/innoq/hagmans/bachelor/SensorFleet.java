@@ -0,0 +1,152 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Holds the state of a fleet of simulated temperature sensors.
+ *
+ * <p>
+ * The state of every sensor is kept in primitive arrays indexed by the sensor
+ * id, so even a fleet of a million sensors only needs a few megabytes and no
+ * boxed values. The fleet is split into contiguous slices, one per generator
+ * thread. A slice must only be advanced by the thread that owns it, which
+ * makes any further synchronization unnecessary.
+ *
+ * @see TemperatureProducer
+ * @author hhagmans
+ *
+ */
+public class SensorFleet {
+
+	private final String[] names;
+
+	private final byte[][] encodedNames;
+
+	private final double[] temperatures;
+
+	private final long[] sequenceNumbers;
+
+	/**
+	 * Creates a new fleet with the given number of sensors and a random start
+	 * temperature for every sensor.
+	 *
+	 * @param namePrefix
+	 *            Name of the sensor if the fleet consists of exactly one
+	 *            sensor, otherwise the prefix of all sensor names
+	 * @param size
+	 *            Number of sensors in the fleet
+	 */
+	public SensorFleet(String namePrefix, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException(
+					"A fleet needs at least one sensor");
+		}
+		names = new String[size];
+		encodedNames = new byte[size][];
+		temperatures = new double[size];
+		sequenceNumbers = new long[size];
+		for (int sensor = 0; sensor < size; sensor++) {
+			names[sensor] = size == 1 ? namePrefix : namePrefix + "-"
+					+ sensor;
+			encodedNames[sensor] = names[sensor]
+					.getBytes(StandardCharsets.UTF_8);
+			temperatures[sensor] = Utils.getFirstTemperature();
+		}
+	}
+
+	/**
+	 * @return Number of sensors in the fleet
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * @param sensor
+	 *            Id of the sensor
+	 * @return Name of the sensor
+	 */
+	public String getName(int sensor) {
+		return names[sensor];
+	}
+
+	/**
+	 * @param sensor
+	 *            Id of the sensor
+	 * @return UTF-8 encoded name of the sensor. The array must not be
+	 *         modified.
+	 */
+	public byte[] getEncodedName(int sensor) {
+		return encodedNames[sensor];
+	}
+
+	/**
+	 * @return Length of the longest UTF-8 encoded sensor name of the fleet
+	 */
+	public int getMaxEncodedNameLength() {
+		int max = 0;
+		for (byte[] encodedName : encodedNames) {
+			max = Math.max(max, encodedName.length);
+		}
+		return max;
+	}
+
+	/**
+	 * @param sensor
+	 *            Id of the sensor
+	 * @return The last temperature of the sensor
+	 */
+	public double getTemperature(int sensor) {
+		return temperatures[sensor];
+	}
+
+	/**
+	 * Advances the temperature of the given sensor and returns it. Must only
+	 * be called by the thread owning the slice of the sensor.
+	 *
+	 * @param sensor
+	 *            Id of the sensor
+	 * @return The new temperature of the sensor
+	 */
+	public double nextTemperature(int sensor) {
+		double temperature = Utils.getNextTemperature(temperatures[sensor]);
+		temperatures[sensor] = temperature;
+		return temperature;
+	}
+
+	/**
+	 * Returns the sequence number of the next record of the given sensor. The
+	 * numbers of a sensor start at 0 in every run and have no gaps, so the
+	 * consumer can recognize redelivered records. Must only be called by the
+	 * thread owning the slice of the sensor.
+	 *
+	 * @param sensor
+	 *            Id of the sensor
+	 * @return The sequence number
+	 */
+	public long nextSequenceNumber(int sensor) {
+		return sequenceNumbers[sensor]++;
+	}
+
+	/**
+	 * @param slice
+	 *            Index of the slice
+	 * @param slices
+	 *            Total number of slices
+	 * @return Id of the first sensor of the slice (inclusive)
+	 */
+	public int sliceStart(int slice, int slices) {
+		return (int) ((long) size() * slice / slices);
+	}
+
+	/**
+	 * @param slice
+	 *            Index of the slice
+	 * @param slices
+	 *            Total number of slices
+	 * @return Id of the last sensor of the slice (exclusive)
+	 */
+	public int sliceEnd(int slice, int slices) {
+		return sliceStart(slice + 1, slices);
+	}
+}
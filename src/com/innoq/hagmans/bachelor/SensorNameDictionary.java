@@ -0,0 +1,147 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps the UTF-8 encoded sensor names in the data of a record to
+ * {@link String} instances without allocating anything for names that were
+ * seen before.
+ *
+ * <p>
+ * The names are kept in an open addressing hash table that compares the bytes
+ * in place. The table starts small and doubles as names are added, so its
+ * size follows the fleet, which may have up to a million sensors. Once the
+ * maximum number of names is reached, unknown names are decoded into a new
+ * string every time.
+ *
+ * <p>
+ * A dictionary is not thread-safe, every thread should use its own.
+ *
+ * @author hhagmans
+ *
+ */
+public class SensorNameDictionary {
+
+	/**
+	 * Initial number of slots of the table
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private byte[][] keys;
+
+	private String[] names;
+
+	private int mask;
+
+	private final int maxSize;
+
+	private int size;
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of names to keep
+	 */
+	public SensorNameDictionary(int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+		this.keys = new byte[INITIAL_CAPACITY][];
+		this.names = new String[INITIAL_CAPACITY];
+		this.mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * Looks up a name. The position of the given buffer is not changed.
+	 *
+	 * @param data
+	 *            The buffer holding the name
+	 * @param offset
+	 *            Absolute index of the first byte of the name
+	 * @param length
+	 *            Length of the name in bytes
+	 * @return The name
+	 */
+	public String get(ByteBuffer data, int offset, int length) {
+		int hash = 1;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + data.get(offset + i);
+		}
+		for (int slot = spread(hash) & mask;; slot = (slot + 1) & mask) {
+			byte[] key = keys[slot];
+			if (key == null) {
+				byte[] name = new byte[length];
+				for (int i = 0; i < length; i++) {
+					name[i] = data.get(offset + i);
+				}
+				String string = new String(name, StandardCharsets.UTF_8);
+				if (size < maxSize) {
+					keys[slot] = name;
+					names[slot] = string;
+					// Keep the table at most half full, so that probing stays
+					// short
+					if (++size * 2 > keys.length) {
+						grow();
+					}
+				}
+				return string;
+			}
+			if (matches(key, data, offset, length)) {
+				return names[slot];
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of a hash, because the names of the fleet only differ
+	 * in their last characters.
+	 */
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Doubles the table.
+	 */
+	private void grow() {
+		byte[][] oldKeys = keys;
+		String[] oldNames = names;
+		keys = new byte[oldKeys.length * 2][];
+		names = new String[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			byte[] key = oldKeys[i];
+			if (key == null) {
+				continue;
+			}
+			int hash = 1;
+			for (byte b : key) {
+				hash = 31 * hash + b;
+			}
+			int slot = spread(hash) & mask;
+			while (keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			names[slot] = oldNames[i];
+		}
+	}
+
+	private static boolean matches(byte[] key, ByteBuffer data, int offset,
+			int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != data.get(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Number of names in the dictionary
+	 */
+	public int size() {
+		return size;
+	}
+}
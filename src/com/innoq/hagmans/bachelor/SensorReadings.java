@@ -0,0 +1,127 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.Arrays;
+
+/**
+ * The readings of one sensor as parallel arrays of timestamps and
+ * temperatures, so that the {@link WriteBehindBuffer} and
+ * {@link DynamoDBUtils} keep them without a String or a boxed number per
+ * reading, from the decoded record to the {@link SeriesCodec}.
+ *
+ * @author hhagmans
+ *
+ */
+public class SensorReadings {
+
+	private long[] timestamps;
+
+	private double[] temperatures;
+
+	private int size;
+
+	private boolean changeOnly;
+
+	/**
+	 * @param capacity
+	 *            Initial number of readings
+	 */
+	public SensorReadings(int capacity) {
+		capacity = Math.max(1, capacity);
+		timestamps = new long[capacity];
+		temperatures = new double[capacity];
+	}
+
+	/**
+	 * Appends a reading.
+	 *
+	 * @param timestamp
+	 *            Timestamp of the reading
+	 * @param temperature
+	 *            The temperature
+	 */
+	public void add(long timestamp, double temperature) {
+		if (size == timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, 2 * size);
+			temperatures = Arrays.copyOf(temperatures, 2 * size);
+		}
+		timestamps[size] = timestamp;
+		temperatures[size] = temperature;
+		size++;
+	}
+
+	/**
+	 * Marks the readings as sent only when the temperature changed, so that
+	 * each one holds until the next one.
+	 */
+	public void markChangeOnly() {
+		changeOnly = true;
+	}
+
+	/**
+	 * @return Whether any of the readings was only sent because the
+	 *         temperature changed
+	 */
+	public boolean isChangeOnly() {
+		return changeOnly;
+	}
+
+	/**
+	 * Appends all readings of another instance.
+	 *
+	 * @param readings
+	 *            The readings
+	 */
+	public void addAll(SensorReadings readings) {
+		for (int i = 0; i < readings.size; i++) {
+			add(readings.timestamps[i], readings.temperatures[i]);
+		}
+		changeOnly |= readings.changeOnly;
+	}
+
+	/**
+	 * Sorts the readings by their timestamps and keeps only the last added
+	 * of the readings with the same timestamp. The readings of a sensor
+	 * mostly arrive in order, so an insertion sort takes about linear time.
+	 */
+	public void sortDistinct() {
+		for (int i = 1; i < size; i++) {
+			long timestamp = timestamps[i];
+			double temperature = temperatures[i];
+			int j = i - 1;
+			// Strictly greater keeps readings with the same timestamp in the
+			// order they were added
+			while (j >= 0 && timestamps[j] > timestamp) {
+				timestamps[j + 1] = timestamps[j];
+				temperatures[j + 1] = temperatures[j];
+				j--;
+			}
+			timestamps[j + 1] = timestamp;
+			temperatures[j + 1] = temperature;
+		}
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (i + 1 < size && timestamps[i + 1] == timestamps[i]) {
+				continue;
+			}
+			timestamps[distinct] = timestamps[i];
+			temperatures[distinct] = temperatures[i];
+			distinct++;
+		}
+		size = distinct;
+	}
+
+	/**
+	 * @return Number of readings
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+
+	public double getTemperature(int i) {
+		return temperatures[i];
+	}
+}
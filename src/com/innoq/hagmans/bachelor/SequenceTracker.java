@@ -0,0 +1,396 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks the sequence numbers of the records of every sensor: drops readings
+ * that were already delivered, e.g. because the KPL retried a put or the KCL
+ * replays the records after the last checkpoint, and detects the records that
+ * never arrived.
+ *
+ * <p>
+ * The producer numbers the records of every sensor without gaps, starting at 0
+ * in every run (see {@link SensorFleet#nextSequenceNumber(int)}). For every
+ * sensor the tracker keeps the latest run, the highest sequence number of that
+ * run and a ring of bits for the sequence numbers of a sliding window below
+ * it. A sequence number is a duplicate if its bit is already set. Sequence
+ * numbers below the window, and records of an older run than the latest one
+ * of the sensor, are treated as duplicates as well: the records of a sensor
+ * always go to the same shard and arrive in order, so they can only be
+ * redeliveries.
+ *
+ * <p>
+ * A record that arrives below the highest sequence number was reordered by
+ * the distance between the two. A sequence number whose bit is still unset
+ * when it slides out of the window, or when the next run of the sensor
+ * starts, is counted as lost, and consecutive lost sequence numbers are
+ * reported as a gap. Records before the first one the tracker saw of a run,
+ * e.g. because they were processed before a restart, and records at the end
+ * of the last run are not counted.
+ *
+ * <p>
+ * Each record takes constant time and allocates nothing, and each sensor
+ * needs the window size in bits. All records of a sensor must be checked by
+ * the same thread, as the persist stripes of the {@link ConsumerPipeline} do.
+ * Records without a sequence number are always accepted.
+ *
+ * @author hhagmans
+ *
+ */
+public class SequenceTracker {
+	private static final Log LOG = LogFactory.getLog(SequenceTracker.class);
+
+	/**
+	 * Number of gaps that are kept for {@link #getRecentGaps()}
+	 */
+	private static final int MAX_RECENT_GAPS = 100;
+
+	/**
+	 * A range of consecutive sequence numbers of a sensor that never arrived.
+	 */
+	public static class Gap {
+		private final String sensor;
+		private final long run;
+		private final long from;
+		private volatile long to;
+
+		Gap(String sensor, long run, long from, long to) {
+			this.sensor = sensor;
+			this.run = run;
+			this.from = from;
+			this.to = to;
+		}
+
+		public String getSensor() {
+			return sensor;
+		}
+
+		/**
+		 * @return The timestamp of the run
+		 */
+		public long getRun() {
+			return run;
+		}
+
+		/**
+		 * @return First missing sequence number (inclusive)
+		 */
+		public long getFrom() {
+			return from;
+		}
+
+		/**
+		 * @return Last missing sequence number (inclusive)
+		 */
+		public long getTo() {
+			return to;
+		}
+
+		@Override
+		public String toString() {
+			return sensor + " in run " + run + ": " + from + " to " + to;
+		}
+	}
+
+	/**
+	 * The window of a sensor
+	 */
+	private static class Window {
+		final String sensor;
+		long run;
+		long first;
+		long highest;
+		final long[] bits;
+		Gap lastGap;
+
+		Window(String sensor, int words) {
+			this.sensor = sensor;
+			bits = new long[words];
+		}
+	}
+
+	private final int windowSize;
+
+	private final ConcurrentMap<String, Window> sensors = new ConcurrentHashMap<>();
+
+	private final AtomicLong received = new AtomicLong(0);
+
+	private final AtomicLong duplicates = new AtomicLong(0);
+
+	private final AtomicLong lost = new AtomicLong(0);
+
+	private final Histogram reorderDepths;
+
+	/**
+	 * The latest gaps, guarded by itself
+	 */
+	private final ArrayDeque<Gap> recentGaps = new ArrayDeque<>();
+
+	/**
+	 * @param windowSize
+	 *            Number of sequence numbers below the highest one that are
+	 *            remembered per sensor, rounded up to a multiple of 64. This is
+	 *            also the deepest reordering that is not counted as loss.
+	 */
+	public SequenceTracker(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException(
+					"The window must hold at least one sequence number");
+		}
+		this.windowSize = (windowSize + 63) / 64 * 64;
+		this.reorderDepths = new Histogram(this.windowSize);
+	}
+
+	/**
+	 * Checks whether a record is delivered for the first time, and if so,
+	 * remembers its sequence number. Must always be called by the same thread
+	 * for a sensor.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param run
+	 *            The timestamp of the run
+	 * @param sequenceNumber
+	 *            The sequence number of the record, or
+	 *            {@link TemperatureReading#NO_SEQUENCE_NUMBER}
+	 * @return {@code true} if the record is new, {@code false} if it is a
+	 *         duplicate
+	 */
+	public boolean accept(String sensor, long run, long sequenceNumber) {
+		if (sequenceNumber < 0) {
+			return true;
+		}
+		Window window = sensors.get(sensor);
+		if (window == null) {
+			window = new Window(sensor, windowSize / 64);
+			sensors.put(sensor, window);
+			return start(window, run, sequenceNumber);
+		}
+		if (run > window.run) {
+			// Everything of the last run that is still missing is lost
+			checkLeaving(window, Math.max(window.first, window.highest
+					- windowSize + 1), window.highest);
+			return start(window, run, sequenceNumber);
+		}
+		if (run < window.run || sequenceNumber <= window.highest - windowSize) {
+			duplicates.getAndIncrement();
+			return false;
+		}
+		if (sequenceNumber > window.highest) {
+			// Check the sequence numbers that slide out of the window
+			long leaving = sequenceNumber - windowSize;
+			checkLeaving(window, Math.max(window.first, window.highest
+					- windowSize + 1), Math.min(leaving, window.highest));
+			if (leaving > window.highest) {
+				missing(window, window.highest + 1, leaving);
+			}
+			if (sequenceNumber - window.highest >= windowSize) {
+				clear(window.bits);
+			} else {
+				for (long s = window.highest + 1; s < sequenceNumber; s++) {
+					unset(window.bits, s);
+				}
+			}
+			window.highest = sequenceNumber;
+			set(window.bits, sequenceNumber);
+			received.getAndIncrement();
+			return true;
+		}
+		if (isSet(window.bits, sequenceNumber)) {
+			duplicates.getAndIncrement();
+			return false;
+		}
+		if (sequenceNumber < window.first) {
+			// An earlier record of the run was reordered behind the first
+			window.first = sequenceNumber;
+		}
+		set(window.bits, sequenceNumber);
+		received.getAndIncrement();
+		reorderDepths.record(window.highest - sequenceNumber);
+		return true;
+	}
+
+	/**
+	 * Forgets an accepted sequence number again, because its record could not
+	 * be persisted, so that the record is accepted when it is delivered
+	 * again. Must be called by the thread that accepted it, before the next
+	 * record of the sensor.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param run
+	 *            The timestamp of the run
+	 * @param sequenceNumber
+	 *            The sequence number of the record
+	 */
+	public void forget(String sensor, long run, long sequenceNumber) {
+		if (sequenceNumber < 0) {
+			return;
+		}
+		Window window = sensors.get(sensor);
+		if (window == null || window.run != run
+				|| sequenceNumber <= window.highest - windowSize
+				|| !isSet(window.bits, sequenceNumber)) {
+			return;
+		}
+		unset(window.bits, sequenceNumber);
+		received.getAndDecrement();
+	}
+
+	/**
+	 * Resets the window of a sensor to a new run.
+	 */
+	private boolean start(Window window, long run, long sequenceNumber) {
+		clear(window.bits);
+		window.run = run;
+		window.first = sequenceNumber;
+		window.highest = sequenceNumber;
+		window.lastGap = null;
+		set(window.bits, sequenceNumber);
+		received.getAndIncrement();
+		return true;
+	}
+
+	/**
+	 * Counts the sequence numbers of the given range that are still unset as
+	 * lost. The range must lie within the window.
+	 */
+	private void checkLeaving(Window window, long from, long to) {
+		long gapFrom = -1;
+		for (long s = from; s <= to; s++) {
+			if (!isSet(window.bits, s)) {
+				if (gapFrom < 0) {
+					gapFrom = s;
+				}
+			} else if (gapFrom >= 0) {
+				missing(window, gapFrom, s - 1);
+				gapFrom = -1;
+			}
+		}
+		if (gapFrom >= 0) {
+			missing(window, gapFrom, to);
+		}
+	}
+
+	/**
+	 * Records a range of lost sequence numbers, extending the last gap of the
+	 * sensor if the range continues it.
+	 */
+	private void missing(Window window, long from, long to) {
+		lost.getAndAdd(to - from + 1);
+		synchronized (recentGaps) {
+			if (window.lastGap != null && window.lastGap.to + 1 == from) {
+				window.lastGap.to = to;
+				return;
+			}
+			window.lastGap = new Gap(window.sensor, window.run, from, to);
+			if (recentGaps.size() == MAX_RECENT_GAPS) {
+				recentGaps.poll();
+			}
+			recentGaps.add(window.lastGap);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Records lost: " + window.lastGap);
+		}
+	}
+
+	private void set(long[] bits, long sequenceNumber) {
+		int bit = (int) (sequenceNumber % windowSize);
+		bits[bit >>> 6] |= 1L << bit;
+	}
+
+	private void unset(long[] bits, long sequenceNumber) {
+		int bit = (int) (sequenceNumber % windowSize);
+		bits[bit >>> 6] &= ~(1L << bit);
+	}
+
+	private boolean isSet(long[] bits, long sequenceNumber) {
+		int bit = (int) (sequenceNumber % windowSize);
+		return (bits[bit >>> 6] & 1L << bit) != 0;
+	}
+
+	private static void clear(long[] bits) {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+	}
+
+	/**
+	 * @return Number of records with a sequence number that were accepted
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * @return Number of records dropped as duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return Number of records that never arrived
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+
+	/**
+	 * @return Share of the records that never arrived, between 0 and 1
+	 */
+	public double getLossRate() {
+		long lostRecords = lost.get();
+		long total = received.get() + lostRecords;
+		return total == 0 ? 0 : (double) lostRecords / total;
+	}
+
+	/**
+	 * @return Number of records that arrived after a record with a higher
+	 *         sequence number of the same sensor
+	 */
+	public long getReordered() {
+		return reorderDepths.getCount();
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, e.g. 99
+	 * @return Distance in sequence numbers by which the reordered records
+	 *         arrived late at the given percentile
+	 */
+	public long getReorderDepth(double percentile) {
+		return reorderDepths.getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * @return The deepest reordering seen
+	 */
+	public long getMaxReorderDepth() {
+		return reorderDepths.getMax();
+	}
+
+	/**
+	 * @return The latest gaps, oldest first
+	 */
+	public List<Gap> getRecentGaps() {
+		synchronized (recentGaps) {
+			return new ArrayList<>(recentGaps);
+		}
+	}
+
+	/**
+	 * @return Number of sensors the tracker keeps a window for
+	 */
+	public int getSensors() {
+		return sensors.size();
+	}
+}
@@ -0,0 +1,186 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses the readings of a sensor into the binary series attribute of a
+ * bucket item.
+ *
+ * <p>
+ * The series starts with a version byte, followed by one entry per reading in
+ * ascending order of the timestamps. The first entry holds the timestamp and
+ * the temperature, the second the difference to the first, and every further
+ * entry holds the delta of the delta of the timestamps and the difference of
+ * the temperatures. Temperatures are stored in tenths of a degree, which is
+ * the resolution of {@link Utils#getNextTemperature(double)}. All numbers are
+ * zig-zag encoded variable-length integers, so a sensor that reports at a
+ * steady interval with small changes needs about two bytes per reading instead
+ * of the twenty or more of a map entry of strings.
+ *
+ * @author hhagmans
+ *
+ */
+public class SeriesCodec {
+
+	/**
+	 * The version written by this codec
+	 */
+	public static final byte VERSION = 1;
+
+	private static final double TEMPERATURE_SCALE = 10d;
+
+	/**
+	 * Appends readings to a series. The timestamps must be ascending.
+	 */
+	public static class Encoder {
+		private byte[] bytes;
+		private int size;
+		private int count;
+		private long lastTimestamp;
+		private long lastDelta;
+		private long lastTemperature;
+
+		/**
+		 * @param expectedReadings
+		 *            Number of readings the series will probably hold
+		 */
+		public Encoder(int expectedReadings) {
+			bytes = new byte[1 + 3 * Math.max(1, expectedReadings)];
+			bytes[size++] = VERSION;
+		}
+
+		/**
+		 * Appends a reading.
+		 *
+		 * @param timestamp
+		 *            Timestamp of the reading in milliseconds, not before the
+		 *            one of the last reading
+		 * @param temperature
+		 *            The temperature in degrees
+		 */
+		public void append(long timestamp, double temperature) {
+			long scaled = Math.round(temperature * TEMPERATURE_SCALE);
+			if (count == 0) {
+				writeSigned(timestamp);
+				writeSigned(scaled);
+			} else {
+				long delta = timestamp - lastTimestamp;
+				if (delta < 0) {
+					throw new IllegalArgumentException(
+							"Timestamps must be ascending");
+				}
+				writeSigned(count == 1 ? delta : delta - lastDelta);
+				writeSigned(scaled - lastTemperature);
+				lastDelta = delta;
+			}
+			lastTimestamp = timestamp;
+			lastTemperature = scaled;
+			count++;
+		}
+
+		/**
+		 * @return Number of readings appended
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The encoded series
+		 */
+		public byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+
+		private void writeSigned(long value) {
+			long zigzag = (value << 1) ^ (value >> 63);
+			if (size + 10 > bytes.length) {
+				bytes = Arrays.copyOf(bytes, 2 * bytes.length + 10);
+			}
+			while ((zigzag & ~0x7FL) != 0) {
+				bytes[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			bytes[size++] = (byte) zigzag;
+		}
+	}
+
+	/**
+	 * Reads the readings of a series one after the other without allocating
+	 * anything per reading.
+	 */
+	public static class Decoder {
+		private final ByteBuffer data;
+		private int count;
+		private long timestamp;
+		private long delta;
+		private long temperature;
+
+		/**
+		 * @param series
+		 *            The encoded series. Its position is not changed.
+		 * @throws IllegalArgumentException
+		 *             If the series has an unknown version
+		 */
+		public Decoder(ByteBuffer series) {
+			this.data = series.duplicate();
+			if (!data.hasRemaining() || data.get() != VERSION) {
+				throw new IllegalArgumentException("Unknown series version");
+			}
+		}
+
+		/**
+		 * Moves to the next reading.
+		 *
+		 * @return Whether there is another reading
+		 * @throws IllegalArgumentException
+		 *             If the series is truncated
+		 */
+		public boolean next() {
+			if (!data.hasRemaining()) {
+				return false;
+			}
+			if (count == 0) {
+				timestamp = readSigned();
+				temperature = readSigned();
+			} else {
+				long value = readSigned();
+				delta = count == 1 ? value : delta + value;
+				timestamp += delta;
+				temperature += readSigned();
+			}
+			count++;
+			return true;
+		}
+
+		/**
+		 * @return Timestamp of the current reading in milliseconds
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return The temperature of the current reading in degrees
+		 */
+		public double getTemperature() {
+			return temperature / TEMPERATURE_SCALE;
+		}
+
+		private long readSigned() {
+			long zigzag = 0;
+			for (int shift = 0;; shift += 7) {
+				if (!data.hasRemaining() || shift > 63) {
+					throw new IllegalArgumentException("Truncated series");
+				}
+				byte b = data.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					break;
+				}
+			}
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+	}
+}
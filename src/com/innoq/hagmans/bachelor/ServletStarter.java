@@ -18,6 +18,11 @@ public class ServletStarter {
 	 */
 	public static String tableName = TemperatureConsumer.tableName;
 
+	/**
+	 * Name of the table that holds the rollups of the temperatures
+	 */
+	public static String rollupTableName = TemperatureConsumer.rollupTableName;
+
 	/**
 	 * Name of the Kinesis stream
 	 */
@@ -25,7 +30,7 @@ public class ServletStarter {
 
 	/**
 	 * Starts the Jetty Server and puts the servlet in the context
-	 * 
+	 *
 	 * @param args
 	 * @throws Exception
 	 */
@@ -36,21 +41,48 @@ public class ServletStarter {
 			db_name = args[1];
 		}
 
-		Server server = new Server(8080);
+		Server server = start(8080, null);
+		server.join();
+	}
+
+	/**
+	 * Starts the Jetty Server with the temperature servlet under
+	 * /api/GetTemperature and, if metrics are given, the
+	 * {@link MetricsServlet} under /metrics.
+	 *
+	 * @param port
+	 *            The port to listen on
+	 * @param metrics
+	 *            The metrics of the consumer in this process, or {@code null}
+	 * @return The started server
+	 * @throws Exception
+	 */
+	public static Server start(int port, ConsumerMetrics metrics)
+			throws Exception {
+		Server server = new Server(port);
 		// Servlet context
 		ServletContextHandler context = new ServletContextHandler(
 				ServletContextHandler.NO_SESSIONS
 						| ServletContextHandler.NO_SECURITY);
 		context.setContextPath("/api");
 		context.addServlet(new ServletHolder(new TemperatureServlet(streamName,
-				db_name, tableName)), "/GetTemperature/*");
+				db_name, tableName, rollupTableName)), "/GetTemperature/*");
 
 		HandlerList handlers = new HandlerList();
 		handlers.addHandler(context);
+		if (metrics != null) {
+			ServletContextHandler metricsContext = new ServletContextHandler(
+					ServletContextHandler.NO_SESSIONS
+							| ServletContextHandler.NO_SECURITY);
+			metricsContext.setContextPath("/metrics");
+			metricsContext.addServlet(new ServletHolder(new MetricsServlet(
+					metrics)), "/*");
+			handlers.addHandler(metricsContext);
+		}
 		handlers.addHandler(new DefaultHandler());
 
 		server.setHandler(handlers);
 		server.start();
-		server.join();
+		return server;
 	}
 }
@@ -0,0 +1,270 @@
+package com.innoq.hagmans.bachelor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms of a shard that is processed by the consumer: the
+ * records per second, the batch sizes, the time it takes to parse a batch, to
+ * write the pending readings to DynamoDB and to checkpoint, how far the shard
+ * lags behind the tip of the stream, and the end-to-end latency of its
+ * readings (see {@link IngestLatency}).
+ *
+ * <p>
+ * The rate is measured over windows of ten seconds and only updated by the
+ * record processor of the shard. Everything else can be updated from any
+ * thread.
+ *
+ * @see ConsumerMetrics
+ * @author hhagmans
+ *
+ */
+public class ShardMetrics implements ShardMetricsMBean {
+
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * A batch of the KCL holds at most 10000 records
+	 */
+	private final Histogram batchSizes = new Histogram(10000);
+
+	/**
+	 * Durations are recorded in microseconds, up to one hour
+	 */
+	private final Histogram parseLatency = new Histogram(
+			TimeUnit.HOURS.toMicros(1));
+
+	private final Histogram writeLatency = new Histogram(
+			TimeUnit.HOURS.toMicros(1));
+
+	private final Histogram checkpointLatency = new Histogram(
+			TimeUnit.HOURS.toMicros(1));
+
+	/**
+	 * End-to-end latencies are recorded in milliseconds
+	 */
+	private final Histogram receiveLatency = new Histogram(
+			IngestLatency.HIGHEST_LATENCY_MILLIS);
+
+	private final Histogram commitLatency = new Histogram(
+			IngestLatency.HIGHEST_LATENCY_MILLIS);
+
+	private final String shardId;
+
+	private final IngestLatency ingestLatency;
+
+	private final AtomicLong records = new AtomicLong(0);
+
+	private final AtomicLong parseFailures = new AtomicLong(0);
+
+	private volatile long millisBehindLatest = -1;
+
+	private volatile double recordsPerSecond;
+
+	private long windowStart = System.nanoTime();
+
+	private long windowRecords;
+
+	/**
+	 * @param shardId
+	 *            The id of the shard
+	 * @param ingestLatency
+	 *            The end-to-end latencies of all shards
+	 */
+	public ShardMetrics(String shardId, IngestLatency ingestLatency) {
+		this.shardId = shardId;
+		this.ingestLatency = ingestLatency;
+	}
+
+	/**
+	 * Counts a batch that was received from the KCL. Must only be called by
+	 * the record processor of the shard.
+	 *
+	 * @param size
+	 *            Number of records in the batch
+	 * @param millisBehindLatest
+	 *            How far the batch is behind the tip of the stream, or
+	 *            {@code null} if the KCL did not report it
+	 */
+	public void batchReceived(int size, Long millisBehindLatest) {
+		if (millisBehindLatest != null) {
+			this.millisBehindLatest = millisBehindLatest;
+		}
+		if (size > 0) {
+			batchSizes.record(size);
+			records.getAndAdd(size);
+		}
+		windowRecords += size;
+		long now = System.nanoTime();
+		if (now - windowStart >= RATE_WINDOW_NANOS) {
+			recordsPerSecond = windowRecords * 1e9 / (now - windowStart);
+			windowStart = now;
+			windowRecords = 0;
+		}
+	}
+
+	/**
+	 * Records the time it took to parse a batch.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds
+	 * @param failures
+	 *            Number of records of the batch that could not be parsed
+	 */
+	public void parsed(long nanos, int failures) {
+		parseLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		parseFailures.getAndAdd(failures);
+	}
+
+	/**
+	 * Records the time it took to write the pending readings to DynamoDB
+	 * before a checkpoint.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds
+	 */
+	public void written(long nanos) {
+		writeLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records the time a checkpoint took.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds
+	 */
+	public void checkpointed(long nanos) {
+		checkpointLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records the latency from the timestamp of a reading until it was
+	 * received.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param millis
+	 *            The latency in milliseconds
+	 */
+	public void received(String sensor, long millis) {
+		receiveLatency.record(millis);
+		ingestLatency.received(sensor, millis);
+	}
+
+	/**
+	 * Records the latency from the timestamp of a reading until it was
+	 * written to DynamoDB.
+	 *
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param millis
+	 *            The latency in milliseconds
+	 */
+	public void committed(String sensor, long millis) {
+		commitLatency.record(millis);
+		ingestLatency.committed(sensor, millis);
+	}
+
+	@Override
+	public String getShardId() {
+		return shardId;
+	}
+
+	@Override
+	public long getRecordsProcessed() {
+		return records.get();
+	}
+
+	@Override
+	public double getRecordsPerSecond() {
+		return recordsPerSecond;
+	}
+
+	@Override
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	/**
+	 * @return How far the last batch was behind the tip of the stream, or -1
+	 *         if it is not known yet
+	 */
+	@Override
+	public long getMillisBehindLatest() {
+		return millisBehindLatest;
+	}
+
+	@Override
+	public double getBatchSizeMean() {
+		return batchSizes.getMean();
+	}
+
+	@Override
+	public long getBatchSizeP99() {
+		return batchSizes.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getBatchSizeMax() {
+		return batchSizes.getMax();
+	}
+
+	@Override
+	public double getParseP50Millis() {
+		return millis(parseLatency, 50);
+	}
+
+	@Override
+	public double getParseP99Millis() {
+		return millis(parseLatency, 99);
+	}
+
+	@Override
+	public double getWriteP50Millis() {
+		return millis(writeLatency, 50);
+	}
+
+	@Override
+	public double getWriteP99Millis() {
+		return millis(writeLatency, 99);
+	}
+
+	@Override
+	public long getCheckpoints() {
+		return checkpointLatency.getCount();
+	}
+
+	@Override
+	public double getCheckpointP50Millis() {
+		return millis(checkpointLatency, 50);
+	}
+
+	@Override
+	public double getCheckpointP99Millis() {
+		return millis(checkpointLatency, 99);
+	}
+
+	@Override
+	public long getReceiveLatencyP50Millis() {
+		return receiveLatency.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getReceiveLatencyP99Millis() {
+		return receiveLatency.getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getCommitLatencyP50Millis() {
+		return commitLatency.getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getCommitLatencyP99Millis() {
+		return commitLatency.getValueAtPercentile(99);
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000d;
+	}
+}
@@ -0,0 +1,48 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * JMX view of the {@link ShardMetrics}.
+ * 
+ * @author hhagmans
+ * 
+ */
+public interface ShardMetricsMBean {
+
+	String getShardId();
+
+	long getRecordsProcessed();
+
+	double getRecordsPerSecond();
+
+	long getParseFailures();
+
+	long getMillisBehindLatest();
+
+	double getBatchSizeMean();
+
+	long getBatchSizeP99();
+
+	long getBatchSizeMax();
+
+	double getParseP50Millis();
+
+	double getParseP99Millis();
+
+	double getWriteP50Millis();
+
+	double getWriteP99Millis();
+
+	long getCheckpoints();
+
+	double getCheckpointP50Millis();
+
+	double getCheckpointP99Millis();
+
+	long getReceiveLatencyP50Millis();
+
+	long getReceiveLatencyP99Millis();
+
+	long getCommitLatencyP50Millis();
+
+	long getCommitLatencyP99Millis();
+}
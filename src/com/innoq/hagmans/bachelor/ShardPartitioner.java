@@ -0,0 +1,194 @@
+package com.innoq.hagmans.bachelor;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Maps sensors to the open shards of a stream, so that all readings of a
+ * sensor are put into the same shard and are therefore processed by a single
+ * record processor.
+ *
+ * <p>
+ * The name of each sensor is hashed onto a point of the 32 most significant
+ * bits of the hash key space. A sensor belongs to the open shard whose hash key
+ * range contains its point, and its records are put with the starting hash key
+ * of that shard as explicit hash key. When a shard is split or merged, only
+ * the sensors of the affected shards move after the next {@link #refresh()}.
+ *
+ * @author hhagmans
+ *
+ */
+public class ShardPartitioner {
+	private static final Log LOG = LogFactory.getLog(ShardPartitioner.class);
+
+	private final AmazonKinesis kinesis;
+
+	private final String streamName;
+
+	private volatile ShardMap shardMap;
+
+	/**
+	 * Immutable snapshot of the open shards of the stream, sorted by their
+	 * starting hash keys.
+	 */
+	private static class ShardMap {
+		final long[] rangeStarts;
+		final String[] hashKeys;
+		final String[] shardIds;
+
+		ShardMap(List<Shard> shards) {
+			rangeStarts = new long[shards.size()];
+			hashKeys = new String[shards.size()];
+			shardIds = new String[shards.size()];
+			for (int i = 0; i < shards.size(); i++) {
+				String startingHashKey = shards.get(i).getHashKeyRange()
+						.getStartingHashKey();
+				rangeStarts[i] = new BigInteger(startingHashKey).shiftRight(96)
+						.longValue();
+				hashKeys[i] = startingHashKey;
+				shardIds[i] = shards.get(i).getShardId();
+			}
+		}
+
+		int indexOf(long point) {
+			int low = 0;
+			int high = rangeStarts.length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (rangeStarts[mid] <= point) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * @param kinesis
+	 *            The Amazon Kinesis client used to describe the stream
+	 * @param streamName
+	 *            Name of the stream the records are put in
+	 */
+	public ShardPartitioner(AmazonKinesis kinesis, String streamName) {
+		if (kinesis == null) {
+			throw new NullPointerException(
+					"Amazon Kinesis client must not be null");
+		}
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+	}
+
+	/**
+	 * Reloads the open shards of the stream. Must be called once before the
+	 * partitioner is used and should be called periodically to pick up shard
+	 * splits and merges. If the stream cannot be described, the previous shard
+	 * map is kept.
+	 * 
+	 * @throws IllegalStateException
+	 *             If there is no previous shard map yet, because the stream
+	 *             cannot be described on the first call or has no open shards
+	 */
+	public void refresh() {
+		List<Shard> openShards = new ArrayList<>();
+		try {
+			String exclusiveStartShardId = null;
+			DescribeStreamResult result;
+			do {
+				result = kinesis.describeStream(new DescribeStreamRequest()
+						.withStreamName(streamName).withExclusiveStartShardId(
+								exclusiveStartShardId));
+				for (Shard shard : result.getStreamDescription().getShards()) {
+					// Closed shards have an ending sequence number
+					if (shard.getSequenceNumberRange()
+							.getEndingSequenceNumber() == null) {
+						openShards.add(shard);
+					}
+					exclusiveStartShardId = shard.getShardId();
+				}
+			} while (result.getStreamDescription().getHasMoreShards());
+		} catch (AmazonClientException e) {
+			if (shardMap == null) {
+				throw new IllegalStateException(String.format(
+						"Unable to describe stream %s", streamName), e);
+			}
+			LOG.warn(String.format(
+					"Unable to describe stream %s, keeping the old shard map",
+					streamName), e);
+			return;
+		}
+		if (openShards.isEmpty()) {
+			if (shardMap == null) {
+				throw new IllegalStateException(String.format(
+						"Stream %s has no open shards", streamName));
+			}
+			LOG.warn(String.format("Stream %s has no open shards", streamName));
+			return;
+		}
+
+		Collections.sort(openShards, new Comparator<Shard>() {
+			@Override
+			public int compare(Shard a, Shard b) {
+				return new BigInteger(a.getHashKeyRange().getStartingHashKey())
+						.compareTo(new BigInteger(b.getHashKeyRange()
+								.getStartingHashKey()));
+			}
+		});
+		ShardMap old = shardMap;
+		ShardMap map = new ShardMap(openShards);
+		if (old == null || !Arrays.equals(old.shardIds, map.shardIds)) {
+			LOG.info(String.format("Partitioning sensors over %d open shards",
+					openShards.size()));
+		}
+		shardMap = map;
+	}
+
+	/**
+	 * @param sensorName
+	 *            Name of the sensor
+	 * @return The explicit hash key for all records of the sensor
+	 */
+	public String explicitHashKey(String sensorName) {
+		ShardMap map = shardMap;
+		return map.hashKeys[map.indexOf(point(sensorName))];
+	}
+
+	/**
+	 * @param sensorName
+	 *            Name of the sensor
+	 * @return Id of the shard the records of the sensor are put into
+	 */
+	public String shardId(String sensorName) {
+		ShardMap map = shardMap;
+		return map.shardIds[map.indexOf(point(sensorName))];
+	}
+
+	/**
+	 * Spreads the hash code of the sensor name evenly over 32 bits (the
+	 * finalizer of MurmurHash3), because the names of a fleet only differ in
+	 * their last characters.
+	 */
+	private static long point(String sensorName) {
+		int h = sensorName.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0xFFFFFFFFL;
+	}
+}
@@ -15,11 +15,15 @@
 
 package com.innoq.hagmans.bachelor;
 
+import java.io.Closeable;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -30,28 +34,31 @@ import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
-import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorFactory;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessor;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.v2.IRecordProcessorFactory;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.Worker;
+import com.amazonaws.services.kinesis.clientlibrary.types.InitializationInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ProcessRecordsInput;
+import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownInput;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
 import com.amazonaws.services.kinesis.model.Record;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.google.common.io.BaseEncoding;
 
 /**
  * If you haven't looked at {@link TemperatureProducer}, do so first.
  * 
  * <p>
- * As mentioned in SampleProducer, we will check that all records are received
+ * As mentioned in TemperatureProducer, we check that all records are received
  * correctly by the KCL by verifying that there are no gaps in the sequence
- * numbers.
+ * numbers of each sensor. Lost, duplicate and reordered records are reported
+ * in the metrics (see {@link SequenceTracker}).
  * 
  * 
  * <p>
@@ -62,13 +69,14 @@ import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
  * @author hhagmans
  * 
  */
-public class TemperatureConsumer implements IRecordProcessorFactory {
+public class TemperatureConsumer implements IRecordProcessorFactory,
+		Closeable {
 	private static final Logger log = LoggerFactory
 			.getLogger(TemperatureConsumer.class);
 
 	// All records from a run of the producer have the same timestamp in their
 	// partition keys. Since this value increases for each run, we can use it
-	// determine which run is the latest and disregard data from earlier runs.
+	// determine which run is the latest.
 	private final AtomicLong largestTimestamp = new AtomicLong(0);
 
 	/**
@@ -77,19 +85,214 @@ public class TemperatureConsumer implements IRecordProcessorFactory {
 	public static String db_name = "SensorConsumer";
 
 	/**
-	 * Name of the table that holds the temperatures
+	 * Name of the table that holds the temperatures in time buckets
 	 */
-	public static String tableName = "Temperatures";
+	public static String tableName = "TemperatureBuckets";
+
+	/**
+	 * Name of the table that holds the temperatures in the legacy layout with
+	 * one item per sensor and run
+	 */
+	public static String legacyTableName = "Temperatures";
+
+	/**
+	 * Name of the table that holds the minute, hour and day rollups of the
+	 * temperatures
+	 */
+	public static String rollupTableName = "TemperatureRollups";
 
 	/**
 	 * Name of the Kinesis stream
 	 */
 	public static String streamName = "test";
 
-	// A mutex for largestTimestamp and temperatures. largestTimestamp is
-	// nevertheless an AtomicLong because we cannot capture non-final variables
-	// in the child class.
-	private final Object lock = new Object();
+	/**
+	 * Number of pending readings that triggers a flush to DynamoDB
+	 */
+	private static final int WRITE_BEHIND_FLUSH_SIZE = Integer.getInteger(
+			"writebehind.flush.size", 1000);
+
+	/**
+	 * Maximum number of readings waiting to be written to DynamoDB
+	 */
+	private static final int WRITE_BEHIND_MAX_PENDING = Integer.getInteger(
+			"writebehind.max.pending", 100000);
+
+	/**
+	 * Interval in milliseconds in which pending readings are written to
+	 * DynamoDB
+	 */
+	private static final int WRITE_BEHIND_FLUSH_MS = Integer.getInteger(
+			"writebehind.flush.ms", 1000);
+
+	/**
+	 * Number of threads parsing the records
+	 */
+	private static final int PIPELINE_PARSE_THREADS = Integer.getInteger(
+			"pipeline.parse.threads", Runtime.getRuntime()
+					.availableProcessors());
+
+	/**
+	 * Maximum number of sensor names each parse thread keeps decoded
+	 */
+	private static final int PIPELINE_MAX_SENSOR_NAMES = Integer.getInteger(
+			"pipeline.max.sensor.names", 1 << 20);
+
+	/**
+	 * Number of threads persisting the readings, each of them handles a
+	 * stripe of the sensors
+	 */
+	private static final int PIPELINE_PERSIST_STRIPES = Integer.getInteger(
+			"pipeline.persist.stripes", Runtime.getRuntime()
+					.availableProcessors());
+
+	/**
+	 * Number of batches that may wait in front of each stage of the pipeline
+	 */
+	private static final int PIPELINE_QUEUE_CAPACITY = Integer.getInteger(
+			"pipeline.queue.capacity", 16);
+
+	/**
+	 * Number of persisted records after which a record processor checkpoints
+	 */
+	private static final int CHECKPOINT_RECORDS = Integer.getInteger(
+			"checkpoint.records", 50000);
+
+	/**
+	 * Interval in milliseconds after which a record processor checkpoints its
+	 * persisted records
+	 */
+	private static final int CHECKPOINT_INTERVAL_MS = Integer.getInteger(
+			"checkpoint.interval.ms", 60000);
+
+	/**
+	 * Time in milliseconds of event time that a rollup window still accepts
+	 * readings after its end
+	 */
+	private static final int ROLLUP_ALLOWED_LATENESS_MS = Integer.getInteger(
+			"rollup.allowed.lateness.ms", 60000);
+
+	/**
+	 * Interval in milliseconds in which changed rollups are written to
+	 * DynamoDB
+	 */
+	private static final int ROLLUP_FLUSH_MS = Integer.getInteger(
+			"rollup.flush.ms", 60000);
+
+	/**
+	 * Number of sequence numbers per sensor that are remembered to drop
+	 * duplicates, which is also the deepest reordering that is not counted as
+	 * loss
+	 */
+	private static final int DEDUP_WINDOW = Integer.getInteger("dedup.window",
+			1024);
+
+	/**
+	 * Maximum number of sensors whose end-to-end latencies are recorded in
+	 * their own histograms
+	 */
+	private static final int LATENCY_MAX_SENSORS = Integer.getInteger(
+			"latency.max.sensors", 100);
+
+	/**
+	 * The alert rules, separated by semicolons (see {@link AlertRule})
+	 */
+	private static final String ALERT_RULES = System.getProperty(
+			"alert.rules", "");
+
+	/**
+	 * Maximum number of alerts waiting to be delivered
+	 */
+	private static final int ALERT_QUEUE_CAPACITY = Integer.getInteger(
+			"alert.queue.capacity", 1000);
+
+	/**
+	 * Maximum read capacity units per second the compaction of expired
+	 * readings consumes
+	 */
+	private static final int COMPACTION_READ_UNITS = Integer.getInteger(
+			"compaction.read.units", 5);
+
+	/**
+	 * Maximum write capacity units per second the compaction of expired
+	 * readings consumes
+	 */
+	private static final int COMPACTION_WRITE_UNITS = Integer.getInteger(
+			"compaction.write.units", 2);
+
+	/**
+	 * Number of items the compaction evaluates per scan request
+	 */
+	private static final int COMPACTION_PAGE_SIZE = Integer.getInteger(
+			"compaction.page.size", 25);
+
+	/**
+	 * Interval in minutes in which expired readings are compacted
+	 */
+	private static final int COMPACTION_INTERVAL_MINUTES = Integer.getInteger(
+			"compaction.interval.minutes", 60);
+
+	/**
+	 * Longest wait in milliseconds before a failed batch is processed again
+	 */
+	private static final long MAX_RETRY_BACKOFF_MS = 60000;
+
+	/**
+	 * How often a failed batch is processed before it is given up and written
+	 * to the dead letter log
+	 */
+	private static final int BATCH_MAX_ATTEMPTS = Integer.getInteger(
+			"batch.max.attempts", 8);
+
+	/**
+	 * Receives the records of the batches that were given up, one line per
+	 * record, so that they can be routed to their own file
+	 */
+	private static final Logger deadLetters = LoggerFactory
+			.getLogger(TemperatureConsumer.class.getName() + ".deadLetters");
+
+	/**
+	 * Only every n-th reading is logged at debug level
+	 */
+	private static final int LOG_SAMPLE_RATE = Math.max(1,
+			Integer.getInteger("log.sample.rate", 1000));
+
+	/**
+	 * Port of the Jetty server that serves the metrics under /metrics. The
+	 * server is only started if the port is set.
+	 */
+	private static final Integer METRICS_PORT = Integer
+			.getInteger("metrics.port");
+
+	/**
+	 * Collects the readings of all record processors and writes them to
+	 * DynamoDB
+	 */
+	private final WriteBehindBuffer buffer;
+
+	/**
+	 * Maintains the rollups of the readings of all record processors
+	 */
+	private final RollupAggregator rollups;
+
+	/**
+	 * Parses and persists the records of all record processors
+	 */
+	private final ConsumerPipeline pipeline;
+
+	private final ConsumerMetrics metrics;
+
+	private final AlertEngine alerts;
+
+	/**
+	 * Deletes the expired readings and rollups, or {@code null} if they are
+	 * kept forever
+	 */
+	private final RetentionCompactor compactor;
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private final AtomicLong loggedReadings = new AtomicLong(0);
 
 	/**
 	 * One instance of RecordProcessor is created for every shard in the stream.
@@ -99,64 +302,58 @@ public class TemperatureConsumer implements IRecordProcessorFactory {
 	 */
 	private class RecordProcessor implements IRecordProcessor {
 
-		DynamoDBUtils dbUtils;
+		private final CheckpointPolicy checkpointPolicy = new CheckpointPolicy(
+				CHECKPOINT_RECORDS, CHECKPOINT_INTERVAL_MS);
 
-		@Override
-		public void initialize(String shardId) {
+		/**
+		 * The batches of this shard that are still in the pipeline, in the
+		 * order they were received
+		 */
+		private final ArrayDeque<ConsumerPipeline.Ticket> tickets = new ArrayDeque<>();
 
-			Region region = RegionUtils.getRegion(TemperatureProducer.REGION);
-			AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
-			AmazonDynamoDB amazonDynamoDB = new AmazonDynamoDBClient(
-					credentialsProvider, new ClientConfiguration());
-			AmazonDynamoDBClient client = new AmazonDynamoDBClient();
-			client.setRegion(region);
-			DynamoDB dynamoDB = new DynamoDB(client);
-			amazonDynamoDB.setRegion(region);
-			dbUtils = new DynamoDBUtils(dynamoDB, amazonDynamoDB, client);
+		/**
+		 * Last record of the highest contiguous batch that has reached the
+		 * buffer
+		 */
+		private Record persistedRecord;
+
+		private Record checkpointedRecord;
+
+		private ShardMetrics shardMetrics;
+
+		@Override
+		public void initialize(InitializationInput input) {
+			shardMetrics = metrics.shard(input.getShardId());
 		}
 
 		@Override
-		public void processRecords(List<Record> records,
-				IRecordProcessorCheckpointer checkpointer) {
-			long timestamp = 0;
-			HashMap<String, HashMap<String, String>> allTemperatures = new HashMap<>();
-			int count = 0;
-			for (Record r : records) {
-				// Get the timestamp of this run from the partition key.
-				timestamp = Math.max(timestamp,
-						Long.parseLong(r.getPartitionKey()));
-				// Extract the data. All data are sperated with a semicolon
-				try {
-					byte[] b = new byte[r.getData().remaining()];
-					r.getData().get(b);
-					String[] splittedString = new String(b, "UTF-8").split(";");
-					String currentTemperature = splittedString[0];
-					String sensorName = (splittedString[1]);
-					String currentTimeStamp = (splittedString[2]);
-
-					// Create a new hashmap, if there isn't already one, and
-					// combine the old and new temperature data
-					HashMap<String, String> tempMap;
-					if (allTemperatures.containsKey(sensorName)) {
-						tempMap = allTemperatures.get(sensorName);
-					} else {
-						tempMap = new HashMap<>();
-					}
-					tempMap.put(currentTimeStamp, currentTemperature);
-					allTemperatures.put(sensorName, tempMap);
-					logResults(timestamp, count, sensorName, currentTemperature);
-					count++;
-
-				} catch (Exception e) {
-					log.error("Error parsing record", e);
-					System.exit(1);
-				}
+		public void processRecords(ProcessRecordsInput input) {
+			List<Record> records = input.getRecords();
+			IRecordProcessorCheckpointer checkpointer = input.getCheckpointer();
+			shardMetrics.batchReceived(records.size(),
+					input.getMillisBehindLatest());
+			// Parsing and persisting happens in the pipeline, so the shard
+			// can fetch the next batch right away. This is also called for
+			// empty batches, so that done batches are checkpointed while the
+			// stream is idle.
+			try {
+				retryFailed();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (!records.isEmpty()) {
+				tickets.add(pipeline.submit(records, shardMetrics));
 			}
+			advance();
 
+			long now = System.currentTimeMillis();
+			if (!checkpointPolicy.isDue(now)) {
+				return;
+			}
 			try {
-				// Persist tempertures in DynamoDB
-				dbUtils.putTemperatures(tableName, allTemperatures, timestamp);
-				checkpointer.checkpoint();
+				checkpoint(checkpointer);
+				checkpointPolicy.checkpointed(now);
 			} catch (Exception e) {
 				log.error(
 						"Error while trying to checkpoint during ProcessRecords",
@@ -164,38 +361,238 @@ public class TemperatureConsumer implements IRecordProcessorFactory {
 			}
 		}
 
+		/**
+		 * Checkpoints the persisted record, unless it is already checkpointed.
+		 */
+		private void checkpoint(IRecordProcessorCheckpointer checkpointer)
+				throws Exception {
+			if (persistedRecord == null
+					|| persistedRecord == checkpointedRecord) {
+				return;
+			}
+			// Persist the buffered temperatures and the rollups in DynamoDB
+			// before the checkpoint, so that no reading before it can get lost
+			long start = System.nanoTime();
+			buffer.flush();
+			rollups.flush();
+			long flushed = System.nanoTime();
+			shardMetrics.written(flushed - start);
+			checkpointer.checkpoint(persistedRecord);
+			shardMetrics.checkpointed(System.nanoTime() - flushed);
+			checkpointedRecord = persistedRecord;
+		}
+
+		/**
+		 * Moves the persisted record forward over the done batches. A failed
+		 * batch is never passed.
+		 */
+		private void advance() {
+			while (!tickets.isEmpty() && tickets.peek().isDone()) {
+				ConsumerPipeline.Ticket ticket = tickets.poll();
+				persistedRecord = ticket.getLastRecord();
+				checkpointPolicy.persisted(ticket.getRecordCount());
+			}
+		}
+
+		/**
+		 * Processes the failed batches of this shard again until they are
+		 * done. This blocks the KCL thread, so no new batch is taken while a
+		 * failed one is pending, and the checkpoints resume once it is done.
+		 * A batch that still fails after {@link #BATCH_MAX_ATTEMPTS} attempts,
+		 * e.g. because of a record that always fails, is written to the dead
+		 * letter log and skipped, so that the shard does not stall forever.
+		 */
+		private void retryFailed() throws InterruptedException {
+			for (ConsumerPipeline.Ticket ticket : tickets) {
+				for (int attempt = 1; ticket.isFailed(); attempt++) {
+					ticket.await();
+					if (attempt >= BATCH_MAX_ATTEMPTS) {
+						deadLetter(ticket, attempt);
+						pipeline.skip(ticket);
+						break;
+					}
+					long backoff = Math.min(MAX_RETRY_BACKOFF_MS,
+							1000L << Math.min(attempt - 1, 6));
+					log.error(String
+							.format("A batch of %d records could not be persisted, processing it again in %d ms",
+									ticket.getRecordCount(), backoff));
+					Thread.sleep(backoff);
+					pipeline.resubmit(ticket);
+					ticket.await();
+				}
+			}
+		}
+
+		/**
+		 * Writes the records of a batch that is given up to the dead letter
+		 * log, with their data in Base64.
+		 */
+		private void deadLetter(ConsumerPipeline.Ticket ticket, int attempts) {
+			log.error(String
+					.format("Giving up a batch of %d records after %d attempts, see the dead letter log",
+							ticket.getRecordCount(), attempts));
+			for (Record record : ticket.getRecords()) {
+				ByteBuffer data = record.getData().duplicate();
+				data.rewind();
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				deadLetters.error(String.format("%s %s %s %s",
+						shardMetrics.getShardId(), record.getSequenceNumber(),
+						record.getPartitionKey(), BaseEncoding.base64()
+								.encode(bytes)));
+			}
+		}
+
 		@Override
-		public void shutdown(IRecordProcessorCheckpointer checkpointer,
-				ShutdownReason reason) {
+		public void shutdown(ShutdownInput input) {
+			ShutdownReason reason = input.getShutdownReason();
+			IRecordProcessorCheckpointer checkpointer = input.getCheckpointer();
 			log.info("Shutting down, reason: " + reason);
 			try {
-				checkpointer.checkpoint();
+				for (ConsumerPipeline.Ticket ticket : tickets) {
+					ticket.await();
+				}
+				advance();
+				buffer.flush();
+				rollups.flush();
+				if (reason == ShutdownReason.TERMINATE && tickets.isEmpty()) {
+					// The shard has ended, all of its records are persisted
+					checkpointer.checkpoint();
+				} else {
+					// On a lost lease (ZOMBIE) the checkpoint is rejected, but
+					// the readings are persisted by now. The new owner of the
+					// shard processes the records after the last checkpoint
+					// again, which does not change the stored items.
+					checkpoint(checkpointer);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ShutdownException e) {
+				log.info("Lease was lost, records after the last checkpoint will be processed again by the new owner");
 			} catch (Exception e) {
 				log.error("Error while trying to checkpoint during Shutdown", e);
+			} finally {
+				metrics.remove(shardMetrics);
+			}
+		}
+	}
+
+	/**
+	 * Remembers the latest run of the producer and logs when a new one
+	 * started.
+	 * 
+	 * @param run
+	 *            The timestamp of the run of a reading
+	 */
+	public void runSeen(long run) {
+		long latest;
+		while (run > (latest = largestTimestamp.get())) {
+			if (largestTimestamp.compareAndSet(latest, run)) {
+				log.info("Receiving readings of the run started at " + run);
+				return;
 			}
 		}
 	}
 
 	/**
-	 * Log a message indicating the current state.
+	 * @return The timestamp of the latest run of the producer, 0 if no reading
+	 *         was received yet
+	 */
+	public long getLatestRun() {
+		return largestTimestamp.get();
+	}
+
+	/**
+	 * Log a message indicating the current state. Only every
+	 * {@link #LOG_SAMPLE_RATE}th reading is logged, at debug level.
 	 */
-	public void logResults(long timestamp, int count, String sensorName,
-			String currentTemperature) {
+	public void logResults(long timestamp, String sensorName,
+			double currentTemperature) {
+		if (!log.isDebugEnabled()) {
+			return;
+		}
+		long count = loggedReadings.getAndIncrement();
+		if (count % LOG_SAMPLE_RATE != 0) {
+			return;
+		}
 		Calendar cal = Calendar.getInstance();
 		cal.setTimeInMillis(timestamp);
 		DateFormat df = new SimpleDateFormat(
 				"dd.MM.yyyy HH:mm:ss 'and' SSS 'milliseconds'");
-		log.info("Current temperature #" + count + " of " + sensorName
+		log.debug("Current temperature #" + count + " of " + sensorName
 				+ " at timestamp " + df.format(cal.getTime()) + " is "
 				+ currentTemperature);
 	}
 
+	/**
+	 * @param buffer
+	 *            Collects the readings of all record processors and writes
+	 *            them to DynamoDB
+	 * @param rollups
+	 *            Maintains the rollups of the readings of all record
+	 *            processors
+	 * @param compactor
+	 *            Deletes the expired readings and rollups, or {@code null} if
+	 *            they are kept forever. It is started by the caller and closed
+	 *            with this consumer.
+	 */
+	public TemperatureConsumer(WriteBehindBuffer buffer,
+			RollupAggregator rollups, RetentionCompactor compactor) {
+		this.buffer = buffer;
+		this.rollups = rollups;
+		this.compactor = compactor;
+		this.alerts = new AlertEngine(AlertRule.parse(ALERT_RULES),
+				ALERT_QUEUE_CAPACITY, new AlertSink() {
+					@Override
+					public void alert(Alert alert) {
+						log.warn(alert.toString());
+					}
+				});
+		this.pipeline = new ConsumerPipeline(this, buffer, rollups,
+				new SequenceTracker(DEDUP_WINDOW), alerts,
+				PIPELINE_PARSE_THREADS, PIPELINE_MAX_SENSOR_NAMES,
+				PIPELINE_PERSIST_STRIPES, PIPELINE_QUEUE_CAPACITY);
+		this.metrics = new ConsumerMetrics(buffer, pipeline, rollups,
+				alerts, new IngestLatency(LATENCY_MAX_SENSORS));
+	}
+
+	/**
+	 * @return The metrics of this consumer
+	 */
+	public ConsumerMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public IRecordProcessor createProcessor() {
 		return this.new RecordProcessor();
 	}
 
-	public static void main(String[] args) throws InterruptedException {
+	/**
+	 * Stops the compaction and the pipeline, writes the pending readings and
+	 * rollups and stops the alerts. Only the first call has an effect.
+	 */
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (compactor != null) {
+				compactor.close();
+			}
+			pipeline.close();
+			buffer.close();
+		} finally {
+			try {
+				rollups.close();
+			} finally {
+				alerts.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
 		if (args.length == 2) {
 			streamName = args[0];
 			db_name = args[1];
@@ -206,19 +603,12 @@ public class TemperatureConsumer implements IRecordProcessorFactory {
 				db_name, streamName, new DefaultAWSCredentialsProviderChain(),
 				"KinesisProducerLibSampleConsumer").withRegionName(
 				TemperatureProducer.REGION).withInitialPositionInStream(
-				InitialPositionInStream.TRIM_HORIZON);
+				InitialPositionInStream.TRIM_HORIZON)
+				.withCallProcessRecordsEvenForEmptyRecordList(true);
 
 		Region region = RegionUtils.getRegion(TemperatureProducer.REGION);
 		AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
-		AmazonDynamoDB amazonDynamoDB = new AmazonDynamoDBClient(
-				credentialsProvider, new ClientConfiguration());
-		AmazonDynamoDBClient client = new AmazonDynamoDBClient(
-				credentialsProvider);
-		client.setRegion(region);
-		DynamoDB dynamoDB = new DynamoDB(client);
-		amazonDynamoDB.setRegion(region);
-		DynamoDBUtils dbUtils = new DynamoDBUtils(dynamoDB, amazonDynamoDB,
-				client);
+		DynamoDBUtils dbUtils = DynamoDBClients.getDynamoDBUtils();
 		AmazonKinesis kinesis = new AmazonKinesisClient(credentialsProvider,
 				new ClientConfiguration());
 		kinesis.setRegion(region);
@@ -234,12 +624,44 @@ public class TemperatureConsumer implements IRecordProcessorFactory {
 		}
 		dbUtils.deleteTable(db_name);
 		dbUtils.createTemperatureTableIfNotExists(tableName);
+		dbUtils.createRollupTableIfNotExists(rollupTableName);
 
 		Thread.sleep(1000);
 
-		final TemperatureConsumer consumer = new TemperatureConsumer();
+		RetentionCompactor compactor = null;
+		if (dbUtils.getRetentionMillis() > 0) {
+			compactor = new RetentionCompactor(dbUtils, tableName,
+					rollupTableName, COMPACTION_READ_UNITS,
+					COMPACTION_WRITE_UNITS, COMPACTION_PAGE_SIZE,
+					TimeUnit.MINUTES.toMillis(COMPACTION_INTERVAL_MINUTES));
+		}
+		final TemperatureConsumer consumer = new TemperatureConsumer(
+				new WriteBehindBuffer(dbUtils, tableName,
+						WRITE_BEHIND_FLUSH_SIZE, WRITE_BEHIND_MAX_PENDING,
+						WRITE_BEHIND_FLUSH_MS), new RollupAggregator(dbUtils,
+						rollupTableName, ROLLUP_ALLOWED_LATENESS_MS,
+						ROLLUP_FLUSH_MS), compactor);
+		consumer.getMetrics().register();
+		if (compactor != null) {
+			compactor.start();
+		}
+		if (METRICS_PORT != null) {
+			ServletStarter.start(METRICS_PORT, consumer.getMetrics());
+		}
 
-		new Worker.Builder().recordProcessorFactory(consumer).config(config)
-				.build().run();
+		final Worker worker = new Worker.Builder()
+				.recordProcessorFactory(consumer).config(config).build();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				worker.shutdown();
+				consumer.close();
+			}
+		});
+		try {
+			worker.run();
+		} finally {
+			consumer.close();
+		}
 	}
 }
@@ -15,10 +15,14 @@
 
 package com.innoq.hagmans.bachelor;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -31,12 +35,9 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.producer.Attempt;
 import com.amazonaws.services.kinesis.producer.KinesisProducer;
 import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
-import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
-import com.amazonaws.services.kinesis.producer.UserRecordResult;
-import com.google.common.collect.Iterables;
+import com.google.common.base.Supplier;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -48,20 +49,33 @@ import com.google.common.util.concurrent.ListenableFuture;
  * 
  * <p>
  * This class puts a randomly generated temperature, a sensor name and a
- * timestamp in each logical record, and then padding the record to 128 bytes
- * long. The consumer will then check that all records are received correctly by
- * verifying that there are no gaps in the sequence numbers.
+ * timestamp in each logical record, encoded in the compact binary format of
+ * {@link TemperatureRecordCodec}. The legacy text format, which pads each
+ * record to 128 bytes, can still be selected with -Drecord.format=text while
+ * old consumers are migrated. Every binary record carries a sequence number
+ * per sensor and run, which the consumer uses to drop duplicates and to detect
+ * gaps (see {@link SequenceTracker}).
  * 
  * <p>
- * We will distribute the records evenly across all shards by using a random
- * explicit hash key.
+ * A single producer can simulate a whole fleet of sensors (see
+ * {@link SensorFleet}). The fleet is split into slices, which are generated by
+ * one thread per core, and all of them share a single {@link RecordSink}. By
+ * default, the records are put through the KPL. With -Dsink=putrecords, they
+ * are put with PutRecords requests directly from the JVM instead (see
+ * {@link PutRecordsSink}).
+ * 
+ * <p>
+ * We will distribute the sensors evenly across all shards by using an explicit
+ * hash key from the {@link ShardPartitioner}. All records of a sensor are put
+ * into the same shard, so each sensor is only processed by one record
+ * processor of the consumer.
  * 
  * <p>
  * To prevent the consumer from being confused by data from multiple runs of the
  * producer, each record also carries the time at which the producer started.
  * The consumer will reset its state whenever it detects a new, larger
  * timestamp. We will place the timestamp in the partition key. This does not
- * affect the random distribution of records across shards since we've set an
+ * affect the distribution of records across shards since we've set an
  * explicit hash key.
  * 
  * @see TemperatureConsumer
@@ -75,31 +89,196 @@ public class TemperatureProducer {
 	private static final ScheduledExecutorService EXECUTOR = Executors
 			.newScheduledThreadPool(1);
 
+	/**
+	 * Number of threads generating the records of the fleet
+	 */
+	private static final int GENERATOR_THREADS = Integer.getInteger(
+			"generator.threads", Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Whether the rate controllers hold back while too many records are in
+	 * flight (closed loop) or always put at the target rate (open loop)
+	 */
+	private static final boolean CLOSED_LOOP = !"open".equals(System
+			.getProperty("rate.mode", "closed"));
+
+	/**
+	 * Maximum number of records buffered by the sink in closed-loop mode
+	 */
+	private static final int MAX_IN_FLIGHT = Integer.getInteger(
+			"max.in.flight", 100000);
+
+	/**
+	 * Properties file with the configuration of the KPL. If not set, the
+	 * configuration in {@link #getKinesisProducerConfiguration()} is used.
+	 */
+	private static final String KPL_CONFIG = System.getProperty("kpl.config");
+
+	/**
+	 * Whether RecordMaxBufferedTime and MaxConnections of the KPL are chosen by
+	 * calibration phases before the run
+	 */
+	private static final boolean KPL_AUTOTUNE = Boolean
+			.getBoolean("kpl.autotune");
+
+	/**
+	 * Target p99 latency of the puts in milliseconds for the calibration
+	 */
+	private static final int KPL_AUTOTUNE_TARGET_P99_MS = Integer.getInteger(
+			"kpl.autotune.target.p99.ms", 2000);
+
+	/**
+	 * Duration of each calibration phase in seconds
+	 */
+	private static final int KPL_AUTOTUNE_PHASE_SECONDS = Integer.getInteger(
+			"kpl.autotune.phase.seconds", 5);
+
+	/**
+	 * Whether the records are put through the KPL ("kpl") or with PutRecords
+	 * requests from the JVM ("putrecords")
+	 */
+	private static final String SINK = System.getProperty("sink", "kpl");
+
+	/**
+	 * Endpoint of the Kinesis API, e.g. of a local stand-in like kinesalite.
+	 * Only used by the Amazon Kinesis client, not by the KPL.
+	 */
+	private static final String KINESIS_ENDPOINT = System
+			.getProperty("kinesis.endpoint");
+
+	/**
+	 * Maximum number of records per PutRecords request
+	 */
+	private static final int PUTRECORDS_MAX_COUNT = Integer.getInteger(
+			"putrecords.max.count", PutRecordsSink.MAX_RECORDS_PER_REQUEST);
+
+	/**
+	 * Maximum size of a PutRecords request in kilobytes
+	 */
+	private static final int PUTRECORDS_MAX_KB = Integer.getInteger(
+			"putrecords.max.kb", PutRecordsSink.MAX_BYTES_PER_REQUEST >> 10);
+
+	/**
+	 * Maximum time in milliseconds a record waits for its PutRecords request
+	 * to fill up
+	 */
+	private static final int PUTRECORDS_LINGER_MS = Integer.getInteger(
+			"putrecords.linger.ms", 100);
+
+	/**
+	 * Maximum number of PutRecords requests in flight
+	 */
+	private static final int PUTRECORDS_PARALLELISM = Integer.getInteger(
+			"putrecords.parallelism", 8);
+
+	/**
+	 * Maximum number of attempts per record with PutRecords
+	 */
+	private static final int PUTRECORDS_MAX_ATTEMPTS = Integer.getInteger(
+			"putrecords.max.attempts", 10);
+
+	/**
+	 * Interval in seconds in which the shard map of the stream is reloaded to
+	 * pick up shard splits and merges
+	 */
+	private static final int SHARD_MAP_REFRESH_SECONDS = Integer.getInteger(
+			"shardmap.refresh.seconds", 60);
+
 	/**
 	 * Timestamp we'll attach to every record
 	 */
 	private static final String TIMESTAMP = Long.toString(System
 			.currentTimeMillis());
 
-	private static Double temperature = Utils.getFirstTemperature();
-
 	/**
-	 * Data size of each record
+	 * Data size of each record in the legacy text format
 	 */
 	private static final int DATA_SIZE = 128;
 
 	/**
-	 * Name of the sensor that produces the data.
+	 * Whether the records are put in the legacy text format
+	 */
+	private static final boolean LEGACY_FORMAT = "text".equals(System
+			.getProperty("record.format", "binary"));
+
+	/**
+	 * Length of the windows in seconds, if the producer puts one summary per
+	 * sensor and window instead of every reading. 0 disables the
+	 * aggregation.
+	 */
+	private static final int AGGREGATION_WINDOW_SECONDS = Integer.getInteger(
+			"aggregation.window.seconds", 0);
+
+	/**
+	 * If set, a reading is only put if it differs from the last reading put
+	 * for its sensor by more than this number of degrees, or if the heartbeat
+	 * interval has passed. 0 puts every change.
+	 */
+	private static final String DEAD_BAND_THRESHOLD = System
+			.getProperty("deadband.threshold");
+
+	/**
+	 * Maximum number of seconds between two readings of a sensor in dead-band
+	 * mode
+	 */
+	private static final int DEAD_BAND_HEARTBEAT_SECONDS = Integer.getInteger(
+			"deadband.heartbeat.seconds", 60);
+
+	/**
+	 * Directory of the outbox, which keeps every record until it was put. If
+	 * not set, failed records are lost.
+	 */
+	private static final String OUTBOX_DIR = System.getProperty("outbox.dir");
+
+	/**
+	 * Size of the segment files of the outbox in megabytes
+	 */
+	private static final int OUTBOX_SEGMENT_MB = Integer.getInteger(
+			"outbox.segment.mb", 64);
+
+	/**
+	 * Records per second at which failed records are put again. Defaults to
+	 * ten times the target rate, so the outbox catches up after an outage.
+	 */
+	private static final Integer OUTBOX_DRAIN_RATE = Integer
+			.getInteger("outbox.drain.rate");
+
+	/**
+	 * Maximum number of seconds to wait for the outbox to drain at the end of
+	 * a run. Records that are still in the outbox are put on the next start.
+	 */
+	private static final int OUTBOX_DRAIN_TIMEOUT_SECONDS = Integer
+			.getInteger("outbox.drain.timeout.seconds", 30);
+
+	/**
+	 * The outbox, if enabled
+	 */
+	private static Outbox outbox;
+
+	/**
+	 * Latency and throughput of the puts, also available through JMX
+	 */
+	private static ProducerMetrics metrics;
+
+	/**
+	 * Name of the sensor that produces the data. If more than one sensor is
+	 * simulated, this is the prefix of all sensor names.
 	 */
 	private static String sensorName = "Sensor 1";
 
+	/**
+	 * Number of sensors simulated by this producer.
+	 */
+	private static int numberOfSensors = Integer.getInteger("sensor.count", 1);
+
 	/**
 	 * Put records for this number of seconds before exiting.
 	 */
 	private static int secondsToRun = 10;
 
 	/**
-	 * Put this number of records per second.
+	 * Put this number of records per second. The rate is shared by all
+	 * sensors of the fleet.
 	 * 
 	 * Because multiple logical records are combined into each Kinesis record,
 	 * even a single shard can handle several thousand records per second, even
@@ -129,21 +308,28 @@ public class TemperatureProducer {
 	public static final String REGION = "us-west-1";
 
 	/**
-	 * Here'll walk through some of the config options and create an instance of
-	 * KinesisProducer, which will be used to put records.
+	 * Here'll walk through some of the config options of the KinesisProducer.
 	 * 
-	 * @return KinesisProducer instance used to put records.
+	 * @return A new configuration for the KinesisProducer.
 	 */
-	public static KinesisProducer getKinesisProducer() {
+	public static KinesisProducerConfiguration getKinesisProducerConfiguration() {
+		// You can also load config from file. A sample properties file is
+		// included in the project folder (-Dkpl.config=default_config.properties)
+		if (KPL_CONFIG != null) {
+			KinesisProducerConfiguration config = KinesisProducerConfiguration
+					.fromPropertiesFile(KPL_CONFIG);
+			if (config.getRegion().isEmpty()) {
+				config.setRegion(REGION);
+			}
+			config.setCredentialsProvider(
+					new DefaultAWSCredentialsProviderChain());
+			return config;
+		}
+
 		// There are many configurable parameters in the KPL. See the javadocs
 		// on each each set method for details.
 		KinesisProducerConfiguration config = new KinesisProducerConfiguration();
 
-		// You can also load config from file. A sample properties file is
-		// included in the project folder.
-		// KinesisProducerConfiguration config =
-		// KinesisProducerConfiguration.fromPropertiesFile("default_config.properties");
-
 		// If you're running in EC2 and want to use the same Kinesis region as
 		// the one your instance is in, you can simply leave out the region
 		// configuration; the KPL will retrieve it from EC2 metadata.
@@ -183,6 +369,19 @@ public class TemperatureProducer {
 		// them on to the child process.
 		// config.setNativeExecutable("my_directory/kinesis_producer");
 
+		return config;
+	}
+
+	/**
+	 * Creates an instance of KinesisProducer, which will be used to put
+	 * records.
+	 * 
+	 * @param config
+	 *            The configuration of the KinesisProducer
+	 * @return KinesisProducer instance used to put records.
+	 */
+	public static KinesisProducer getKinesisProducer(
+			KinesisProducerConfiguration config) {
 		// If you end up using the default configuration (a Configuration
 		// instance
 		// without any calls to set*), you can just leave the config argument
@@ -196,6 +395,58 @@ public class TemperatureProducer {
 		return producer;
 	}
 
+	/**
+	 * Creates the sink selected with -Dsink.
+	 * 
+	 * @param credentialsProvider
+	 *            Credentials for the Amazon Kinesis client of the PutRecords
+	 *            sink
+	 * @param region
+	 *            Region of the stream
+	 * @param load
+	 *            Produces the records of the calibration phases, or
+	 *            {@code null} if the KPL is not tuned
+	 * @return The sink used to put records.
+	 */
+	public static RecordSink getRecordSink(
+			AWSCredentialsProvider credentialsProvider, Region region,
+			KplAutoTuner.Load load) {
+		if ("kpl".equals(SINK)) {
+			KinesisProducerConfiguration config;
+			if (KPL_AUTOTUNE) {
+				log.info(String
+						.format("Calibrating the KPL for a p99 latency of %d ms at %d records per second...",
+								KPL_AUTOTUNE_TARGET_P99_MS, recordsPerSecond));
+				config = new KplAutoTuner(
+						new Supplier<KinesisProducerConfiguration>() {
+							@Override
+							public KinesisProducerConfiguration get() {
+								return getKinesisProducerConfiguration();
+							}
+						}, streamName, recordsPerSecond,
+						KPL_AUTOTUNE_PHASE_SECONDS, KPL_AUTOTUNE_TARGET_P99_MS,
+						MAX_IN_FLIGHT).tune(load);
+			} else {
+				config = getKinesisProducerConfiguration();
+			}
+			return new KplRecordSink(getKinesisProducer(config), streamName);
+		}
+		if (!"putrecords".equals(SINK)) {
+			throw new IllegalArgumentException("Unknown sink: " + SINK);
+		}
+		// Every batch in flight needs a connection of its own
+		AmazonKinesis kinesis = new AmazonKinesisClient(credentialsProvider,
+				new ClientConfiguration()
+						.withMaxConnections(PUTRECORDS_PARALLELISM));
+		kinesis.setRegion(region);
+		if (KINESIS_ENDPOINT != null) {
+			kinesis.setEndpoint(KINESIS_ENDPOINT);
+		}
+		return new PutRecordsSink(kinesis, streamName, PUTRECORDS_MAX_COUNT,
+				PUTRECORDS_MAX_KB << 10, PUTRECORDS_LINGER_MS,
+				PUTRECORDS_PARALLELISM, PUTRECORDS_MAX_ATTEMPTS);
+	}
+
 	public static void main(String[] args) throws Exception {
 
 		if (args.length == 4) {
@@ -204,6 +455,13 @@ public class TemperatureProducer {
 			secondsToRun = Integer.parseInt(args[2]);
 			recordsPerSecond = Integer.parseInt(args[3]);
 		}
+		// The legacy text format cannot mark a reading as a change only, so
+		// the consumer would not know that it holds until the next one
+		if (LEGACY_FORMAT && DEAD_BAND_THRESHOLD != null
+				&& AGGREGATION_WINDOW_SECONDS == 0) {
+			throw new IllegalArgumentException(
+					"deadband.threshold cannot be used with record.format=text");
+		}
 
 		// Create a new stream if it doesn't already exists
 		Region region = RegionUtils.getRegion(REGION);
@@ -211,85 +469,198 @@ public class TemperatureProducer {
 		AmazonKinesis kinesis = new AmazonKinesisClient(credentialsProvider,
 				new ClientConfiguration());
 		kinesis.setRegion(region);
+		if (KINESIS_ENDPOINT != null) {
+			kinesis.setEndpoint(KINESIS_ENDPOINT);
+		}
 		StreamUtils streamUtils = new StreamUtils(kinesis);
 		streamUtils.createStream(streamName, NUMBER_OF_SHARDS);
 
-		final KinesisProducer producer = getKinesisProducer();
+		final ShardPartitioner partitioner = new ShardPartitioner(kinesis,
+				streamName);
+		partitioner.refresh();
+
+		final SensorFleet fleet = new SensorFleet(sensorName, numberOfSensors);
+
+		KplAutoTuner.Load load = null;
+		if (KPL_AUTOTUNE && "kpl".equals(SINK)) {
+			// The calibration of the KPL puts readings of a fleet of its own,
+			// so the sequence numbers of the real fleet stay contiguous,
+			// under a partition key the consumer skips
+			final SensorFleet calibrationFleet = new SensorFleet(sensorName,
+					numberOfSensors);
+			final ReadingGenerator calibrationGenerator = new ReadingGenerator(
+					calibrationFleet, 0, numberOfSensors, LEGACY_FORMAT,
+					DATA_SIZE);
+			final String calibrationPartitionKey = KplAutoTuner.CALIBRATION_PARTITION_KEY_PREFIX
+					+ TIMESTAMP;
+			load = new KplAutoTuner.Load() {
+				@Override
+				public ListenableFuture<PutResult> put(RecordSink sink) {
+					ByteBuffer data = calibrationGenerator.next();
+					return sink.put(calibrationPartitionKey, partitioner
+							.explicitHashKey(calibrationFleet
+									.getName(calibrationGenerator
+											.getLastSensor())), data);
+				}
+			};
+		}
+		final RecordSink sink = getRecordSink(credentialsProvider, region,
+				load);
+
+		if (OUTBOX_DIR != null) {
+			outbox = new Outbox(new File(OUTBOX_DIR), OUTBOX_SEGMENT_MB << 20);
+		}
+
+		metrics = new ProducerMetrics();
+		metrics.register();
+
+		// Every generator thread owns a slice of the fleet. There is no point
+		// in having more threads than sensors or records per second.
+		final int generators = Math.max(1, Math.min(GENERATOR_THREADS,
+				Math.min(numberOfSensors, recordsPerSecond)));
 
-		// The monotonically increasing sequence number we will put in the data
-		// of each record
-		final AtomicLong sequenceNumber = new AtomicLong(0);
+		// Paces each generator thread and counts the records it has put
+		final RateController[] rateControllers = new RateController[generators];
+
+		// Summarizes the readings of each generator thread, if enabled
+		final WindowAggregator[] aggregators = new WindowAggregator[generators];
 
 		// The number of records that have finished (either successfully put, or
 		// failed)
 		final AtomicLong completed = new AtomicLong(0);
 
-		// KinesisProducer.addUserRecord is asynchronous. A callback can be used
-		// to receive the results.
-		final FutureCallback<UserRecordResult> callback = new FutureCallback<UserRecordResult>() {
+		// RecordSink.put is asynchronous. A callback can be used to receive the
+		// results.
+		final FutureCallback<PutResult> callback = new FutureCallback<PutResult>() {
 			@Override
 			public void onFailure(Throwable t) {
 				// We don't expect any failures during this sample. If it
-				// happens, we will log the first one and exit.
-				if (t instanceof UserRecordFailedException) {
-					Attempt last = Iterables
-							.getLast(((UserRecordFailedException) t)
-									.getResult().getAttempts());
+				// happens, we will log the first one and exit. With an
+				// outbox, failures are retried by the outbox instead.
+				if (t instanceof PutFailedException) {
+					PutResult result = ((PutFailedException) t).getResult();
 					log.error(String.format("Record failed to put - %s : %s",
-							last.getErrorCode(), last.getErrorMessage()));
+							result.getErrorCode(), result.getErrorMessage()));
 				}
 				log.error("Exception during put", t);
 				System.exit(1);
 			}
 
 			@Override
-			public void onSuccess(UserRecordResult result) {
-				temperature = Utils.getNextTemperature(temperature);
+			public void onSuccess(PutResult result) {
 				completed.getAndIncrement();
 			}
 		};
 
-		// The lines within run() are the essence of the KPL API.
-		final Runnable putOneRecord = new Runnable() {
-			@Override
-			public void run() {
-				ByteBuffer data = Utils.generateData(temperature, sensorName,
-						DATA_SIZE);
-				// TIMESTAMP is our partition key
-				ListenableFuture<UserRecordResult> f = producer.addUserRecord(
-						streamName, TIMESTAMP, Utils.randomExplicitHashKey(),
-						data);
-				Futures.addCallback(f, callback);
-			}
-		};
-
 		// This gives us progress updates
 		EXECUTOR.scheduleAtFixedRate(new Runnable() {
 			@Override
 			public void run() {
-				long put = sequenceNumber.get();
+				long put = 0;
+				double achievedRate = 0;
+				for (RateController rateController : rateControllers) {
+					put += rateController.getIssued();
+					achievedRate += rateController.getAchievedRate();
+				}
 				long total = recordsPerSecond * secondsToRun;
 				double putPercent = 100.0 * put / total;
 				long done = completed.get();
 				double donePercent = 100.0 * done / total;
 				log.info(String
-						.format("Put %d of %d so far (%.2f %%), %d have completed (%.2f %%)",
-								put, total, putPercent, done, donePercent));
+						.format("Put %d of %d so far (%.2f %%), %d have completed (%.2f %%), %.1f of %d records per second, %d in flight, p99 latency %.1f ms",
+								put, total, putPercent, done, donePercent,
+								achievedRate, recordsPerSecond,
+								sink.getOutstandingRecordsCount(),
+								metrics.getSuccessLatencyP99Millis()));
 			}
 		}, 1, 1, TimeUnit.SECONDS);
 
+		// This picks up shard splits and merges
+		EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				partitioner.refresh();
+			}
+		}, SHARD_MAP_REFRESH_SECONDS, SHARD_MAP_REFRESH_SECONDS,
+				TimeUnit.SECONDS);
+
+		// This puts the records again that failed or were left over from the
+		// last run
+		final AtomicBoolean draining = new AtomicBoolean(outbox != null);
+		ExecutorService drainExecutor = Executors.newSingleThreadExecutor();
+		if (outbox != null) {
+			int drainRate = OUTBOX_DRAIN_RATE != null ? OUTBOX_DRAIN_RATE
+					: 10 * recordsPerSecond;
+			drainOutbox(drainExecutor, sink, callback, draining,
+					new RateController(drainRate, (int) TimeUnit.DAYS
+							.toSeconds(365), CLOSED_LOOP ? sink : null,
+							MAX_IN_FLIGHT));
+			EXECUTOR.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					outbox.sync();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+
 		// Kick off the puts
 		log.info(String
-				.format("Starting puts... will run for %d seconds at %d records per second",
-						secondsToRun, recordsPerSecond));
-		executeAtTargetRate(EXECUTOR, putOneRecord, sequenceNumber,
-				secondsToRun, recordsPerSecond);
+				.format("Starting puts... will run for %d seconds at %d records per second for %d sensors on %d threads",
+						secondsToRun, recordsPerSecond, numberOfSensors,
+						generators));
+		ExecutorService generatorExecutor = Executors
+				.newFixedThreadPool(generators);
+		for (int i = 0; i < generators; i++) {
+			// Spread the rate evenly, the first threads take the remainder
+			int rate = recordsPerSecond / generators
+					+ (i < recordsPerSecond % generators ? 1 : 0);
+			rateControllers[i] = new RateController(rate, secondsToRun,
+					CLOSED_LOOP ? sink : null, MAX_IN_FLIGHT);
+			int from = fleet.sliceStart(i, generators);
+			int to = fleet.sliceEnd(i, generators);
+			DeadBandFilter filter = null;
+			if (AGGREGATION_WINDOW_SECONDS > 0) {
+				aggregators[i] = new WindowAggregator(fleet, from, to,
+						AGGREGATION_WINDOW_SECONDS * 1000);
+			} else if (DEAD_BAND_THRESHOLD != null) {
+				filter = new DeadBandFilter(from, to,
+						Double.parseDouble(DEAD_BAND_THRESHOLD),
+						TimeUnit.SECONDS.toMillis(DEAD_BAND_HEARTBEAT_SECONDS));
+			}
+			executeWithRateController(
+					generatorExecutor,
+					putRecordTask(sink, partitioner, fleet,
+							new ReadingGenerator(fleet, from, to,
+									LEGACY_FORMAT, DATA_SIZE), aggregators[i],
+							filter, callback), rateControllers[i]);
+		}
 
 		// Wait for puts to finish. After this statement returns, we have
 		// finished all calls to putRecord, but the records may still be
 		// in-flight. We will additionally wait for all records to actually
 		// finish later.
-		EXECUTOR.awaitTermination(secondsToRun + 1, TimeUnit.SECONDS);
+		generatorExecutor.shutdown();
+		generatorExecutor.awaitTermination(secondsToRun + 1, TimeUnit.SECONDS);
+		EXECUTOR.shutdown();
+
+		// Put the summaries of the last, incomplete windows
+		for (WindowAggregator aggregator : aggregators) {
+			if (aggregator != null) {
+				aggregator.closeWindow(System.currentTimeMillis(), true);
+				putSummaries(sink, partitioner, fleet, aggregator, callback);
+			}
+		}
+
+		long put = 0;
+		long backpressureMillis = 0;
+		for (RateController rateController : rateControllers) {
+			put += rateController.getIssued();
+			backpressureMillis += rateController.getBackpressureMillis();
+		}
+		log.info(String
+				.format("Put %d records, achieved %.1f of %d records per second, held back for %d ms because of records in flight",
+						put, (double) put / secondsToRun, recordsPerSecond,
+						backpressureMillis));
 
 		// If you need to shutdown your application, call flushSync() first to
 		// send any buffered records. This method will block until all records
@@ -299,46 +670,209 @@ public class TemperatureProducer {
 		// Records are also automatically flushed by the KPL after a while based
 		// on the time limit set with Configuration.setRecordMaxBufferedTime()
 		log.info("Waiting for remaining puts to finish...");
-		producer.flushSync();
+		sink.flushSync();
+		if (outbox != null) {
+			long deadline = System.currentTimeMillis()
+					+ TimeUnit.SECONDS.toMillis(OUTBOX_DRAIN_TIMEOUT_SECONDS);
+			while (outbox.getPendingCount() > 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+			}
+			draining.set(false);
+			drainExecutor.shutdown();
+			drainExecutor.awaitTermination(1, TimeUnit.SECONDS);
+			sink.flushSync();
+			if (outbox.getPendingCount() > 0) {
+				log.warn(String
+						.format("%d records are left in the outbox and will be put on the next start",
+								outbox.getPendingCount()));
+			}
+			outbox.close();
+		} else {
+			drainExecutor.shutdown();
+		}
 		log.info("All records complete.");
+		log.info(metrics.report());
 
-		// This kills the child process and shuts down the threads managing it.
-		producer.destroy();
+		// This kills the child process of the KPL and shuts down the threads
+		// managing it.
+		sink.destroy();
 		log.info("Finished.");
 	}
 
 	/**
-	 * Executes a function N times per second for M seconds with a
-	 * ScheduledExecutorService. The executor is shutdown at the end. This is
-	 * more precise than simply using scheduleAtFixedRate.
+	 * Creates the task that generates the next reading of a slice of the fleet.
+	 * The reading is either put right away (unless the dead-band filter drops
+	 * it), or added to the window of its sensor, in which case the summaries
+	 * are put whenever a window ends.
+	 * 
+	 * @param sink
+	 *            The sink shared by all slices
+	 * @param partitioner
+	 *            Maps the sensors to the shards of the stream
+	 * @param fleet
+	 *            The simulated fleet
+	 * @param generator
+	 *            The generator of the slice
+	 * @param aggregator
+	 *            The aggregator of the slice, or {@code null} to put every
+	 *            reading
+	 * @param filter
+	 *            The dead-band filter of the slice, or {@code null} to put
+	 *            every reading
+	 * @param callback
+	 *            Callback for the results of the puts
+	 * @return The task, which must always be run by the same thread
+	 */
+	private static Runnable putRecordTask(final RecordSink sink,
+			final ShardPartitioner partitioner, final SensorFleet fleet,
+			final ReadingGenerator generator,
+			final WindowAggregator aggregator, final DeadBandFilter filter,
+			final FutureCallback<PutResult> callback) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (filter != null) {
+					double temperature = generator.advance();
+					long timestamp = System.currentTimeMillis();
+					int sensor = generator.getLastSensor();
+					if (filter.accept(sensor, temperature, timestamp)) {
+						putRecord(sink, partitioner, fleet, sensor,
+								generator.encode(temperature, timestamp,
+										TemperatureRecordCodec.FLAG_CHANGE_ONLY),
+								callback);
+					}
+					return;
+				}
+				if (aggregator == null) {
+					ByteBuffer data = generator.next();
+					putRecord(sink, partitioner, fleet,
+							generator.getLastSensor(), data, callback);
+					return;
+				}
+				if (aggregator.closeWindow(System.currentTimeMillis(), false)) {
+					putSummaries(sink, partitioner, fleet, aggregator,
+							callback);
+				}
+				double temperature = generator.advance();
+				aggregator.add(generator.getLastSensor(), temperature);
+			}
+		};
+	}
+
+	/**
+	 * Puts the summaries of the last closed window of an aggregator.
+	 */
+	private static void putSummaries(RecordSink sink,
+			ShardPartitioner partitioner, SensorFleet fleet,
+			WindowAggregator aggregator, FutureCallback<PutResult> callback) {
+		ByteBuffer data;
+		while ((data = aggregator.nextSummary()) != null) {
+			putRecord(sink, partitioner, fleet,
+					aggregator.getLastSensor(), data, callback);
+		}
+	}
+
+	/**
+	 * Puts a single record into the shard of its sensor. If the outbox is
+	 * enabled, the record is appended to it first.
+	 */
+	private static void putRecord(RecordSink sink,
+			ShardPartitioner partitioner, SensorFleet fleet, int sensor,
+			ByteBuffer data, FutureCallback<PutResult> callback) {
+		// The sink copies the data before put returns, so the caller can reuse
+		// its buffer for the next record.
+		String explicitHashKey = partitioner.explicitHashKey(fleet
+				.getName(sensor));
+		if (outbox != null) {
+			try {
+				callback = outbox.callback(
+						outbox.append(TIMESTAMP, explicitHashKey, data),
+						callback);
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Unable to append the record to the outbox", e);
+			}
+		}
+		callback = metrics.track(data.remaining(), callback);
+		// TIMESTAMP is our partition key
+		ListenableFuture<PutResult> f = sink.put(TIMESTAMP, explicitHashKey,
+				data);
+		Futures.addCallback(f, callback);
+	}
+
+	/**
+	 * Puts the failed records of the outbox again until draining is stopped.
+	 * 
+	 * @param exec
+	 *            Executor providing the thread to run on
+	 * @param sink
+	 *            The sink
+	 * @param callback
+	 *            Callback for the results of the puts
+	 * @param draining
+	 *            Set to false to stop draining
+	 * @param rateController
+	 *            Paces the retries
+	 */
+	private static void drainOutbox(final ExecutorService exec,
+			final RecordSink sink, final FutureCallback<PutResult> callback,
+			final AtomicBoolean draining, final RateController rateController) {
+		final Outbox.Sink retrySink = new Outbox.Sink() {
+			@Override
+			public void put(long handle, String partitionKey,
+					String explicitHashKey, ByteBuffer data) {
+				FutureCallback<PutResult> tracked = metrics.track(
+						data.remaining(), outbox.callback(handle, callback));
+				ListenableFuture<PutResult> f = sink.put(partitionKey,
+						explicitHashKey, data);
+				Futures.addCallback(f, tracked);
+			}
+		};
+		exec.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (draining.get()) {
+					try {
+						int drained = outbox.drain(retrySink,
+								rateController);
+						if (drained > 0) {
+							log.info(String.format(
+									"Put %d records from the outbox again",
+									drained));
+						} else {
+							Thread.sleep(100);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (Exception e) {
+						log.error("Error draining the outbox", e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Executes a function whenever the rate controller allows it, until the
+	 * duration of the controller has elapsed. This replaces polling the
+	 * executor every millisecond with a thread that sleeps until the next
+	 * record is due.
 	 * 
 	 * @param exec
-	 *            Executor
+	 *            Executor providing the thread to run on
 	 * @param task
 	 *            Task to perform
-	 * @param counter
-	 *            Counter used to track how many times the task has been
-	 *            executed
-	 * @param durationSeconds
-	 *            How many seconds to run for
-	 * @param ratePerSecond
-	 *            How many times to execute task per second
-	 */
-	private static void executeAtTargetRate(
-			final ScheduledExecutorService exec, final Runnable task,
-			final AtomicLong counter, final int durationSeconds,
-			final int ratePerSecond) {
-		exec.scheduleWithFixedDelay(new Runnable() {
-			final long startTime = System.nanoTime();
-
+	 * @param rateController
+	 *            Controller pacing the task and counting its executions
+	 */
+	private static void executeWithRateController(final ExecutorService exec,
+			final Runnable task, final RateController rateController) {
+		exec.execute(new Runnable() {
 			@Override
 			public void run() {
-				double secondsRun = (System.nanoTime() - startTime) / 1e9;
-				double targetCount = Math.min(durationSeconds, secondsRun)
-						* ratePerSecond;
-
-				while (counter.get() < targetCount) {
-					counter.getAndIncrement();
+				while (rateController.acquire()) {
 					try {
 						task.run();
 					} catch (Exception e) {
@@ -346,12 +880,8 @@ public class TemperatureProducer {
 						System.exit(1);
 					}
 				}
-
-				if (secondsRun >= durationSeconds) {
-					exec.shutdown();
-				}
 			}
-		}, 0, 1, TimeUnit.MILLISECONDS);
+		});
 	}
 
 }
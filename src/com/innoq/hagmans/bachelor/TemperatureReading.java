@@ -0,0 +1,183 @@
+package com.innoq.hagmans.bachelor;
+
+/**
+ * A single temperature reading of a sensor as it is transported from the
+ * producer to the consumer, or the summary of a window of readings.
+ * 
+ * <p>
+ * Instances are mutable so that a decoder can reuse one instance for all
+ * records of a batch.
+ * 
+ * @see TemperatureRecordCodec
+ * @author hhagmans
+ * 
+ */
+public class TemperatureReading {
+
+	/**
+	 * Sequence number of records that do not carry one, like those of older
+	 * producers
+	 */
+	public static final long NO_SEQUENCE_NUMBER = -1;
+
+	private String sensorName;
+
+	private long sequenceNumber = NO_SEQUENCE_NUMBER;
+
+	private long timestamp;
+
+	private double temperature;
+
+	private boolean summary;
+
+	private boolean changeOnly;
+
+	private int windowMillis;
+
+	private int count;
+
+	private double min;
+
+	private double max;
+
+	private double mean;
+
+	/**
+	 * Replaces the content of this reading.
+	 * 
+	 * @param sensorName
+	 *            Name of the sensor that produced the reading
+	 * @param timestamp
+	 *            Time in milliseconds at which the reading was produced
+	 * @param temperature
+	 *            The temperature in degrees
+	 */
+	public void set(String sensorName, long timestamp, double temperature) {
+		this.sensorName = sensorName;
+		this.timestamp = timestamp;
+		this.temperature = temperature;
+		this.sequenceNumber = NO_SEQUENCE_NUMBER;
+		this.summary = false;
+		this.changeOnly = false;
+		this.windowMillis = 0;
+		this.count = 1;
+		this.min = temperature;
+		this.max = temperature;
+		this.mean = temperature;
+	}
+
+	/**
+	 * Replaces the content of this reading with the summary of a window of
+	 * readings.
+	 * 
+	 * @param sensorName
+	 *            Name of the sensor that produced the readings
+	 * @param windowStart
+	 *            Start of the window in milliseconds
+	 * @param windowMillis
+	 *            Length of the window in milliseconds
+	 * @param count
+	 *            Number of readings in the window
+	 * @param min
+	 *            Lowest temperature of the window
+	 * @param max
+	 *            Highest temperature of the window
+	 * @param mean
+	 *            Mean temperature of the window
+	 * @param last
+	 *            Last temperature of the window
+	 */
+	public void setSummary(String sensorName, long windowStart,
+			int windowMillis, int count, double min, double max, double mean,
+			double last) {
+		this.sensorName = sensorName;
+		this.timestamp = windowStart;
+		this.temperature = last;
+		this.sequenceNumber = NO_SEQUENCE_NUMBER;
+		this.summary = true;
+		this.changeOnly = false;
+		this.windowMillis = windowMillis;
+		this.count = count;
+		this.min = min;
+		this.max = max;
+		this.mean = mean;
+	}
+
+	public String getSensorName() {
+		return sensorName;
+	}
+
+	/**
+	 * @return Time in milliseconds at which the reading was produced, or the
+	 *         start of the window of a summary
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return The temperature of the reading, or the last temperature of the
+	 *         window of a summary
+	 */
+	public double getTemperature() {
+		return temperature;
+	}
+
+	/**
+	 * @return Sequence number of the record within its sensor and run, or
+	 *         {@link #NO_SEQUENCE_NUMBER}
+	 */
+	public long getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public void setSequenceNumber(long sequenceNumber) {
+		this.sequenceNumber = sequenceNumber;
+	}
+
+	public boolean isSummary() {
+		return summary;
+	}
+
+	/**
+	 * @return Whether the sensor only emits readings when its temperature
+	 *         changes, so that the temperature holds until the next reading
+	 */
+	public boolean isChangeOnly() {
+		return changeOnly;
+	}
+
+	public void setChangeOnly(boolean changeOnly) {
+		this.changeOnly = changeOnly;
+	}
+
+	public int getWindowMillis() {
+		return windowMillis;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	@Override
+	public String toString() {
+		if (summary) {
+			return sensorName + " from " + timestamp + " for " + windowMillis
+					+ " ms: " + count + " readings, min " + min + ", max "
+					+ max + ", mean " + mean + ", last " + temperature;
+		}
+		return sensorName + " at " + timestamp + ": " + temperature;
+	}
+}
@@ -0,0 +1,429 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the data of the records put into the Kinesis stream.
+ *
+ * <p>
+ * A binary record starts with a fixed header of four bytes: a magic byte, the
+ * version of the format, the type of the record and a byte of flags. In
+ * version 2 the header is followed by the sequence number of the record
+ * within its sensor and run (8 bytes), which version 1 lacks. A reading
+ * continues with the timestamp in milliseconds (8 bytes), the temperature in
+ * tenths of a degree (2 bytes), the length of the sensor name (1 byte) and
+ * the UTF-8 encoded sensor name.
+ *
+ * <p>
+ * A summary of a window of readings (see {@link WindowAggregator}) continues
+ * with the start of the window in milliseconds (8 bytes), the length of the
+ * window in milliseconds (4 bytes), the number of readings (4 bytes), the
+ * minimum, maximum and last temperature in tenths of a degree (2 bytes each),
+ * the mean temperature (4 byte float) and the length-prefixed sensor name.
+ *
+ * <p>
+ * Older producers wrote each reading as a UTF-8 string of the form
+ * "temperature;sensor;timestamp;padding" (see
+ * {@link Utils#generateData(double, String, int)}). The magic byte is not a
+ * valid first character of such a string, so the decoder accepts both formats.
+ *
+ * @author hhagmans
+ *
+ */
+public class TemperatureRecordCodec {
+
+	/**
+	 * First byte of every binary record
+	 */
+	public static final byte MAGIC = (byte) 0xB5;
+
+	/**
+	 * The version written by this codec
+	 */
+	public static final byte VERSION = 2;
+
+	/**
+	 * The version without sequence numbers, which is still decoded
+	 */
+	private static final byte VERSION_WITHOUT_SEQUENCE = 1;
+
+	/**
+	 * Type of a record holding a single reading
+	 */
+	public static final byte TYPE_READING = 0;
+
+	/**
+	 * Flag of a reading that is only emitted when the temperature changed (see
+	 * {@link DeadBandFilter}). The temperature holds until the next reading of
+	 * the sensor.
+	 */
+	public static final byte FLAG_CHANGE_ONLY = 1;
+
+	/**
+	 * Type of a record holding the summary of a window of readings
+	 */
+	public static final byte TYPE_SUMMARY = 1;
+
+	private static final int HEADER_SIZE = 4;
+
+	private static final int SEQUENCE_SIZE = 8;
+
+	private static final int MAX_NAME_LENGTH = 255;
+
+	/**
+	 * Maximum size of an encoded record
+	 */
+	public static final int MAX_RECORD_SIZE = HEADER_SIZE + SEQUENCE_SIZE + 27
+			+ MAX_NAME_LENGTH;
+
+	/**
+	 * Temperatures are transported in tenths of a degree, which is the
+	 * resolution of {@link Utils#getNextTemperature(double)}
+	 */
+	private static final double TEMPERATURE_SCALE = 10d;
+
+	/**
+	 * Separates the fields of a record in the legacy text format
+	 */
+	private static final byte SEPARATOR = ';';
+
+	/**
+	 * Powers of ten up to 10^22, which are exact doubles
+	 */
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Encodes a single reading.
+	 *
+	 * @param sensorName
+	 *            Name of the sensor that produced the reading
+	 * @param sequenceNumber
+	 *            Sequence number of the record within its sensor and run
+	 * @param timestamp
+	 *            Time in milliseconds at which the reading was produced
+	 * @param temperature
+	 *            The temperature in degrees
+	 * @return ByteBuffer containing the encoded reading
+	 */
+	public static ByteBuffer encodeReading(String sensorName,
+			long sequenceNumber, long timestamp, double temperature) {
+		byte[] name = sensorName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + SEQUENCE_SIZE + 11
+				+ name.length);
+		encodeReading(data, name, sequenceNumber, timestamp, temperature,
+				(byte) 0);
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * Encodes a single reading into the given buffer without allocating
+	 * anything.
+	 *
+	 * @param out
+	 *            The buffer to write into, starting at its position
+	 * @param sensorName
+	 *            UTF-8 encoded name of the sensor that produced the reading
+	 * @param sequenceNumber
+	 *            Sequence number of the record within its sensor and run
+	 * @param timestamp
+	 *            Time in milliseconds at which the reading was produced
+	 * @param temperature
+	 *            The temperature in degrees
+	 * @param flags
+	 *            The flags of the reading, e.g. {@link #FLAG_CHANGE_ONLY}
+	 */
+	public static void encodeReading(ByteBuffer out, byte[] sensorName,
+			long sequenceNumber, long timestamp, double temperature,
+			byte flags) {
+		if (sensorName.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Sensor name is too long");
+		}
+		out.put(MAGIC).put(VERSION).put(TYPE_READING).put(flags);
+		out.putLong(sequenceNumber);
+		out.putLong(timestamp);
+		out.putShort(scaleTemperature(temperature));
+		out.put((byte) sensorName.length);
+		out.put(sensorName);
+	}
+
+	/**
+	 * Encodes the summary of a window of readings into the given buffer
+	 * without allocating anything.
+	 *
+	 * @param out
+	 *            The buffer to write into, starting at its position
+	 * @param sensorName
+	 *            UTF-8 encoded name of the sensor that produced the readings
+	 * @param sequenceNumber
+	 *            Sequence number of the record within its sensor and run
+	 * @param windowStart
+	 *            Start of the window in milliseconds
+	 * @param windowMillis
+	 *            Length of the window in milliseconds
+	 * @param count
+	 *            Number of readings in the window
+	 * @param min
+	 *            Lowest temperature of the window
+	 * @param max
+	 *            Highest temperature of the window
+	 * @param mean
+	 *            Mean temperature of the window
+	 * @param last
+	 *            Last temperature of the window
+	 */
+	public static void encodeSummary(ByteBuffer out, byte[] sensorName,
+			long sequenceNumber, long windowStart, int windowMillis,
+			int count, double min, double max, double mean, double last) {
+		if (sensorName.length > MAX_NAME_LENGTH) {
+			throw new IllegalArgumentException("Sensor name is too long");
+		}
+		out.put(MAGIC).put(VERSION).put(TYPE_SUMMARY).put((byte) 0);
+		out.putLong(sequenceNumber);
+		out.putLong(windowStart);
+		out.putInt(windowMillis);
+		out.putInt(count);
+		out.putShort(scaleTemperature(min));
+		out.putShort(scaleTemperature(max));
+		out.putShort(scaleTemperature(last));
+		out.putFloat((float) mean);
+		out.put((byte) sensorName.length);
+		out.put(sensorName);
+	}
+
+	/**
+	 * Decodes the data of a record. The position of the given buffer is not
+	 * changed.
+	 *
+	 * @param data
+	 *            The data of the record, either in the binary or in the legacy
+	 *            text format
+	 * @param reading
+	 *            The reading to fill with the decoded values
+	 * @throws IllegalArgumentException
+	 *             If the data cannot be decoded
+	 */
+	public static void decode(ByteBuffer data, TemperatureReading reading) {
+		decode(data, reading, null);
+	}
+
+	/**
+	 * Decodes the data of a record in place. The position of the given buffer
+	 * is not changed, and nothing is allocated for sensor names that are
+	 * already in the dictionary.
+	 *
+	 * @param data
+	 *            The data of the record, either in the binary or in the legacy
+	 *            text format
+	 * @param reading
+	 *            The reading to fill with the decoded values
+	 * @param names
+	 *            Dictionary of the sensor names, or {@code null} to decode a
+	 *            new string for every record
+	 * @throws IllegalArgumentException
+	 *             If the data cannot be decoded
+	 */
+	public static void decode(ByteBuffer data, TemperatureReading reading,
+			SensorNameDictionary names) {
+		if (data.remaining() > 0 && data.get(data.position()) == MAGIC) {
+			decodeBinary(data, reading, names);
+		} else {
+			decodeLegacy(data, reading, names);
+		}
+	}
+
+	private static void decodeBinary(ByteBuffer data,
+			TemperatureReading reading, SensorNameDictionary names) {
+		int i = data.position();
+		int end = data.limit();
+		if (end - i < HEADER_SIZE) {
+			throw new IllegalArgumentException("Truncated record header");
+		}
+		byte version = data.get(i + 1);
+		byte type = data.get(i + 2);
+		byte flags = data.get(i + 3);
+		i += HEADER_SIZE;
+		long sequenceNumber;
+		if (version == VERSION) {
+			checkRemaining(i, SEQUENCE_SIZE, end);
+			sequenceNumber = data.getLong(i);
+			i += SEQUENCE_SIZE;
+		} else if (version == VERSION_WITHOUT_SEQUENCE) {
+			sequenceNumber = TemperatureReading.NO_SEQUENCE_NUMBER;
+		} else {
+			throw new IllegalArgumentException("Unknown record version "
+					+ version);
+		}
+		if (type == TYPE_READING) {
+			checkRemaining(i, 11, end);
+			long timestamp = data.getLong(i);
+			double temperature = data.getShort(i + 8) / TEMPERATURE_SCALE;
+			reading.set(decodeName(data, i + 10, names), timestamp,
+					temperature);
+			reading.setChangeOnly((flags & FLAG_CHANGE_ONLY) != 0);
+		} else if (type == TYPE_SUMMARY) {
+			checkRemaining(i, 27, end);
+			long windowStart = data.getLong(i);
+			int windowMillis = data.getInt(i + 8);
+			int count = data.getInt(i + 12);
+			double min = data.getShort(i + 16) / TEMPERATURE_SCALE;
+			double max = data.getShort(i + 18) / TEMPERATURE_SCALE;
+			double last = data.getShort(i + 20) / TEMPERATURE_SCALE;
+			double mean = data.getFloat(i + 22);
+			reading.setSummary(decodeName(data, i + 26, names), windowStart,
+					windowMillis, count, min, max, mean, last);
+		} else {
+			throw new IllegalArgumentException("Unknown record type " + type);
+		}
+		reading.setSequenceNumber(sequenceNumber);
+	}
+
+	private static void checkRemaining(int index, int length, int end) {
+		if (end - index < length) {
+			throw new IllegalArgumentException("Truncated record");
+		}
+	}
+
+	/**
+	 * Decodes the length-prefixed name at the given index.
+	 */
+	private static String decodeName(ByteBuffer data, int index,
+			SensorNameDictionary names) {
+		int length = data.get(index) & 0xFF;
+		checkRemaining(index + 1, length, data.limit());
+		return name(data, index + 1, length, names);
+	}
+
+	private static String name(ByteBuffer data, int offset, int length,
+			SensorNameDictionary names) {
+		if (names != null) {
+			return names.get(data, offset, length);
+		}
+		byte[] name = new byte[length];
+		for (int i = 0; i < length; i++) {
+			name[i] = data.get(offset + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Scans a record of the form "temperature;sensor;timestamp;padding" byte
+	 * by byte, instead of decoding and splitting the whole string.
+	 */
+	private static void decodeLegacy(ByteBuffer data,
+			TemperatureReading reading, SensorNameDictionary names) {
+		int start = data.position();
+		int end = data.limit();
+		int temperatureEnd = indexOf(data, SEPARATOR, start, end);
+		int sensorEnd = indexOf(data, SEPARATOR, temperatureEnd + 1, end);
+		int timestampEnd = indexOf(data, SEPARATOR, sensorEnd + 1, end);
+		if (timestampEnd < 0) {
+			// The padding is optional
+			timestampEnd = end;
+		}
+		if (temperatureEnd < 0 || sensorEnd < 0) {
+			throw new IllegalArgumentException("Malformed legacy record");
+		}
+		double temperature = parseDouble(data, start, temperatureEnd);
+		long timestamp = parseLong(data, sensorEnd + 1, timestampEnd);
+		reading.set(
+				name(data, temperatureEnd + 1, sensorEnd - temperatureEnd - 1,
+						names), timestamp, temperature);
+	}
+
+	/**
+	 * @return Absolute index of the first occurrence of the byte in the given
+	 *         range, or -1
+	 */
+	private static int indexOf(ByteBuffer data, byte b, int from, int end) {
+		if (from < 0) {
+			return -1;
+		}
+		for (int i = from; i < end; i++) {
+			if (data.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static long parseLong(ByteBuffer data, int from, int end) {
+		boolean negative = from < end && data.get(from) == '-';
+		int i = negative ? from + 1 : from;
+		if (i == end || end - i > 18) {
+			throw new IllegalArgumentException("Malformed timestamp");
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = data.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new IllegalArgumentException("Malformed timestamp");
+			}
+			value = 10 * value + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a decimal like "-12.5". The significand and the power of ten are
+	 * both exact doubles, so the division rounds exactly like
+	 * {@link Double#parseDouble(String)}. Anything else, e.g. an exponent,
+	 * falls back to {@link Double#parseDouble(String)}.
+	 */
+	private static double parseDouble(ByteBuffer data, int from, int end) {
+		boolean negative = from < end && data.get(from) == '-';
+		int i = negative ? from + 1 : from;
+		long significand = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		for (; i < end; i++) {
+			byte b = data.get(i);
+			if (b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else if (b >= '0' && b <= '9' && digits < 15) {
+				significand = 10 * significand + (b - '0');
+				digits++;
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			} else {
+				return parseDoubleSlow(data, from, end);
+			}
+		}
+		if (digits == 0) {
+			throw new IllegalArgumentException("Malformed temperature");
+		}
+		double value = fractionDigits > 0 ? significand
+				/ POWERS_OF_TEN[fractionDigits] : significand;
+		return negative ? -value : value;
+	}
+
+	private static double parseDoubleSlow(ByteBuffer data, int from, int end) {
+		byte[] b = new byte[end - from];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = data.get(from + i);
+		}
+		try {
+			return Double.parseDouble(new String(b, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed temperature", e);
+		}
+	}
+
+	private static short scaleTemperature(double temperature) {
+		long scaled = Math.round(temperature * TEMPERATURE_SCALE);
+		if (scaled < Short.MIN_VALUE || scaled > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Temperature out of range: "
+					+ temperature);
+		}
+		return (short) scaled;
+	}
+}
@@ -5,21 +5,20 @@ import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.RegionUtils;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.InitialPositionInStream;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.KinesisClientLibConfiguration;
 
@@ -29,34 +28,40 @@ public class TemperatureServlet extends HttpServlet {
 
 	private String tableName;
 
+	private String rollupTableName;
+
 	public TemperatureServlet(String streamName, String db_name,
-			String tableName) {
+			String tableName, String rollupTableName) {
 		this.tableName = tableName;
+		this.rollupTableName = rollupTableName;
 		KinesisClientLibConfiguration config = new KinesisClientLibConfiguration(
 				db_name, streamName, new DefaultAWSCredentialsProviderChain(),
 				"KinesisProducerLibSampleConsumer").withRegionName(
 				TemperatureProducer.REGION).withInitialPositionInStream(
 				InitialPositionInStream.TRIM_HORIZON);
 
-		Region region = RegionUtils.getRegion(TemperatureProducer.REGION);
-		AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
-		AmazonDynamoDB amazonDynamoDB = new AmazonDynamoDBClient(
-				credentialsProvider, new ClientConfiguration());
-		AmazonDynamoDBClient client = new AmazonDynamoDBClient();
-		client.setRegion(region);
-		DynamoDB dynamoDB = new DynamoDB(client);
-		amazonDynamoDB.setRegion(region);
-		dbUtils = new DynamoDBUtils(dynamoDB, amazonDynamoDB, client);
+		dbUtils = DynamoDBClients.getDynamoDBUtils();
 	}
 
 	/**
-	 * Shows a page with charts for every sensorstart
+	 * Shows a page with charts for every sensorstart. The readings are drawn
+	 * as a step function over their timestamps, because a reading holds until
+	 * the next one.
+	 * 
+	 * <p>
+	 * If the request has a width parameter, one chart per sensor of the time
+	 * range is shown instead, see
+	 * {@link #doGetRange(HttpServletRequest, HttpServletResponse, int)}.
 	 */
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws IOException, ServletException {
 		// Set the response message's MIME type
 		response.setContentType("text/html;charset=UTF-8");
+		if (request.getParameter("width") != null) {
+			doGetRange(request, response);
+			return;
+		}
 		// Allocate a output writer to write the response message into the
 		// network socket
 		PrintWriter out = response.getWriter();
@@ -77,15 +82,12 @@ public class TemperatureServlet extends HttpServlet {
 				HashMap<String, HashMap<String, Object>> hashMap = allTemperatures
 						.get(sensor);
 				for (String timestamp : hashMap.keySet()) {
-					int count = 0;
 					out.println("var dataPoints" + sensorCount + " = [];");
-					HashMap<String, Object> tempHashMap = hashMap
-							.get(timestamp);
-					for (String temperatureKey : tempHashMap.keySet()) {
+					for (Map.Entry<Long, Object> temperature : sortByTime(
+							hashMap.get(timestamp)).entrySet()) {
 						out.println("dataPoints" + sensorCount + ".push({ x: "
-								+ count + ", y: "
-								+ tempHashMap.get(temperatureKey) + "});");
-						count++;
+								+ temperature.getKey() + ", y: "
+								+ temperature.getValue() + "});");
 					}
 					out.println("var chart" + sensorCount
 							+ " = new CanvasJS.Chart('chartContainer"
@@ -97,10 +99,12 @@ public class TemperatureServlet extends HttpServlet {
 					cal.setTimeInMillis(Long.valueOf(timestamp));
 					DateFormat df = new SimpleDateFormat(
 							"dd.MM.yyyy HH:mm:ss 'and' SSS 'milliseconds'");
-					out.println("title:{text: '" + sensor
-							+ " started at timestamp "
-							+ df.format(cal.getTime()) + "'},    ");
-					out.println("data: [{type: 'line', dataPoints: dataPoints"
+					out.println("title:{text: '"
+							+ escapeJavaScript(sensor + " started at timestamp "
+									+ df.format(cal.getTime())) + "'},    ");
+					// A reading holds until the next one, which is what
+					// sensors in dead-band mode rely on
+					out.println("data: [{type: 'stepLine', xValueType: 'dateTime', dataPoints: dataPoints"
 							+ sensorCount + "}]");
 					out.println("});");
 					out.println("chart" + sensorCount + ".render();");
@@ -129,4 +133,168 @@ public class TemperatureServlet extends HttpServlet {
 			out.close(); // Always close the output writer
 		}
 	}
+
+	/**
+	 * Shows a chart per sensor for a time range, given by the parameters from
+	 * and to in milliseconds, which default to the last 24 hours. The
+	 * parameter sensor restricts the page to one sensor.
+	 * 
+	 * <p>
+	 * The chart is drawn from the coarsest rollups that still have a window
+	 * for every pixel of its width: the mean temperature of each window as a
+	 * line and the minimum and maximum as a range around it. If the range is
+	 * too short for even the minute rollups, the readings themselves are
+	 * drawn.
+	 * 
+	 * <p>
+	 * The parameter width is the width of a chart in pixels. Malformed
+	 * numbers are answered with 400 Bad Request.
+	 */
+	private void doGetRange(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		int width;
+		long from;
+		long to;
+		try {
+			width = Integer.parseInt(request.getParameter("width"));
+			to = request.getParameter("to") != null ? Long.parseLong(request
+					.getParameter("to")) : System.currentTimeMillis();
+			from = request.getParameter("from") != null ? Long
+					.parseLong(request.getParameter("from")) : to
+					- TimeUnit.DAYS.toMillis(1);
+		} catch (NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"width, from and to must be numbers");
+			return;
+		}
+		if (from > to) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"from must not be after to");
+			return;
+		}
+		RollupAggregator.Resolution resolution = RollupAggregator.Resolution
+				.coarsestFor(to - from, Math.max(1, width));
+
+		Set<String> sensors = Collections.emptySet();
+		if (request.getParameter("sensor") != null) {
+			sensors = Collections.singleton(request.getParameter("sensor"));
+		} else if (dbUtils.doesTableExist(rollupTableName)) {
+			sensors = dbUtils.getRollupSensors(rollupTableName);
+		}
+
+		PrintWriter out = response.getWriter();
+		try {
+			out.println("<!DOCTYPE html>");
+			out.println("<html><head>");
+			out.println("<meta http-equiv='Content-Type' content='text/html; charset=UTF-8'>");
+			out.println("<script type='text/javascript' src='http://canvasjs.com/assets/script/canvasjs.min.js'></script>");
+			out.println("<script type='text/javascript'>");
+			out.println("window.onload = function () {");
+			int sensorCount = 0;
+			for (String sensor : sensors) {
+				out.println("var dataPoints" + sensorCount + " = [];");
+				out.println("var rangePoints" + sensorCount + " = [];");
+				String title;
+				if (resolution == null) {
+					title = sensor + " (readings)";
+					TreeMap<Long, Object> readings = new TreeMap<>();
+					for (HashMap<String, Object> run : dbUtils
+							.getTemperaturesForSensor(sensor, tableName, from,
+									to).values()) {
+						readings.putAll(sortByTime(run));
+					}
+					for (Map.Entry<Long, Object> temperature : readings
+							.entrySet()) {
+						out.println("dataPoints" + sensorCount + ".push({ x: "
+								+ temperature.getKey() + ", y: "
+								+ temperature.getValue() + "});");
+					}
+				} else {
+					title = sensor + " (" + resolution.name().toLowerCase()
+							+ " rollups)";
+					List<Rollup> rollups = dbUtils.getRollups(rollupTableName,
+							sensor, resolution.getMillis(), from, to);
+					for (Rollup rollup : rollups) {
+						out.println("dataPoints" + sensorCount + ".push({ x: "
+								+ rollup.getWindowStart() + ", y: "
+								+ rollup.getMean() + "});");
+						out.println("rangePoints" + sensorCount + ".push({ x: "
+								+ rollup.getWindowStart() + ", y: ["
+								+ rollup.getMin() + ", " + rollup.getMax()
+								+ "]});");
+					}
+				}
+				out.println("var chart" + sensorCount
+						+ " = new CanvasJS.Chart('chartContainer"
+						+ sensorCount + "',");
+				out.println(" {");
+				out.println("zoomEnabled: true,");
+				out.println("title:{text: '" + escapeJavaScript(title)
+						+ "'},    ");
+				out.println("data: [{type: 'rangeArea', xValueType: 'dateTime', dataPoints: rangePoints"
+						+ sensorCount
+						+ "}, {type: 'stepLine', xValueType: 'dateTime', dataPoints: dataPoints"
+						+ sensorCount + "}]");
+				out.println("});");
+				out.println("chart" + sensorCount + ".render();");
+				sensorCount++;
+			}
+			out.println("}");
+			out.println("</script>");
+			out.println("<title>Temperatures</title></head>");
+			out.println("<body style='text-align:center'>");
+			out.println("<h1>Temperatures</h1>");
+			for (int i = 0; i < sensorCount; i++) {
+				out.println("<div id='chartContainer"
+						+ i
+						+ "' style='height: 300px; width: "
+						+ width
+						+ "px; margin-left:auto; margin-right:auto;'></div>");
+			}
+			out.println("</body>");
+			out.println("</html>");
+		} finally {
+			out.close(); // Always close the output writer
+		}
+	}
+
+	/**
+	 * Escapes a string for a JavaScript string literal in a script element.
+	 * Everything but letters, digits, spaces and a few punctuation marks is
+	 * written as a unicode escape, so that a sensor name given as a request
+	 * parameter can neither end the string nor the script element.
+	 * 
+	 * @param value
+	 *            The string
+	 * @return The escaped string, without quotes
+	 */
+	static String escapeJavaScript(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (Character.isLetterOrDigit(c) || " .,:-_()".indexOf(c) >= 0) {
+				escaped.append(c);
+			} else {
+				escaped.append(String.format("\\u%04x", (int) c));
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Sorts the temperatures of a run by the time they were produced.
+	 * 
+	 * @param temperatures
+	 *            Map with timestamps in milliseconds as keys and temperatures
+	 *            as values
+	 * @return The temperatures sorted by their timestamps
+	 */
+	private TreeMap<Long, Object> sortByTime(HashMap<String, Object> temperatures) {
+		TreeMap<Long, Object> sorted = new TreeMap<>();
+		for (Map.Entry<String, Object> temperature : temperatures.entrySet()) {
+			sorted.put(Long.valueOf(temperature.getKey()),
+					temperature.getValue());
+		}
+		return sorted;
+	}
 }
@@ -18,18 +18,38 @@ package com.innoq.hagmans.bachelor;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Utils {
-	private static final Random RANDOM = new Random();
 	private static final double RANGE_MIN = -20;
 	private static final double RANGE_MAX = 40;
 
 	/**
-	 * @return A random unsigned 128-bit int converted to a decimal string.
+	 * Number of precomputed explicit hash keys
+	 */
+	private static final int HASH_KEY_POOL_SIZE = 4096;
+
+	/**
+	 * Random explicit hash keys, so that the hot path doesn't have to create
+	 * a BigInteger and its string for every record
+	 */
+	private static final String[] HASH_KEY_POOL = new String[HASH_KEY_POOL_SIZE];
+
+	static {
+		for (int i = 0; i < HASH_KEY_POOL_SIZE; i++) {
+			HASH_KEY_POOL[i] = new BigInteger(128, ThreadLocalRandom.current())
+					.toString(10);
+		}
+	}
+
+	/**
+	 * @return A random unsigned 128-bit int converted to a decimal string. The
+	 *         keys are taken from a pool of precomputed keys, which spreads
+	 *         records evenly over the shards without allocating anything.
 	 */
 	public static String randomExplicitHashKey() {
-		return new BigInteger(128, RANDOM).toString(10);
+		return HASH_KEY_POOL[ThreadLocalRandom.current().nextInt(
+				HASH_KEY_POOL_SIZE)];
 	}
 
 	/**
@@ -42,7 +62,7 @@ public class Utils {
 	 * @return The new generated temperature as a double
 	 */
 	public static double getNextTemperature(double lastTemperature) {
-		float random = RANDOM.nextFloat();
+		float random = ThreadLocalRandom.current().nextFloat();
 		if (random < 0.33) {
 			lastTemperature -= 0.1;
 		} else if (random > 0.66) {
@@ -52,17 +72,18 @@ public class Utils {
 	}
 
 	public static double getFirstTemperature() {
-		return RANGE_MIN + (RANGE_MAX - RANGE_MIN) * RANDOM.nextDouble();
+		return RANGE_MIN + (RANGE_MAX - RANGE_MIN)
+				* ThreadLocalRandom.current().nextDouble();
 	}
 
 	/**
 	 * Generates a blob containing a UTF-8 string. The string begins with the
-	 * generated temperature in decimal notation, followed by a semicolon,
+	 * given temperature in decimal notation, followed by a semicolon,
 	 * followed by the sensorname, followed by a semicolon, followed by the
 	 * current timestamp, followed by a semicolon, followed by padding.
 	 * 
-	 * @param lastTemperature
-	 *            The last temperature that was send
+	 * @param temperature
+	 *            The temperature to send
 	 * @param sensorName
 	 *            The name of the sensor that produces the temperature
 	 * @param totalLen
@@ -70,10 +91,10 @@ public class Utils {
 	 *            is added until this length is reached.
 	 * @return ByteBuffer containing the blob
 	 */
-	public static ByteBuffer generateData(double lasttemperature,
+	public static ByteBuffer generateData(double temperature,
 			String sensorName, int totalLen) {
 		StringBuilder sb = new StringBuilder();
-		sb.append(Double.toString(getNextTemperature(lasttemperature)));
+		sb.append(Double.toString(temperature));
 		sb.append(";");
 		sb.append(sensorName);
 		sb.append(";");
@@ -88,4 +109,68 @@ public class Utils {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * @param sensorNameLength
+	 *            Length of the UTF-8 encoded name of a sensor
+	 * @return Maximum number of bytes {@link #writeData} writes for the
+	 *         sensor before the padding: the sign and up to 19 digits of the
+	 *         tenths of the temperature, the point, up to 19 digits of the
+	 *         timestamp and three separators
+	 */
+	public static int maxDataLength(int sensorNameLength) {
+		return 1 + 19 + 1 + 19 + 3 + sensorNameLength;
+	}
+
+	/**
+	 * Writes the same text as {@link #generateData(double, String, int)} into
+	 * the given buffer without allocating anything. The temperature is written
+	 * with one decimal place.
+	 * 
+	 * @param out
+	 *            The buffer to write into, starting at its position
+	 * @param temperature
+	 *            The temperature to send
+	 * @param sensorName
+	 *            The UTF-8 encoded name of the sensor that produces the
+	 *            temperature
+	 * @param timestamp
+	 *            The current timestamp
+	 * @param totalLen
+	 *            Total length of the data. Padding is added until this length
+	 *            is reached.
+	 */
+	public static void writeData(ByteBuffer out, double temperature,
+			byte[] sensorName, long timestamp, int totalLen) {
+		int start = out.position();
+		long tenths = Math.round(temperature * 10d);
+		if (tenths < 0) {
+			out.put((byte) '-');
+			tenths = -tenths;
+		}
+		writeDecimal(out, tenths / 10);
+		out.put((byte) '.');
+		out.put((byte) ('0' + tenths % 10));
+		out.put((byte) ';');
+		out.put(sensorName);
+		out.put((byte) ';');
+		writeDecimal(out, timestamp);
+		out.put((byte) ';');
+		while (out.position() - start < totalLen) {
+			out.put((byte) 'a');
+		}
+	}
+
+	/**
+	 * Writes a non-negative number as decimal ASCII digits.
+	 */
+	private static void writeDecimal(ByteBuffer out, long value) {
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			out.put((byte) ('0' + value / divisor % 10));
+		}
+	}
 }
@@ -0,0 +1,161 @@
+package com.innoq.hagmans.bachelor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Aggregates the readings of a slice of a {@link SensorFleet} into one summary
+ * per sensor and window (count, min, max, mean and last temperature).
+ *
+ * <p>
+ * Instead of one record per reading, the producer then puts one record per
+ * sensor and window, which cuts the PUT payload units of the stream and the
+ * writes of the consumer by the number of readings per window. The windows
+ * are aligned to multiples of their length, so the windows of all slices and
+ * producers line up. Like the fleet, the state of the sensors is kept in
+ * primitive arrays, and an aggregator must only be used by the thread owning
+ * the slice.
+ *
+ * @author hhagmans
+ *
+ */
+public class WindowAggregator {
+
+	private final SensorFleet fleet;
+
+	private final int from;
+
+	private final int windowMillis;
+
+	private final int[] counts;
+
+	private final double[] mins;
+
+	private final double[] maxs;
+
+	private final double[] sums;
+
+	private final double[] lasts;
+
+	private final ByteBuffer buffer = ByteBuffer
+			.allocate(TemperatureRecordCodec.MAX_RECORD_SIZE);
+
+	private long windowStart;
+
+	private long closedWindowStart;
+
+	private int cursor;
+
+	private int lastSensor;
+
+	/**
+	 * @param fleet
+	 *            The simulated fleet
+	 * @param from
+	 *            Id of the first sensor of the slice (inclusive)
+	 * @param to
+	 *            Id of the last sensor of the slice (exclusive)
+	 * @param windowMillis
+	 *            Length of a window in milliseconds
+	 */
+	public WindowAggregator(SensorFleet fleet, int from, int to,
+			int windowMillis) {
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException(
+					"The window must be longer than 0 ms");
+		}
+		this.fleet = fleet;
+		this.from = from;
+		this.windowMillis = windowMillis;
+		counts = new int[to - from];
+		mins = new double[to - from];
+		maxs = new double[to - from];
+		sums = new double[to - from];
+		lasts = new double[to - from];
+		windowStart = alignedWindowStart(System.currentTimeMillis());
+		cursor = counts.length;
+	}
+
+	/**
+	 * Adds a reading to the current window of its sensor.
+	 *
+	 * @param sensor
+	 *            Id of the sensor
+	 * @param temperature
+	 *            The temperature of the reading
+	 */
+	public void add(int sensor, double temperature) {
+		int i = sensor - from;
+		if (counts[i] == 0) {
+			mins[i] = temperature;
+			maxs[i] = temperature;
+			sums[i] = 0;
+		} else {
+			mins[i] = Math.min(mins[i], temperature);
+			maxs[i] = Math.max(maxs[i], temperature);
+		}
+		counts[i]++;
+		sums[i] += temperature;
+		lasts[i] = temperature;
+	}
+
+	/**
+	 * Closes the current window if it has ended. The summaries of the closed
+	 * window can then be retrieved with {@link #nextSummary()}, which must be
+	 * done before the next reading is added.
+	 *
+	 * @param now
+	 *            The current time in milliseconds
+	 * @param force
+	 *            Whether to close the window even if it has not ended yet,
+	 *            e.g. at the end of a run
+	 * @return {@code true} if the window was closed
+	 */
+	public boolean closeWindow(long now, boolean force) {
+		if (!force && now < windowStart + windowMillis) {
+			return false;
+		}
+		closedWindowStart = windowStart;
+		windowStart = alignedWindowStart(now);
+		cursor = 0;
+		return true;
+	}
+
+	/**
+	 * Encodes the summary of the next sensor of the closed window that
+	 * received at least one reading, and resets its state for the next window.
+	 *
+	 * @return The encoded summary, or {@code null} if all summaries of the
+	 *         closed window have been retrieved. The buffer is only valid until
+	 *         the next call of this method.
+	 */
+	public ByteBuffer nextSummary() {
+		while (cursor < counts.length && counts[cursor] == 0) {
+			cursor++;
+		}
+		if (cursor == counts.length) {
+			return null;
+		}
+		int i = cursor++;
+		lastSensor = from + i;
+		buffer.clear();
+		TemperatureRecordCodec.encodeSummary(buffer,
+				fleet.getEncodedName(lastSensor),
+				fleet.nextSequenceNumber(lastSensor), closedWindowStart,
+				windowMillis, counts[i], mins[i], maxs[i], sums[i] / counts[i],
+				lasts[i]);
+		buffer.flip();
+		counts[i] = 0;
+		return buffer;
+	}
+
+	/**
+	 * @return Id of the sensor of the last summary
+	 */
+	public int getLastSensor() {
+		return lastSensor;
+	}
+
+	private long alignedWindowStart(long now) {
+		return now - now % windowMillis;
+	}
+}
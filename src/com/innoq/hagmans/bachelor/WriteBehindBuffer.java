@@ -0,0 +1,466 @@
+package com.innoq.hagmans.bachelor;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Collects the readings and summaries of all record processors of a consumer
+ * and writes them to DynamoDB in the background.
+ *
+ * <p>
+ * Instead of reading and rewriting the item of every sensor for every batch of
+ * every shard, the readings of many batches are merged in memory and written
+ * with {@link DynamoDBUtils#batchPutTemperatures(String, Map, Map, long)}
+ * once enough readings are pending or the flush interval has passed. The
+ * number of pending readings is bounded: when it reaches the maximum, the
+ * record processor that adds a reading flushes synchronously, and keeps
+ * retrying while DynamoDB is unavailable, which holds back the KCL.
+ *
+ * <p>
+ * A record processor must call {@link #flush()} before it checkpoints, so that
+ * no reading before the checkpoint can be lost. Readings are keyed by their
+ * timestamp, so writing them again after a restart is harmless. The readings
+ * of a sensor are kept as primitive timestamps and temperatures (see
+ * {@link SensorReadings}) until they are encoded into the series.
+ *
+ * <p>
+ * For every pending reading the buffer remembers the metrics of its shard and
+ * the time it was produced, and once the reading is written, records how long
+ * it took from the producer to DynamoDB (see {@link IngestLatency}).
+ *
+ * @author hhagmans
+ *
+ */
+public class WriteBehindBuffer implements Closeable {
+	private static final Log LOG = LogFactory.getLog(WriteBehindBuffer.class);
+
+	private static final long MAX_RETRY_PAUSE_MILLIS = 5000;
+
+	private final DynamoDBUtils dbUtils;
+
+	private final String tableName;
+
+	private final int flushSize;
+
+	private final int maxPending;
+
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Pending temperatures per run, sensor and timestamp
+	 */
+	private HashMap<Long, HashMap<String, SensorReadings>> temperatures = new HashMap<>();
+
+	/**
+	 * Pending summaries per run, sensor and start of the window
+	 */
+	private HashMap<Long, HashMap<String, HashMap<String, Map<String, Object>>>> summaries = new HashMap<>();
+
+	private int pending;
+
+	/**
+	 * The shards and production times of the pending readings
+	 */
+	private Samples samples = new Samples();
+
+	/**
+	 * Only one flush runs at a time, so that two flushes never merge into the
+	 * same item concurrently
+	 */
+	private final Object flushLock = new Object();
+
+	private final Histogram flushLatency = new Histogram(
+			TimeUnit.MINUTES.toMillis(10));
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private final AtomicLong readingsFlushed = new AtomicLong(0);
+
+	private final AtomicLong itemsWritten = new AtomicLong(0);
+
+	private final AtomicLong failedFlushes = new AtomicLong(0);
+
+	/**
+	 * The shard, sensor and production time of readings, in parallel arrays.
+	 */
+	private static class Samples {
+		private ShardMetrics[] shards = new ShardMetrics[16];
+		private String[] sensors = new String[16];
+		private long[] producedAt = new long[16];
+		private int size;
+
+		void add(ShardMetrics shard, String sensor, long produced) {
+			if (size == shards.length) {
+				shards = Arrays.copyOf(shards, 2 * size);
+				sensors = Arrays.copyOf(sensors, 2 * size);
+				producedAt = Arrays.copyOf(producedAt, 2 * size);
+			}
+			shards[size] = shard;
+			sensors[size] = sensor;
+			producedAt[size] = produced;
+			size++;
+		}
+	}
+
+	/**
+	 * @param dbUtils
+	 *            Writes the readings
+	 * @param tableName
+	 *            The name of the table, where the readings will be persisted
+	 * @param flushSize
+	 *            Number of pending readings that triggers a flush in the
+	 *            background
+	 * @param maxPending
+	 *            Maximum number of pending readings
+	 * @param flushIntervalMillis
+	 *            Interval in which pending readings are flushed in the
+	 *            background
+	 */
+	public WriteBehindBuffer(DynamoDBUtils dbUtils, String tableName,
+			int flushSize, int maxPending, long flushIntervalMillis) {
+		if (dbUtils == null) {
+			throw new NullPointerException("dbUtils must not be null");
+		}
+		this.dbUtils = dbUtils;
+		this.tableName = tableName;
+		this.flushSize = flushSize;
+		this.maxPending = Math.max(flushSize, maxPending);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a reading.
+	 *
+	 * @param run
+	 *            The timestamp of the run
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param timestamp
+	 *            Timestamp of the reading
+	 * @param temperature
+	 *            The temperature
+	 * @param changeOnly
+	 *            Whether the reading was only sent because the temperature
+	 *            changed
+	 * @param shard
+	 *            The metrics of the shard of the reading, or {@code null} if
+	 *            its latency is not recorded
+	 * @param producedAt
+	 *            Time in milliseconds at which the reading was produced
+	 */
+	public void addTemperature(long run, String sensor, long timestamp,
+			double temperature, boolean changeOnly, ShardMetrics shard,
+			long producedAt) {
+		synchronized (this) {
+			HashMap<String, SensorReadings> runMap = temperatures.get(run);
+			if (runMap == null) {
+				runMap = new HashMap<>();
+				temperatures.put(run, runMap);
+			}
+			SensorReadings readings = runMap.get(sensor);
+			if (readings == null) {
+				readings = new SensorReadings(4);
+				runMap.put(sensor, readings);
+			}
+			readings.add(timestamp, temperature);
+			if (changeOnly) {
+				readings.markChangeOnly();
+			}
+			pending++;
+			if (shard != null) {
+				samples.add(shard, sensor, producedAt);
+			}
+		}
+		afterAdd();
+	}
+
+	/**
+	 * Adds the summary of a window.
+	 *
+	 * @param run
+	 *            The timestamp of the run
+	 * @param sensor
+	 *            Name of the sensor
+	 * @param windowStart
+	 *            Start of the window
+	 * @param summary
+	 *            The summary (see {@link DynamoDBUtils#toSummary(TemperatureReading)})
+	 * @param shard
+	 *            The metrics of the shard of the summary, or {@code null} if
+	 *            its latency is not recorded
+	 * @param producedAt
+	 *            Time in milliseconds at which the summary was produced
+	 */
+	public void addSummary(long run, String sensor, String windowStart,
+			Map<String, Object> summary, ShardMetrics shard, long producedAt) {
+		synchronized (this) {
+			HashMap<String, HashMap<String, Map<String, Object>>> runMap = summaries
+					.get(run);
+			if (runMap == null) {
+				runMap = new HashMap<>();
+				summaries.put(run, runMap);
+			}
+			HashMap<String, Map<String, Object>> sensorMap = runMap
+					.get(sensor);
+			if (sensorMap == null) {
+				sensorMap = new HashMap<>();
+				runMap.put(sensor, sensorMap);
+			}
+			if (sensorMap.put(windowStart, summary) == null) {
+				pending++;
+				if (shard != null) {
+					samples.add(shard, sensor, producedAt);
+				}
+			}
+		}
+		afterAdd();
+	}
+
+	private void afterAdd() {
+		int current = getPendingCount();
+		if (current >= maxPending) {
+			// Bound the memory by holding back the caller until the readings
+			// are written
+			long pause = 100;
+			while (getPendingCount() >= maxPending) {
+				try {
+					flush();
+				} catch (AmazonClientException e) {
+					LOG.warn(String.format(
+							"Unable to flush %d pending readings, retrying",
+							getPendingCount()), e);
+					try {
+						Thread.sleep(pause);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					pause = Math.min(MAX_RETRY_PAUSE_MILLIS, 2 * pause);
+				}
+			}
+		} else if (current >= flushSize
+				&& flushScheduled.compareAndSet(false, true)) {
+			flusher.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled.set(false);
+					flushQuietly();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes all pending readings and blocks until they are persisted. If the
+	 * write fails, the readings stay pending.
+	 *
+	 * @throws AmazonClientException
+	 *             If the readings could not be written
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			HashMap<Long, HashMap<String, SensorReadings>> flushTemperatures;
+			HashMap<Long, HashMap<String, HashMap<String, Map<String, Object>>>> flushSummaries;
+			Samples flushSamples;
+			int flushCount;
+			synchronized (this) {
+				if (pending == 0) {
+					return;
+				}
+				flushTemperatures = temperatures;
+				flushSummaries = summaries;
+				flushSamples = samples;
+				flushCount = pending;
+				temperatures = new HashMap<>();
+				summaries = new HashMap<>();
+				samples = new Samples();
+				pending = 0;
+			}
+
+			long start = System.nanoTime();
+			Set<Long> runs = new HashSet<>(flushTemperatures.keySet());
+			runs.addAll(flushSummaries.keySet());
+			try {
+				int items = 0;
+				for (Long run : runs) {
+					HashMap<String, SensorReadings> runTemperatures = flushTemperatures
+							.get(run);
+					HashMap<String, HashMap<String, Map<String, Object>>> runSummaries = flushSummaries
+							.get(run);
+					items += dbUtils
+							.batchPutTemperatures(
+									tableName,
+									runTemperatures != null ? runTemperatures
+											: new HashMap<String, SensorReadings>(),
+									runSummaries != null ? runSummaries
+											: new HashMap<String, HashMap<String, Map<String, Object>>>(),
+									run);
+					// Do not write this run again if a later run fails
+					flushTemperatures.remove(run);
+					flushSummaries.remove(run);
+				}
+				long now = System.currentTimeMillis();
+				for (int i = 0; i < flushSamples.size; i++) {
+					flushSamples.shards[i].committed(flushSamples.sensors[i],
+							now - flushSamples.producedAt[i]);
+				}
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+						- start);
+				flushLatency.record(millis);
+				readingsFlushed.getAndAdd(flushCount);
+				itemsWritten.getAndAdd(items);
+				LOG.debug(String.format(
+						"Flushed %d readings into %d items in %d ms",
+						flushCount, items, millis));
+			} catch (RuntimeException e) {
+				failedFlushes.getAndIncrement();
+				requeue(flushTemperatures, flushSummaries, flushSamples);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Puts the readings of a failed flush back. Readings that were added in
+	 * the meantime are kept, and replace those of the failed flush with the
+	 * same timestamp. The latencies of all readings of the failed flush
+	 * are recorded once they are written, even if a run was written before
+	 * the flush failed.
+	 */
+	private synchronized void requeue(
+			HashMap<Long, HashMap<String, SensorReadings>> failedTemperatures,
+			HashMap<Long, HashMap<String, HashMap<String, Map<String, Object>>>> failedSummaries,
+			Samples failedSamples) {
+		for (int i = 0; i < failedSamples.size; i++) {
+			samples.add(failedSamples.shards[i], failedSamples.sensors[i],
+					failedSamples.producedAt[i]);
+		}
+		for (Map.Entry<Long, HashMap<String, SensorReadings>> run : failedTemperatures
+				.entrySet()) {
+			HashMap<String, SensorReadings> runMap = temperatures.get(run
+					.getKey());
+			if (runMap == null) {
+				runMap = new HashMap<>();
+				temperatures.put(run.getKey(), runMap);
+			}
+			for (Map.Entry<String, SensorReadings> sensor : run.getValue()
+					.entrySet()) {
+				// The readings added later go last, so they are the ones
+				// written for a timestamp
+				SensorReadings readings = sensor.getValue();
+				pending += readings.size();
+				SensorReadings added = runMap.put(sensor.getKey(), readings);
+				if (added != null) {
+					readings.addAll(added);
+				}
+			}
+		}
+		for (Map.Entry<Long, HashMap<String, HashMap<String, Map<String, Object>>>> run : failedSummaries
+				.entrySet()) {
+			for (Map.Entry<String, HashMap<String, Map<String, Object>>> sensor : run
+					.getValue().entrySet()) {
+				for (Map.Entry<String, Map<String, Object>> summary : sensor
+						.getValue().entrySet()) {
+					HashMap<String, HashMap<String, Map<String, Object>>> runMap = summaries
+							.get(run.getKey());
+					if (runMap == null) {
+						runMap = new HashMap<>();
+						summaries.put(run.getKey(), runMap);
+					}
+					HashMap<String, Map<String, Object>> sensorMap = runMap
+							.get(sensor.getKey());
+					if (sensorMap == null) {
+						sensorMap = new HashMap<>();
+						runMap.put(sensor.getKey(), sensorMap);
+					}
+					if (!sensorMap.containsKey(summary.getKey())) {
+						sensorMap.put(summary.getKey(), summary.getValue());
+						pending++;
+					}
+				}
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			LOG.warn("Unable to flush the pending readings, will retry", e);
+		}
+	}
+
+	/**
+	 * @return Number of readings that have not been written yet
+	 */
+	public synchronized int getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * @return Number of readings written so far
+	 */
+	public long getReadingsFlushed() {
+		return readingsFlushed.get();
+	}
+
+	/**
+	 * @return Number of items written so far
+	 */
+	public long getItemsWritten() {
+		return itemsWritten.get();
+	}
+
+	/**
+	 * @return Number of flushes that failed
+	 */
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * @return Number of successful flushes
+	 */
+	public long getFlushCount() {
+		return flushLatency.getCount();
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100
+	 * @return Latency of the successful flushes in milliseconds at the given
+	 *         percentile
+	 */
+	public long getFlushLatencyMillis(double percentile) {
+		return flushLatency.getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * Flushes the pending readings and stops the background flushes.
+	 */
+	@Override
+	public void close() {
+		flusher.shutdown();
+		flush();
+	}
+}
@@ -0,0 +1,151 @@
+package com.innoq.hagmans.bachelor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SequenceTracker}.
+ *
+ * @author hhagmans
+ *
+ */
+public class SequenceTrackerTest {
+
+	private static final long RUN = 1449000000000L;
+
+	@Test
+	public void dropsDuplicates() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		assertTrue(tracker.accept("s", RUN, 0));
+		assertTrue(tracker.accept("s", RUN, 1));
+		assertFalse(tracker.accept("s", RUN, 1));
+		assertFalse(tracker.accept("s", RUN, 0));
+		assertTrue(tracker.accept("t", RUN, 0));
+		assertEquals(3, tracker.getReceived());
+		assertEquals(2, tracker.getDuplicates());
+		assertEquals(0, tracker.getLost());
+		assertEquals(2, tracker.getSensors());
+	}
+
+	@Test
+	public void windowWrapsAround() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		for (long s = 0; s < 1000; s++) {
+			assertTrue(tracker.accept("s", RUN, s));
+		}
+		// Still in the window after it wrapped around many times
+		assertFalse(tracker.accept("s", RUN, 999));
+		assertFalse(tracker.accept("s", RUN, 936));
+		// Below the window
+		assertFalse(tracker.accept("s", RUN, 935));
+		assertFalse(tracker.accept("s", RUN, 0));
+		assertEquals(1000, tracker.getReceived());
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+	}
+
+	@Test
+	public void windowIsRoundedUp() {
+		SequenceTracker tracker = new SequenceTracker(1);
+		for (long s = 0; s < 64; s++) {
+			tracker.accept("s", RUN, s);
+		}
+		assertFalse(tracker.accept("s", RUN, 0));
+		assertTrue(tracker.accept("s", RUN, 64));
+		assertFalse(tracker.accept("s", RUN, 0));
+		assertEquals(0, tracker.getLost());
+	}
+
+	@Test
+	public void reorderedRecordsWithinTheWindow() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		for (long s = 0; s < 100; s++) {
+			if (s != 70) {
+				assertTrue(tracker.accept("s", RUN, s));
+			}
+		}
+		assertTrue(tracker.accept("s", RUN, 70));
+		assertFalse(tracker.accept("s", RUN, 70));
+		for (long s = 100; s < 200; s++) {
+			tracker.accept("s", RUN, s);
+		}
+		assertEquals(0, tracker.getLost());
+		assertEquals(1, tracker.getReordered());
+		assertEquals(29, tracker.getMaxReorderDepth());
+	}
+
+	@Test
+	public void missingRecordsSlideOutAsGap() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		for (long s = 0; s < 200; s++) {
+			if (s < 10 || s > 12) {
+				tracker.accept("s", RUN, s);
+			}
+		}
+		assertEquals(3, tracker.getLost());
+		List<SequenceTracker.Gap> gaps = tracker.getRecentGaps();
+		assertEquals(1, gaps.size());
+		assertEquals("s", gaps.get(0).getSensor());
+		assertEquals(RUN, gaps.get(0).getRun());
+		assertEquals(10, gaps.get(0).getFrom());
+		assertEquals(12, gaps.get(0).getTo());
+		assertEquals(3d / 200, tracker.getLossRate(), 1e-9);
+	}
+
+	@Test
+	public void jumpBeyondTheWindow() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		tracker.accept("s", RUN, 0);
+		assertTrue(tracker.accept("s", RUN, 1000));
+		// The records below the new window are lost, those within it may
+		// still arrive
+		assertEquals(936, tracker.getLost());
+		// The bits of the old window were cleared
+		assertTrue(tracker.accept("s", RUN, 999));
+		tracker.accept("s", RUN, 1063);
+		assertEquals(998, tracker.getLost());
+		List<SequenceTracker.Gap> gaps = tracker.getRecentGaps();
+		assertEquals(1, gaps.size());
+		assertEquals(1, gaps.get(0).getFrom());
+		assertEquals(998, gaps.get(0).getTo());
+	}
+
+	@Test
+	public void newRunStartsOver() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		tracker.accept("s", RUN, 0);
+		tracker.accept("s", RUN, 2);
+		assertTrue(tracker.accept("s", RUN + 1, 0));
+		// The missing record of the last run is lost
+		assertEquals(1, tracker.getLost());
+		assertFalse(tracker.accept("s", RUN, 1));
+		assertTrue(tracker.accept("s", RUN + 1, 1));
+	}
+
+	@Test
+	public void forgottenRecordIsAcceptedAgain() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		assertTrue(tracker.accept("s", RUN, 5));
+		tracker.forget("s", RUN, 5);
+		assertEquals(0, tracker.getReceived());
+		assertTrue(tracker.accept("s", RUN, 5));
+		assertEquals(1, tracker.getReceived());
+		assertEquals(0, tracker.getDuplicates());
+	}
+
+	@Test
+	public void recordsWithoutSequenceNumber() {
+		SequenceTracker tracker = new SequenceTracker(64);
+		assertTrue(tracker.accept("s", RUN,
+				TemperatureReading.NO_SEQUENCE_NUMBER));
+		assertTrue(tracker.accept("s", RUN,
+				TemperatureReading.NO_SEQUENCE_NUMBER));
+		assertEquals(0, tracker.getSensors());
+		assertEquals(0, tracker.getReceived());
+	}
+}
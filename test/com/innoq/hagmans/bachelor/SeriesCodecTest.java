@@ -0,0 +1,128 @@
+package com.innoq.hagmans.bachelor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SeriesCodec}.
+ *
+ * @author hhagmans
+ *
+ */
+public class SeriesCodecTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void roundTrip() {
+		long[] timestamps = { 1449000000000L, 1449000001000L, 1449000002000L,
+				1449000002000L, 1449000002500L, 1449000060000L };
+		double[] temperatures = { 21.3, 21.4, -5.0, -5.1, 0.0, 39.9 };
+		assertDecodes(timestamps, temperatures, encode(timestamps, temperatures));
+	}
+
+	@Test
+	public void edgeValues() {
+		long[] timestamps = { 0, 1, Long.MAX_VALUE / 2,
+				Long.MAX_VALUE / 2 + 1, Long.MAX_VALUE / 2 + 1 };
+		double[] temperatures = { -3276.8, 3276.7, 1e9, -1e9, 0.05 };
+		byte[] series = encode(timestamps, temperatures);
+		SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(
+				ByteBuffer.wrap(series));
+		for (int i = 0; i < timestamps.length; i++) {
+			assertTrue(decoder.next());
+			assertEquals(timestamps[i], decoder.getTimestamp());
+			// Temperatures are rounded to tenths of a degree
+			assertEquals(Math.round(temperatures[i] * 10) / 10d,
+					decoder.getTemperature(), DELTA);
+		}
+		assertFalse(decoder.next());
+	}
+
+	@Test
+	public void singleReading() {
+		assertDecodes(new long[] { 42 }, new double[] { -0.5 },
+				encode(new long[] { 42 }, new double[] { -0.5 }));
+	}
+
+	@Test
+	public void emptySeries() {
+		byte[] series = new SeriesCodec.Encoder(0).toByteArray();
+		assertEquals(1, series.length);
+		assertFalse(new SeriesCodec.Decoder(ByteBuffer.wrap(series)).next());
+	}
+
+	@Test
+	public void steadyReadingsTakeAboutTwoBytes() {
+		int readings = 1000;
+		long[] timestamps = new long[readings];
+		double[] temperatures = new double[readings];
+		for (int i = 0; i < readings; i++) {
+			timestamps[i] = 1449000000000L + 1000L * i;
+			temperatures[i] = 20 + (i % 5) / 10d;
+		}
+		byte[] series = encode(timestamps, temperatures);
+		assertTrue(series.length < 2 * readings + 16);
+		assertDecodes(timestamps, temperatures, series);
+	}
+
+	@Test
+	public void decoderKeepsPosition() {
+		ByteBuffer series = ByteBuffer.wrap(encode(new long[] { 1, 2 },
+				new double[] { 1, 2 }));
+		SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(series);
+		while (decoder.next()) {
+		}
+		assertEquals(0, series.position());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void descendingTimestamps() {
+		SeriesCodec.Encoder encoder = new SeriesCodec.Encoder(2);
+		encoder.append(2000, 20);
+		encoder.append(1000, 20);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownVersion() {
+		new SeriesCodec.Decoder(ByteBuffer.wrap(new byte[] { 99, 0, 0 }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedSeries() {
+		byte[] series = encode(new long[] { 1449000000000L },
+				new double[] { 20 });
+		SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(
+				ByteBuffer.wrap(Arrays.copyOf(series, series.length - 2)));
+		decoder.next();
+	}
+
+	private static byte[] encode(long[] timestamps, double[] temperatures) {
+		SeriesCodec.Encoder encoder = new SeriesCodec.Encoder(
+				timestamps.length);
+		for (int i = 0; i < timestamps.length; i++) {
+			encoder.append(timestamps[i], temperatures[i]);
+		}
+		assertEquals(timestamps.length, encoder.getCount());
+		return encoder.toByteArray();
+	}
+
+	private static void assertDecodes(long[] timestamps,
+			double[] temperatures, byte[] series) {
+		assertEquals(SeriesCodec.VERSION, series[0]);
+		SeriesCodec.Decoder decoder = new SeriesCodec.Decoder(
+				ByteBuffer.wrap(series));
+		for (int i = 0; i < timestamps.length; i++) {
+			assertTrue(decoder.next());
+			assertEquals(timestamps[i], decoder.getTimestamp());
+			assertEquals(temperatures[i], decoder.getTemperature(), DELTA);
+		}
+		assertFalse(decoder.next());
+	}
+}
@@ -0,0 +1,186 @@
+package com.innoq.hagmans.bachelor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TemperatureRecordCodec} with the binary versions 1 and 2 and
+ * the legacy text format.
+ *
+ * @author hhagmans
+ *
+ */
+public class TemperatureRecordCodecTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void readingRoundTrip() {
+		ByteBuffer data = TemperatureRecordCodec.encodeReading("sensor-7", 42,
+				1449000000123L, -12.3);
+		TemperatureReading reading = decode(data);
+		assertEquals(0, data.position());
+		assertEquals("sensor-7", reading.getSensorName());
+		assertEquals(42, reading.getSequenceNumber());
+		assertEquals(1449000000123L, reading.getTimestamp());
+		assertEquals(-12.3, reading.getTemperature(), DELTA);
+		assertFalse(reading.isSummary());
+		assertFalse(reading.isChangeOnly());
+	}
+
+	@Test
+	public void changeOnlyFlag() {
+		ByteBuffer data = ByteBuffer
+				.allocate(TemperatureRecordCodec.MAX_RECORD_SIZE);
+		TemperatureRecordCodec.encodeReading(data, bytes("s"), 0, 1, 20,
+				TemperatureRecordCodec.FLAG_CHANGE_ONLY);
+		data.flip();
+		assertTrue(decode(data).isChangeOnly());
+	}
+
+	@Test
+	public void summaryRoundTrip() {
+		ByteBuffer data = ByteBuffer
+				.allocate(TemperatureRecordCodec.MAX_RECORD_SIZE);
+		TemperatureRecordCodec.encodeSummary(data, bytes("sensor"),
+				Long.MAX_VALUE, 1449000000000L, 60000, 600, -20, 40, 12.25,
+				13.1);
+		data.flip();
+		TemperatureReading reading = decode(data);
+		assertTrue(reading.isSummary());
+		assertEquals("sensor", reading.getSensorName());
+		assertEquals(Long.MAX_VALUE, reading.getSequenceNumber());
+		assertEquals(1449000000000L, reading.getTimestamp());
+		assertEquals(60000, reading.getWindowMillis());
+		assertEquals(600, reading.getCount());
+		assertEquals(-20, reading.getMin(), DELTA);
+		assertEquals(40, reading.getMax(), DELTA);
+		assertEquals(12.25, reading.getMean(), DELTA);
+		assertEquals(13.1, reading.getTemperature(), DELTA);
+	}
+
+	@Test
+	public void edgeValues() {
+		char[] name = new char[255];
+		Arrays.fill(name, 'x');
+		ByteBuffer data = TemperatureRecordCodec.encodeReading(
+				new String(name), 0, Long.MIN_VALUE, 3276.7);
+		TemperatureReading reading = decode(data);
+		assertEquals(new String(name), reading.getSensorName());
+		assertEquals(Long.MIN_VALUE, reading.getTimestamp());
+		assertEquals(3276.7, reading.getTemperature(), DELTA);
+
+		reading = decode(TemperatureRecordCodec.encodeReading("\u00e4\u00f6",
+				1, Long.MAX_VALUE, -3276.8));
+		assertEquals("\u00e4\u00f6", reading.getSensorName());
+		assertEquals(Long.MAX_VALUE, reading.getTimestamp());
+		assertEquals(-3276.8, reading.getTemperature(), DELTA);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nameTooLong() {
+		char[] name = new char[256];
+		Arrays.fill(name, 'x');
+		TemperatureRecordCodec.encodeReading(new String(name), 0, 0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void temperatureOutOfRange() {
+		TemperatureRecordCodec.encodeReading("s", 0, 0, 3276.8);
+	}
+
+	@Test
+	public void versionWithoutSequenceNumber() {
+		byte[] name = bytes("old");
+		ByteBuffer data = ByteBuffer.allocate(4 + 11 + name.length);
+		data.put(TemperatureRecordCodec.MAGIC).put((byte) 1)
+				.put(TemperatureRecordCodec.TYPE_READING).put((byte) 0);
+		data.putLong(1449000000000L).putShort((short) 215)
+				.put((byte) name.length).put(name);
+		data.flip();
+		TemperatureReading reading = decode(data);
+		assertEquals("old", reading.getSensorName());
+		assertEquals(TemperatureReading.NO_SEQUENCE_NUMBER,
+				reading.getSequenceNumber());
+		assertEquals(1449000000000L, reading.getTimestamp());
+		assertEquals(21.5, reading.getTemperature(), DELTA);
+	}
+
+	@Test
+	public void legacyRoundTrip() {
+		ByteBuffer data = ByteBuffer.allocate(128);
+		Utils.writeData(data, -7.26, bytes("legacy"), 1449000000000L, 100);
+		data.flip();
+		assertEquals(100, data.remaining());
+		TemperatureReading reading = decode(data);
+		assertEquals("legacy", reading.getSensorName());
+		assertEquals(TemperatureReading.NO_SEQUENCE_NUMBER,
+				reading.getSequenceNumber());
+		assertEquals(1449000000000L, reading.getTimestamp());
+		// Written with one decimal place
+		assertEquals(-7.3, reading.getTemperature(), DELTA);
+	}
+
+	@Test
+	public void legacyWithoutPadding() {
+		TemperatureReading reading = decode(ByteBuffer
+				.wrap(bytes("21.45;s;-1")));
+		assertEquals("s", reading.getSensorName());
+		assertEquals(-1, reading.getTimestamp());
+		assertEquals(21.45, reading.getTemperature(), DELTA);
+
+		reading = decode(ByteBuffer.wrap(bytes("1.5E1;s;0;aaa")));
+		assertEquals(15, reading.getTemperature(), DELTA);
+	}
+
+	@Test
+	public void dictionaryDecodesSameNames() {
+		SensorNameDictionary names = new SensorNameDictionary(16);
+		TemperatureReading first = new TemperatureReading();
+		TemperatureReading second = new TemperatureReading();
+		TemperatureRecordCodec.decode(
+				TemperatureRecordCodec.encodeReading("s", 0, 0, 0), first,
+				names);
+		TemperatureRecordCodec.decode(ByteBuffer.wrap(bytes("1.0;s;0")),
+				second, names);
+		assertEquals("s", second.getSensorName());
+		assertTrue(first.getSensorName() == second.getSensorName());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownVersion() {
+		ByteBuffer data = TemperatureRecordCodec.encodeReading("s", 0, 0, 0);
+		data.put(1, (byte) 9);
+		decode(data);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedRecord() {
+		ByteBuffer data = TemperatureRecordCodec.encodeReading("sensor", 0, 0,
+				0);
+		data.limit(data.limit() - 1);
+		decode(data);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void malformedLegacyRecord() {
+		decode(ByteBuffer.wrap(bytes("no separators")));
+	}
+
+	private static TemperatureReading decode(ByteBuffer data) {
+		TemperatureReading reading = new TemperatureReading();
+		TemperatureRecordCodec.decode(data, reading);
+		return reading;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}